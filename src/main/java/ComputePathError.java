@@ -1,27 +1,34 @@
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 import map.GlobalMap;
 import map.Plot;
+import mcl.CorrelativeScanMatcher;
 import mcl.MonteCarloLocalization;
 import mcl.Observation;
+import mcl.TrajectoryEvaluator;
 import odometry.CustomOdometry;
 import odometry.Odometry;
 import sensor.CustomSensor;
 import sensor.RayTracing;
+import sensor.ScanSignatureIndex;
 import sensor.Sensor;
 
 public final class ComputePathError {
+	private static final String GROUND_TRUTH_FILE = "data/robotdata101.log";
+	private static final double ABORT_ERROR = 500;				// cm; used by computeErrorOnline()
+	private static final double ABORT_GRACE_PERIOD = 30;		// seconds of ground truth given to converge first
+	private static final int SPARSE_NUM_PARTICLE = 300;			// particles of the sparse setup; see createLocalization()
+	private static final int SPARSE_SEED_CANDIDATES = 5;		// places of the signature index the particles are seeded around
 
 	/**
-	 * Computes the root mean squared error between the path you obtained and the ground truth path.
-	 * @return	The RMSE value
+	 * Creates the MCL object with the models used for the evaluation: 5000 particles, or in the sparse setup, 
+	 * SPARSE_NUM_PARTICLE particles seeded from the scan signature index, whose estimates are refined by 
+	 * correlative scan matching.
 	 */
-	public static double computeError() {
-		System.out.println("\n\n===========Computing the error w.r.t. the ground truth path=============\n");
-  
-		int numParticle = 5000;									// Set the maximum number of particles to begin with
-		boolean recordPosition = true;							// Store the estimated robot poses in a list
-  
+	private static MonteCarloLocalization createLocalization(boolean sparse) {
+		int numParticle = sparse ? SPARSE_NUM_PARTICLE : 5000;	// Set the maximum number of particles to begin with
 		GlobalMap map = new GlobalMap();						
 		Sensor sensorModel = new CustomSensor();
 		Odometry odometryModel = new CustomOdometry();
@@ -34,12 +41,37 @@ public final class ComputePathError {
 		MonteCarloLocalization mcl = new MonteCarloLocalization(plot, map, numParticle);
 		mcl.setOdometryModel(odometryModel);
 		mcl.setSensorModel(sensorModel);
+		if (sparse) {
+			mcl.setGlobalInitialization(new ScanSignatureIndex(map, sensorModel.getExpectedReadings()), SPARSE_SEED_CANDIDATES);
+			mcl.setScanMatching(CorrelativeScanMatcher.forMap(map));
+		}
+		return mcl;
+	}
+
+	/**
+	 * Computes the root mean squared error between the path you obtained and the ground truth path.
+	 * @return	The RMSE value
+	 */
+	public static double computeError() {
+		return computeError(false);
+	}
+
+	/**
+	 * Computes the root mean squared error between the path you obtained and the ground truth path.
+	 * @param sparse	whether to run the sparse setup (see createLocalization())
+	 * @return			The RMSE value
+	 */
+	public static double computeError(boolean sparse) {
+		System.out.println("\n\n===========Computing the error w.r.t. the ground truth path=============\n");
+  
+		boolean recordPosition = true;							// Store the estimated robot poses in a list
+		MonteCarloLocalization mcl = createLocalization(sparse);
 		
 		// Run MCL algorithm and record the path of the most probable particles
 		List<double[]> trace = mcl.runMonteCarloLocalization(recordPosition);
   
 		// Read in the ground truth path
-		List<Observation> groundTruthList = Observation.loadRobotLogData("data/robotdata101.log");
+		List<Observation> groundTruthList = Observation.loadRobotLogData(GROUND_TRUTH_FILE);
   
 		// Skip some initial time steps as it takes time to converge
 		int tStart = 0;
@@ -74,7 +106,46 @@ public final class ComputePathError {
 		return error;
 	}
 	
-	public static void main(String[] args) {
-		computeError();
+	/**
+	 * Evaluates the path while MCL runs: every estimate is compared with the ground truth interpolated at its
+	 * timestamp, and the run stops as soon as the error exceeds ABORT_ERROR after ABORT_GRACE_PERIOD seconds.
+	 * Note that this reports the actual RMSE, sqrt(mean squared error), rather than the value of computeError().
+	 * 
+	 * @return	the evaluator holding the RMSE, maximum error and convergence time
+	 */
+	public static TrajectoryEvaluator computeErrorOnline() throws IOException {
+		return computeErrorOnline(false);
+	}
+	
+	/**
+	 * Evaluates the path while MCL runs, as computeErrorOnline() does.
+	 * @param sparse	whether to run the sparse setup (see createLocalization())
+	 */
+	public static TrajectoryEvaluator computeErrorOnline(boolean sparse) throws IOException {
+		System.out.println("\n\n===========Evaluating the path online w.r.t. the ground truth path=============\n");
+		
+		MonteCarloLocalization mcl = createLocalization(sparse);
+		try (TrajectoryEvaluator evaluator = new TrajectoryEvaluator(GROUND_TRUTH_FILE)) {
+			evaluator.setAbortBound(ABORT_ERROR, ABORT_GRACE_PERIOD);
+			mcl.setTrajectoryEvaluator(evaluator);
+			mcl.runMonteCarloLocalization(false);
+			
+			System.out.println(evaluator + "\n");
+			return evaluator;
+		}
+	}
+	
+	/**
+	 * @param args	(optional) "online" evaluates while MCL runs and stops early on large errors,
+	 * 				"sparse" runs SPARSE_NUM_PARTICLE particles with signature seeding and scan matching
+	 */
+	public static void main(String[] args) throws IOException {
+		List<String> options = Arrays.asList(args);
+		boolean sparse = options.contains("sparse");
+		if (options.contains("online")) {
+			computeErrorOnline(sparse);
+		} else {
+			computeError(sparse);
+		}
 	}
 }
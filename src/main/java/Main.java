@@ -1,12 +1,40 @@
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import map.ArtifactCache;
 import map.GlobalMap;
 import map.Plot;
+import mcl.AugmentedMcl;
+import mcl.BinaryLogSource;
+import mcl.CheckpointWriter;
+import mcl.CorrelativeScanMatcher;
+import mcl.DualProposal;
+import mcl.FilterCheckpoint;
+import mcl.FilterTelemetry;
 import mcl.MonteCarloLocalization;
+import mcl.MotionGate;
+import mcl.Observation;
+import mcl.ObservationSource;
+import mcl.ReplayScheduler;
+import mcl.ShardCoordinator;
+import mcl.StepSink;
+import mcl.TelemetryServer;
+import mcl.TextLogSource;
 import odometry.DefaultOdometry;
 import odometry.Odometry;
+import sensor.CompactExpectedReadings;
 import sensor.DefaultSensor;
+import sensor.ExpectedReadingPyramid;
+import sensor.LazyRayCastReadings;
+import sensor.MappedExpectedReadings;
 import sensor.RayTracing;
+import sensor.ScanSignatureIndex;
 import sensor.Sensor;
+import sensor.TiledExpectedReadings;
 
 /**
  * The main class which runs the MCL algorithm.
@@ -14,30 +42,254 @@ import sensor.Sensor;
 public class Main {
 	private static final int NUM_PARTICLE_TO_DRAW = 2000;
 	private static final boolean DRAW_LOGGED_POSE = false;				// Whether to directly draw the recorded pose in data
+	private static final int NUM_RESOLUTION_LEVELS = 3;					// 10 cm / 120 bins down to 40 cm / 30 bins
+	private static final long LAZY_CACHE_BYTES = 256L << 20;			// Memory cap of the lazily ray-cast readings
+	private static final String CHECKPOINT_FILE = "data/mcl_checkpoint.bin";
+	private static final int CHECKPOINT_PERIOD = 200;					// Time steps between two checkpoints
+	private static final long PARALLEL_SEED = 0;						// Seed of the counter-based random numbers
+	private static final int METROPOLIS_ITERATIONS = 32;				// Metropolis steps per particle of the parallel resampling
+	private static final double PREINTEGRATION_MAX_DISTANCE = 100;		// cm of logged travel after which pending odometry is applied
+	private static final double PREINTEGRATION_MAX_TIME = 2;			// seconds after which pending odometry is applied
+	private static final double GATE_MIN_TRANSLATION = 5;				// cm of motion which makes the next scan count
+	private static final double GATE_MIN_ROTATION = 0.05;				// radians of motion which make the next scan count
+	private static final int GATE_MAX_SKIPPED = 10;						// scans skipped in a row before one counts anyway
+	private static final int ISLAND_EXCHANGE_PERIOD = 10;				// Time steps between two particle exchanges of the islands
+	private static final double ISLAND_EXCHANGE_FRACTION = 0.05;		// Fraction of an island's particles sent at every exchange
+	private static final int NUM_SHARDS = 4;							// Worker processes of the distributed mode
+	private static final String SHARD_ADDRESS = "tcp:127.0.0.1:0";		// Where the workers connect to (port 0 picks a free port)
+	private static final String SHARD_READINGS_FILE = "data/expected_readings.bin";	// Compact readings mapped by all workers
+	private static final String SHARD_WORKER_HEAP = "-Xmx1g";
+	private static final int TELEMETRY_PORT = 8080;						// Local HTTP port of the telemetry (status and particle stream)
+	private static final int TELEMETRY_CLOUD_PARTICLES = 500;			// Particles in every streamed cloud
+	private static final long TELEMETRY_PERIOD_MILLIS = 200;			// Minimum time between two telemetry snapshots
+	private static final int REPLAY_QUEUE_CAPACITY = 64;				// Observations which can wait for the filter in the real-time replay
+	private static final String BINARY_LOG_SUFFIX = ".bin";				// Binary copy of the log read by the "pipeline:binary" option
+	private static final double AUGMENTED_ALPHA_SLOW = 0.001;			// Decay of the long-term average likelihood of augmented MCL
+	private static final double AUGMENTED_ALPHA_FAST = 0.1;				// Decay of the short-term average likelihood
+	private static final double MIXTURE_FRACTION = 0.1;					// Share of every resampling drawn from the dual proposal
+	private static final int MIXTURE_CANDIDATES = 1000;					// Random poses weighted by the scan for the dual proposal
+	private static final int SIGNATURE_CANDIDATES = 5;						// Places of the signature index the particles are seeded around
+	private static final String ARTIFACT_CACHE_DIR = "data/cache";		// Structures derived from the map, keyed by its content
 	
 	/**
 	 * The main method
 	 * @param args	args[0] is the maximum number of particles to use 
+	 * 				args[1...] (optional) "multires" enables coarse-to-fine global localization,
+	 * 				"lazy" ray-casts the expected readings on demand instead of loading the cache file,
+	 * 				"compact" keeps only 16-bit readings of the free cells in memory,
+	 * 				"cached" loads the compact readings and the map image from ARTIFACT_CACHE_DIR, building them on a miss,
+	 * 				"tiled" copies the expected readings into a flat array in tiled Z-order,
+	 * 				"zorder" weights the particles in Z-order of their cells,
+	 * 				"checkpoint" saves the filter state every CHECKPOINT_PERIOD steps and resumes from it if present,
+	 * 				"parallel" runs the steps on all cores with results that do not depend on the number of cores,
+	 * 				"metropolis" makes the parallel mode resample by Metropolis steps instead of a prefix sum,
+	 * 				"preintegrate" composes the odometry-only steps and applies them with the next laser scan,
+	 * 				"gate" skips the sensor update and resampling of scans taken while the robot stands still,
+	 * 				"offheap" keeps the particles outside of the Java heap in two generations swapped by resampling,
+	 * 				"islands" splits the particles into one sub-filter per core which exchange particles now and then,
+	 * 				"realtime" feeds the observations at their logged timestamps and reports the missed deadlines,
+	 * 				"realtime:N" does so N times faster, and "drop" or "coalesce" make a late filter skip the scans 
+	 * 				or the odometry-only steps which have newer observations queued behind them,
+	 * 				"pipeline" reads the log, filters and plots on separate threads which overlap from step to step,
+	 * 				"pipeline:binary" does so from a binary copy of the log (written next to it on the first run),
+	 * 				"augmented" injects random particles when the scans fit much worse than they used to (augmented MCL),
+	 * 				"mixture" draws a share of every resampling from the scan (the dual proposal of Mixture-MCL),
+	 * 				"signatures" seeds the particles around the places whose scan signature matches the first scan
+	 * 				(and again once augmented MCL finds the filter kidnapped); with "cached", the index is cached too,
+	 * 				"scanmatch" corrects every estimate towards the best correlative scan match around it (with "cached", its
+	 * 				likelihood field is cached too),
+	 * 				"telemetry" serves the filter status and a particle stream at http://127.0.0.1:TELEMETRY_PORT,
+	 * 				"distributed" runs NUM_SHARDS worker processes which each own a shard of the particles;
+	 * 				an option "tcp:host:port" or "unix:/path" sets the address they connect to
 	 */
 	public static void main(String[] args) {
 		
 		int numParticle = Integer.parseInt(args[0]);					// Set the maximum number of particles to begin with
 		boolean recordPosition = false;									// Whether to store the estimated robot poses in a list
+		List<String> options = Arrays.asList(args).subList(1, args.length);
+		boolean multiResolution = options.contains("multires");
+		boolean lazyReadings = options.contains("lazy");
+		boolean compactReadings = options.contains("compact");
+		boolean cachedArtifacts = options.contains("cached");
+		boolean tiledReadings = options.contains("tiled");
+		boolean spatialOrdering = options.contains("zorder");
+		boolean checkpointing = options.contains("checkpoint");
+		boolean parallel = options.contains("parallel");
+		boolean metropolis = options.contains("metropolis");
+		boolean preintegrate = options.contains("preintegrate");
+		boolean gate = options.contains("gate");
+		boolean offHeap = options.contains("offheap");
+		boolean islands = options.contains("islands");
+		boolean distributed = options.contains("distributed");
+		boolean telemetry = options.contains("telemetry");
+		boolean augmented = options.contains("augmented");
+		boolean mixture = options.contains("mixture");
+		boolean signatures = options.contains("signatures");
+		boolean scanMatching = options.contains("scanmatch");
+		boolean pipeline = options.contains("pipeline") || options.contains("pipeline:binary");
+		boolean binaryLog = options.contains("pipeline:binary");
+		String shardAddress = SHARD_ADDRESS;
+		double replaySpeedup = 0;										// 0 when not replaying in real time
+		for (String option : options) {
+			if (option.startsWith("tcp:") || option.startsWith("unix:")) {
+				shardAddress = option;
+			} else if (option.equals("realtime")) {
+				replaySpeedup = 1;
+			} else if (option.startsWith("realtime:")) {
+				replaySpeedup = Double.parseDouble(option.substring("realtime:".length()));
+			}
+		}
 		
 		GlobalMap map = new GlobalMap();						
 		Sensor sensorModel = new DefaultSensor();
 		Odometry odometryModel = new DefaultOdometry();
-		Plot plot = new Plot(map, NUM_PARTICLE_TO_DRAW, DRAW_LOGGED_POSE);
+		ArtifactCache artifactCache = cachedArtifacts ? new ArtifactCache(ARTIFACT_CACHE_DIR) : null;
+		Plot plot = new Plot(map, NUM_PARTICLE_TO_DRAW, DRAW_LOGGED_POSE, artifactCache);
 		
-		// Load pre-computed expected laser reading values
-		sensorModel.setExpectedSensorReadingFromCache(RayTracing.loadRayTracing(map));
+		// Load pre-computed expected laser reading values, or compute them as the particles need them
+		if (distributed && new File(SHARD_READINGS_FILE).exists()) {
+			try {
+				sensorModel.setExpectedReadings(new MappedExpectedReadings(SHARD_READINGS_FILE));
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+		} else if (lazyReadings) {
+			sensorModel.setExpectedReadings(new LazyRayCastReadings(map, LAZY_CACHE_BYTES));
+		} else if (cachedArtifacts) {
+			CompactExpectedReadings compact = CompactExpectedReadings.fromCache(artifactCache, map);
+			sensorModel.setExpectedReadings(compact);
+			System.out.println("Compact expected readings: " + compact);
+		} else {
+			sensorModel.setExpectedSensorReadingFromCache(RayTracing.loadRayTracing(map));
+		}
+		if (tiledReadings) {
+			sensorModel.setExpectedReadings(new TiledExpectedReadings(sensorModel.getExpectedReadings(),
+					map.globalMapValues.length, map.globalMapValues[0].length));
+		}
+		if (compactReadings && !cachedArtifacts) {
+			CompactExpectedReadings compact = new CompactExpectedReadings(map, sensorModel.getExpectedReadings());
+			sensorModel.setExpectedReadings(compact);
+			System.out.println("Compact expected readings: " + compact);
+		}
+		if (distributed && !(sensorModel.getExpectedReadings() instanceof MappedExpectedReadings)) {
+			// Write the readings once for the workers to map
+			try {
+				CompactExpectedReadings compact = new CompactExpectedReadings(map, sensorModel.getExpectedReadings());
+				compact.save(SHARD_READINGS_FILE);
+				sensorModel.setExpectedReadings(new MappedExpectedReadings(SHARD_READINGS_FILE));
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
 		
 		// Instantiate MonteCarloLocalization object and link sensor/odometry models
 		MonteCarloLocalization mcl = new MonteCarloLocalization(plot, map, numParticle);
 		mcl.setOdometryModel(odometryModel);
 		mcl.setSensorModel(sensorModel);
+		mcl.setSpatialOrdering(spatialOrdering);
+		if (parallel) {
+			mcl.setParallelism(Runtime.getRuntime().availableProcessors(), PARALLEL_SEED);
+			if (metropolis) {
+				mcl.setMetropolisResampling(METROPOLIS_ITERATIONS);
+			}
+		}
+		if (preintegrate) {
+			mcl.setPreintegration(PREINTEGRATION_MAX_DISTANCE, PREINTEGRATION_MAX_TIME);
+		}
+		if (gate) {
+			mcl.setMotionGate(new MotionGate(GATE_MIN_TRANSLATION, GATE_MIN_ROTATION, GATE_MAX_SKIPPED));
+		}
+		mcl.setOffHeapParticles(offHeap);
+		if (islands) {
+			mcl.setIslands(Runtime.getRuntime().availableProcessors(), ISLAND_EXCHANGE_PERIOD, ISLAND_EXCHANGE_FRACTION, PARALLEL_SEED);
+		}
+		if (distributed) {
+			ShardCoordinator coordinator = new ShardCoordinator(shardAddress, NUM_SHARDS, numParticle, PARALLEL_SEED, SHARD_READINGS_FILE);
+			try {
+				coordinator.start(ShardCoordinator.javaCommand("ShardWorkerMain", SHARD_WORKER_HEAP));
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+			mcl.setSharding(coordinator);
+		}
+		if (augmented) {
+			mcl.setAugmentedMcl(new AugmentedMcl(AUGMENTED_ALPHA_SLOW, AUGMENTED_ALPHA_FAST));
+		}
+		if (mixture) {
+			mcl.setDualProposal(new DualProposal(MIXTURE_FRACTION, MIXTURE_CANDIDATES));
+		}
+		if (signatures) {
+			ScanSignatureIndex index = cachedArtifacts ? ScanSignatureIndex.fromCache(artifactCache, map, sensorModel.getExpectedReadings())
+					: new ScanSignatureIndex(map, sensorModel.getExpectedReadings());
+			System.out.println("Scan signature index: " + index);
+			mcl.setGlobalInitialization(index, SIGNATURE_CANDIDATES);
+		}
+		if (scanMatching) {
+			mcl.setScanMatching(cachedArtifacts ? CorrelativeScanMatcher.fromCache(artifactCache, map) : CorrelativeScanMatcher.forMap(map));
+		}
+		if (replaySpeedup > 0) {
+			ReplayScheduler.Policy policy = options.contains("drop") ? ReplayScheduler.Policy.DROP_SCANS
+					: options.contains("coalesce") ? ReplayScheduler.Policy.COALESCE_ODOMETRY : ReplayScheduler.Policy.NONE;
+			mcl.setRealTimeReplay(new ReplayScheduler(replaySpeedup, REPLAY_QUEUE_CAPACITY, policy));
+		}
+		TelemetryServer telemetryServer = null;
+		if (telemetry) {
+			FilterTelemetry filterTelemetry = new FilterTelemetry(TELEMETRY_CLOUD_PARTICLES, TELEMETRY_PERIOD_MILLIS);
+			try {
+				telemetryServer = new TelemetryServer(filterTelemetry, "127.0.0.1", TELEMETRY_PORT);
+				telemetryServer.start();
+				mcl.setTelemetry(filterTelemetry);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		if (multiResolution) {
+			mcl.setMultiResolution(new ExpectedReadingPyramid(sensorModel.getExpectedReadings(),
+					map.globalMapValues.length, map.globalMapValues[0].length, NUM_RESOLUTION_LEVELS));
+		}
+		
+		// Run until the end of the log (or an error), and stop serving the telemetry then
+		try {
+			// Resume from the last checkpoint, and keep saving new ones
+			if (checkpointing) {
+				if (new File(CHECKPOINT_FILE).exists()) {
+					try {
+						mcl.restore(FilterCheckpoint.load(CHECKPOINT_FILE));
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+				mcl.setCheckpointing(new CheckpointWriter(CHECKPOINT_FILE), CHECKPOINT_PERIOD);
+			}
 		
-		// Run MCL algorithm
-		mcl.runMonteCarloLocalization(recordPosition);
+			// Run MCL algorithm, either in a pipeline from a log source to the plot or one step after the other
+			if (pipeline) {
+				ObservationSource source = new TextLogSource(MonteCarloLocalization.getLogFilePath());
+				if (binaryLog) {
+					String binaryLogFile = MonteCarloLocalization.getLogFilePath() + BINARY_LOG_SUFFIX;
+					try {
+						if (!new File(binaryLogFile).exists()) {
+							BinaryLogSource.write(Observation.loadRobotLogData(MonteCarloLocalization.getLogFilePath()), binaryLogFile);
+						}
+						source = new BinaryLogSource(binaryLogFile);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+				List<StepSink> sinks = new ArrayList<>();
+				sinks.add(StepSink.printer());
+				sinks.add(StepSink.renderer(plot));
+				mcl.runPipeline(source, sinks);
+			} else {
+				mcl.runMonteCarloLocalization(recordPosition);
+			}
+		} finally {
+			if (telemetryServer != null) {
+				telemetryServer.stop();
+			}
+		}
 	}
 }
@@ -0,0 +1,136 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.DoubleSupplier;
+
+import noise.NoiseStream;
+
+/**
+ * A microbenchmark comparing the throughput (samples/sec) of the Gaussian noise generators.
+ * <p>
+ * Single-threaded, it compares java.util.Random.nextGaussian() (what MonteCarloLocalization.RANDOM offers),
+ * SplittableRandom.nextGaussian(), NoiseStream.nextGaussian() and NoiseStream.fillGaussian() into a buffer.
+ * Multi-threaded, it compares all threads sharing one java.util.Random with every thread owning a split NoiseStream.
+ */
+public final class NoiseBenchmark {
+	private static final int SAMPLES_PER_RUN = 20_000_000;
+	private static final int WARMUP_RUNS = 3;
+	private static final int MEASURED_RUNS = 5;
+	private static final int BLOCK_SIZE = 1024;
+
+	private static double sink;									// Keeps the JIT from removing the loops
+
+	/**
+	 * Returns the best samples/sec over a few runs of the given single-sample generator.
+	 */
+	private static double measure(DoubleSupplier gaussian) {
+		double best = 0;
+		for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+			double sum = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < SAMPLES_PER_RUN; i++) {
+				sum += gaussian.getAsDouble();
+			}
+			long elapsed = System.nanoTime() - start;
+			sink += sum;
+			if (run >= WARMUP_RUNS) {
+				best = Math.max(best, SAMPLES_PER_RUN / (elapsed * 1e-9));
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the best samples/sec over a few runs of block generation into a primitive buffer.
+	 */
+	private static double measureBlocks(NoiseStream stream) {
+		double[] buffer = new double[BLOCK_SIZE];
+		double best = 0;
+		for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+			double sum = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < SAMPLES_PER_RUN; i += BLOCK_SIZE) {
+				stream.fillGaussian(buffer, 0, BLOCK_SIZE);
+				sum += buffer[0];
+			}
+			long elapsed = System.nanoTime() - start;
+			sink += sum;
+			if (run >= WARMUP_RUNS) {
+				best = Math.max(best, SAMPLES_PER_RUN / (elapsed * 1e-9));
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the total samples/sec when numThreads threads draw at the same time, either from one
+	 * shared java.util.Random or from one split NoiseStream each.
+	 */
+	private static double measureThreads(int numThreads, boolean shared) throws Exception {
+		Random sharedRandom = new Random(0);
+		NoiseStream[] streams = new NoiseStream(0).split(numThreads);
+		int samplesPerThread = SAMPLES_PER_RUN / numThreads;
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+
+		double best = 0;
+		for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+			List<Future<Double>> futures = new ArrayList<>(numThreads);
+			long start = System.nanoTime();
+			for (int t = 0; t < numThreads; t++) {
+				NoiseStream stream = streams[t];
+				futures.add(pool.submit(() -> {
+					double sum = 0;
+					for (int i = 0; i < samplesPerThread; i++) {
+						sum += shared ? sharedRandom.nextGaussian() : stream.nextGaussian();
+					}
+					return sum;
+				}));
+			}
+			for (Future<Double> f : futures) {
+				sink += f.get();
+			}
+			long elapsed = System.nanoTime() - start;
+			if (run >= WARMUP_RUNS) {
+				best = Math.max(best, samplesPerThread * numThreads / (elapsed * 1e-9));
+			}
+		}
+		pool.shutdown();
+		return best;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int numThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+
+		Random random = new Random(0);
+		SplittableRandom splittable = new SplittableRandom(0);
+		NoiseStream stream = new NoiseStream(0);
+
+		double baseline = measure(random::nextGaussian);
+		System.out.println(String.format("%-40s %8.1f M samples/sec", "Random.nextGaussian", baseline / 1e6));
+
+		double rate = measure(splittable::nextGaussian);
+		System.out.println(String.format("%-40s %8.1f M samples/sec (%.1fx)", "SplittableRandom.nextGaussian", rate / 1e6, rate / baseline));
+
+		rate = measure(stream::nextGaussian);
+		System.out.println(String.format("%-40s %8.1f M samples/sec (%.1fx)", "NoiseStream.nextGaussian", rate / 1e6, rate / baseline));
+
+		rate = measureBlocks(stream);
+		System.out.println(String.format("%-40s %8.1f M samples/sec (%.1fx)", "NoiseStream.fillGaussian", rate / 1e6, rate / baseline));
+
+		double sharedRate = measureThreads(numThreads, true);
+		System.out.println(String.format("%-40s %8.1f M samples/sec",
+				String.format("%d threads, shared Random", numThreads), sharedRate / 1e6));
+
+		rate = measureThreads(numThreads, false);
+		System.out.println(String.format("%-40s %8.1f M samples/sec (%.1fx)",
+				String.format("%d threads, split NoiseStreams", numThreads), rate / 1e6, rate / sharedRate));
+
+		if (sink == 42) {
+			System.out.println();
+		}
+	}
+}
@@ -0,0 +1,118 @@
+import java.util.Random;
+
+import mcl.ParallelResampler;
+
+/**
+ * A microbenchmark of the resampling schemes on large particle sets (particles/sec).
+ * <p>
+ * The weights are log-normal, as the normalized likelihoods of a filter whose particles are spread out. For every
+ * set size, the serial systematic walk over the cumulative weights is compared with the parallel prefix-sum variant
+ * and with Metropolis resampling of ParallelResampler. The quality column is the largest difference between an
+ * offspring count and its expectation N w_i / sum(w): below 1 for systematic resampling, and larger for Metropolis,
+ * whose counts are random and, with few iterations, biased towards light particles.
+ */
+public final class ResamplingBenchmark {
+	private static final int[] NUM_PARTICLES = {10000, 100000, 1000000};
+	private static final double LOG_WEIGHT_STD_DEV = 2;
+	private static final int METROPOLIS_ITERATIONS = 32;
+	private static final int WARMUP_RUNS = 3;
+	private static final int MEASURED_RUNS = 5;
+
+	private static double sink;										// Keeps the JIT from removing the loops
+
+	/**
+	 * The serial systematic resampling of MonteCarloLocalization, on an array of weights.
+	 */
+	static void serialSystematic(double[] weights, int n, double u, int[] ancestors) {
+		double total = 0;
+		for (int i = 0; i < n; i++) {
+			total += weights[i];
+		}
+		double increment = total / n;
+		double pointer = u * increment;
+		double cumulative = weights[0];
+		int i = 0;
+		for (int slot = 0; slot < n; slot++) {
+			while (pointer >= cumulative && i < n - 1) {
+				i++;
+				cumulative += weights[i];
+			}
+			ancestors[slot] = i;
+			pointer += increment;
+		}
+	}
+
+	/**
+	 * Returns the largest difference between the offspring count of a particle and N w_i / sum(w).
+	 */
+	static double maxCountError(double[] weights, int[] ancestors) {
+		int n = weights.length;
+		int[] counts = new int[n];
+		for (int a : ancestors) {
+			counts[a]++;
+		}
+		double total = 0;
+		for (double w : weights) {
+			total += w;
+		}
+		double error = 0;
+		for (int i = 0; i < n; i++) {
+			error = Math.max(error, Math.abs(counts[i] - n * weights[i] / total));
+		}
+		return error;
+	}
+
+	/**
+	 * Returns the best particles/sec over a few runs of one scheme.
+	 */
+	static double measure(String scheme, ParallelResampler resampler, double[] weights, int[] ancestors) {
+		int n = weights.length;
+		double best = 0;
+		for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+			double u = (run + 0.5) / (WARMUP_RUNS + MEASURED_RUNS);
+			long start = System.nanoTime();
+			if (scheme.equals("serial")) {
+				serialSystematic(weights, n, u, ancestors);
+			} else if (scheme.equals("prefix-sum")) {
+				resampler.systematic(weights, n, u, ancestors);
+			} else {
+				resampler.metropolis(weights, n, METROPOLIS_ITERATIONS, 0, run, 0, ancestors);
+			}
+			long elapsed = System.nanoTime() - start;
+			sink += ancestors[n / 2];
+			if (run >= WARMUP_RUNS) {
+				best = Math.max(best, n / (elapsed * 1e-9));
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @param args	args[0] (optional) is the number of threads, by default the number of cores
+	 */
+	public static void main(String[] args) {
+		int numThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		ParallelResampler resampler = new ParallelResampler(numThreads);
+		System.out.println(String.format("%d threads, %d Metropolis iterations", numThreads, METROPOLIS_ITERATIONS));
+
+		for (int n : NUM_PARTICLES) {
+			Random random = new Random(0);
+			double[] weights = new double[n];
+			for (int i = 0; i < n; i++) {
+				weights[i] = Math.exp(LOG_WEIGHT_STD_DEV * random.nextGaussian());
+			}
+			int[] ancestors = new int[n];
+
+			for (String scheme : new String[] {"serial", "prefix-sum", "metropolis"}) {
+				double rate = measure(scheme, resampler, weights, ancestors);
+				System.out.println(String.format("%8d %-11s %12.0f particles/sec   max count error %.2f",
+						n, scheme, rate, maxCountError(weights, ancestors)));
+			}
+		}
+		resampler.shutdown();
+
+		if (sink == 42) {
+			System.out.println();
+		}
+	}
+}
@@ -0,0 +1,31 @@
+import java.io.IOException;
+
+import map.GlobalMap;
+import mcl.Particle;
+import mcl.ShardChannel;
+import mcl.ShardWorker;
+import odometry.DefaultOdometry;
+import sensor.DefaultSensor;
+
+/**
+ * The main class of a worker process of the distributed mode, started by ShardCoordinator.
+ * It uses the same sensor and odometry models as Main.
+ */
+public class ShardWorkerMain {
+
+	/**
+	 * The main method
+	 * @param args	args[0] is the address of the coordinator, "tcp:host:port" or "unix:/path"
+	 */
+	public static void main(String[] args) {
+		GlobalMap map = new GlobalMap();
+		Particle.setGlobalMap(map);
+		
+		try (ShardChannel channel = ShardChannel.connect(args[0])) {
+			new ShardWorker(channel, new DefaultSensor(), new DefaultOdometry()).run();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
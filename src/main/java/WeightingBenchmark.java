@@ -0,0 +1,173 @@
+import java.util.Arrays;
+import java.util.Random;
+
+import map.GlobalMap;
+import sensor.CompactExpectedReadings;
+import sensor.ExpectedReadings;
+import sensor.RayTracing;
+import sensor.Sensor;
+import sensor.TiledExpectedReadings;
+import util.Util;
+
+/**
+ * A microbenchmark of the expected-reading lookups done while weighting particles (particles/sec).
+ * <p>
+ * Particles are drawn around a few random free spots of the map, like a multi-modal belief, and every particle
+ * fetches the NUM_BINS / 2 expected readings of its laser cell as in MonteCarloLocalization.setObsArrayOfSensor().
+ * Every layout (the [x][y][bin] table, the flat tiled Z-order array and the compact 16-bit store) is measured with
+ * particles in random order (the list is shuffled every step) and in Z-order of their cells (sorting included).
+ * <p>
+ * Cache misses are not visible from Java; run it under e.g. "perf stat -e LLC-loads,LLC-load-misses" with the
+ * layout and order given as arguments to compare a single configuration.
+ */
+public final class WeightingBenchmark {
+	private static final int NUM_CLUSTERS = 20;
+	private static final double CLUSTER_STD_DEV = 150;				// cm
+	private static final int WARMUP_RUNS = 3;
+	private static final int MEASURED_RUNS = 5;
+	private static final int STEPS_PER_RUN = 20;
+
+	private static double sink;										// Keeps the JIT from removing the loops
+
+	/**
+	 * Draws valid particle poses around NUM_CLUSTERS random free spots of the map.
+	 */
+	static double[][] sampleParticles(GlobalMap map, int numParticles, Random random) {
+		double[][] centers = new double[NUM_CLUSTERS][];
+		for (int c = 0; c < NUM_CLUSTERS; c++) {
+			centers[c] = randomFreePosition(map, 0, 0, 0, random);
+		}
+
+		double[][] poses = new double[numParticles][];
+		for (int i = 0; i < numParticles; i++) {
+			double[] center = centers[random.nextInt(NUM_CLUSTERS)];
+			poses[i] = randomFreePosition(map, center[0], center[1], CLUSTER_STD_DEV, random);
+		}
+		return poses;
+	}
+
+	/**
+	 * Draws a position on a free cell around (x, y); with a standard deviation of 0, anywhere on the map.
+	 */
+	private static double[] randomFreePosition(GlobalMap map, double x, double y, double stdDev, Random random) {
+		int width = map.globalMapValues.length;
+		int height = map.globalMapValues[0].length;
+		while (true) {
+			double px = stdDev > 0 ? x + stdDev * random.nextGaussian() : width * 10 * random.nextDouble();
+			double py = stdDev > 0 ? y + stdDev * random.nextGaussian() : height * 10 * random.nextDouble();
+			int cx = (int) px / 10;
+			int cy = (int) py / 10;
+			if (px >= 0 && py >= 0 && cx < width && cy < height && map.globalMapValues[cx][cy] > 0.8) {
+				return new double[] {px, py, 2 * Math.PI * random.nextDouble() - Math.PI};
+			}
+		}
+	}
+
+	/**
+	 * Fetches the expected readings of all particles in the given order, as the weighting step does.
+	 */
+	private static double lookup(ExpectedReadings readings, double[][] poses, int[] order, int maxIndex) {
+		int numBins = Sensor.NUM_BINS;
+		double sum = 0;
+		for (int i = 0; i < order.length; i++) {
+			double[] pose = poses[order[i]];
+			double xLaserLoc = pose[0] + 25 * Math.cos(pose[2]);
+			double yLaserLoc = pose[1] + 25 * Math.sin(pose[2]);
+			int xIndex = (int) Math.max(0, Math.min(xLaserLoc / 10, maxIndex));
+			int yIndex = (int) Math.max(0, Math.min(yLaserLoc / 10, maxIndex));
+			int binId = Util.thetaToBinId(pose[2] - Math.PI / 2, numBins);
+			for (int k = 0; k < numBins / 2; k++) {
+				sum += readings.getExpectedObs(xIndex, yIndex, binId);
+				binId = (binId + 1) % numBins;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the particle indices sorted by the Z-order code of their cells.
+	 */
+	private static int[] zOrder(double[][] poses, long[] keys) {
+		for (int i = 0; i < poses.length; i++) {
+			keys[i] = ((long) Util.mortonCode((int) poses[i][0] / 10, (int) poses[i][1] / 10) << 32) | i;
+		}
+		Arrays.sort(keys);
+		int[] order = new int[poses.length];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = (int) keys[i];
+		}
+		return order;
+	}
+
+	/**
+	 * Returns the best particles/sec over a few runs; every step reshuffles the particles first.
+	 */
+	static double measure(ExpectedReadings readings, double[][] poses, boolean spatialOrdering, int maxIndex) {
+		Random random = new Random(0);
+		int[] shuffled = new int[poses.length];
+		long[] keys = new long[poses.length];
+		double best = 0;
+
+		for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+			long elapsed = 0;
+			for (int step = 0; step < STEPS_PER_RUN; step++) {
+				// Shuffle (not timed), like the particle list between steps
+				for (int i = 0; i < poses.length; i++) {
+					int j = random.nextInt(i + 1);
+					double[] tmp = poses[i]; poses[i] = poses[j]; poses[j] = tmp;
+					shuffled[i] = i;
+				}
+				long start = System.nanoTime();
+				int[] order = spatialOrdering ? zOrder(poses, keys) : shuffled;
+				sink += lookup(readings, poses, order, maxIndex);
+				elapsed += System.nanoTime() - start;
+			}
+			if (run >= WARMUP_RUNS) {
+				best = Math.max(best, (double) poses.length * STEPS_PER_RUN / (elapsed * 1e-9));
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @param args	args[0] (optional) is the number of particles, args[1] and args[2] (optional) restrict the run
+	 * 				to one layout ("table", "tiled" or "compact") and one order ("random" or "zorder")
+	 */
+	public static void main(String[] args) {
+		int numParticles = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		String onlyLayout = args.length > 1 ? args[1] : null;
+		String onlyOrder = args.length > 2 ? args[2] : null;
+
+		GlobalMap map = new GlobalMap();
+		double[][][] table = RayTracing.loadRayTracing(map);
+		int maxIndex = table.length - 1;
+		double[][] poses = sampleParticles(map, numParticles, new Random(0));
+
+		String[] layouts = {"table", "tiled", "compact"};
+		for (String layout : layouts) {
+			if (onlyLayout != null && !onlyLayout.equals(layout)) {
+				continue;
+			}
+			ExpectedReadings readings;
+			if (layout.equals("table")) {
+				readings = (x, y, binId) -> table[x][y][binId];
+			} else if (layout.equals("tiled")) {
+				readings = new TiledExpectedReadings(table);
+			} else {
+				readings = new CompactExpectedReadings(map, (x, y, binId) -> table[x][y][binId]);
+			}
+
+			for (String order : new String[] {"random", "zorder"}) {
+				if (onlyOrder != null && !onlyOrder.equals(order)) {
+					continue;
+				}
+				double rate = measure(readings, poses, order.equals("zorder"), maxIndex);
+				System.out.println(String.format("%-10s %-8s %10.0f particles/sec", layout, order, rate));
+			}
+		}
+
+		if (sink == 42) {
+			System.out.println();
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.function.Supplier;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.CRC32C;
+
+/**
+ * A directory of structures derived from the map (expected readings, the rendered map image, ...), so that they are
+ * built once per map rather than at every start.
+ * <p>
+ * An entry is keyed by the content hash of the map (GlobalMap.getContentHash()), the type of the artifact, the version
+ * of the code that builds it and its parameters (e.g. the number of bins). The key is part of the file name and is
+ * repeated in the header of the file, and a trailer holds the length and CRC32C of the payload; an entry whose header
+ * or trailer does not match is stale and gets rebuilt. get() builds a missing artifact on the spot, writes it to a
+ * temporary file and moves that over the entry atomically, so that a process reading the cache never sees half an
+ * entry. Entries of the same type and parameters for other maps or versions are removed when a new one is written.
+ */
+public class ArtifactCache {
+	private static final int MAGIC = 0x4D434143;					// "MCAC"
+	private static final int FORMAT_VERSION = 1;
+	private static final int CHUNK_BYTES = 1 << 16;					// bulk copies of the array helpers
+
+	private final Path directory;
+
+	/**
+	 * Writes and reads an artifact of one type. The payload streams compute a checksum, so large arrays
+	 * should go through the bulk helpers below rather than one writeShort() or readInt() per element.
+	 */
+	public interface Codec<T> {
+		void write(T artifact, DataOutputStream out) throws IOException;
+
+		T read(DataInputStream in) throws IOException;
+	}
+
+	/**
+	 * @param directory	the directory of the cache, created on the first write
+	 */
+	public ArtifactCache(String directory) {
+		this.directory = Paths.get(directory);
+	}
+
+	/**
+	 * Returns the cached artifact for the map, or builds, caches and returns it.
+	 *
+	 * @param map			the map the artifact is derived from
+	 * @param type			the type of the artifact, e.g. "compact-readings" (letters, digits and '-')
+	 * @param version		the version of the code building the artifact; bump it when the result changes
+	 * @param parameters	the parameters the artifact depends on, e.g. "bins=120"
+	 * @param codec			writes and reads the artifact
+	 * @param builder		builds the artifact from the map on a miss
+	 */
+	public <T> T get(GlobalMap map, String type, int version, String parameters, Codec<T> codec, Supplier<T> builder) {
+		long mapHash = map.getContentHash();
+		Path path = directory.resolve(fileName(type, version, parameters, mapHash));
+
+		if (Files.exists(path)) {
+			long start = System.nanoTime();
+			try {
+				T artifact = read(path, mapHash, type, version, parameters, codec);
+				if (artifact != null) {
+					System.out.println(String.format("Loaded %s (%s) from %s in %.1f ms", type, parameters, path, (System.nanoTime() - start) / 1e6));
+					return artifact;
+				}
+			} catch (IOException e) {
+				// A truncated or foreign file is rebuilt like a stale one
+			}
+			System.out.println(String.format("Stale cache entry %s, rebuilding it", path));
+		}
+
+		long start = System.nanoTime();
+		T artifact = builder.get();
+		System.out.println(String.format("Built %s (%s) in %.1f s", type, parameters, (System.nanoTime() - start) / 1e9));
+		try {
+			write(path, mapHash, type, version, parameters, codec, artifact);
+			removeStaleEntries(type, parameters, path);
+		} catch (IOException e) {
+			System.out.println(String.format("Could not cache %s in %s: %s", type, path, e));
+		}
+		return artifact;
+	}
+
+	private static String fileName(String type, int version, String parameters, long mapHash) {
+		return String.format("%s-%s-v%d-%016x.bin", type, sanitize(parameters), version, mapHash);
+	}
+
+	/**
+	 * Keeps the parameters usable in a file name
+	 */
+	private static String sanitize(String parameters) {
+		return parameters.replaceAll("[^A-Za-z0-9.=_]", "_");
+	}
+
+	/**
+	 * Reads an entry, or returns null if its key or trailer do not match.
+	 */
+	private static <T> T read(Path path, long mapHash, String type, int version, String parameters, Codec<T> codec) throws IOException {
+		try (InputStream file = new BufferedInputStream(Files.newInputStream(path), 1 << 16)) {
+			DataInputStream header = new DataInputStream(file);
+			if (header.readInt() != MAGIC || header.readInt() != FORMAT_VERSION || header.readLong() != mapHash
+					|| !header.readUTF().equals(type) || header.readInt() != version || !header.readUTF().equals(parameters)) {
+				return null;
+			}
+
+			CheckedInputStream checked = new CheckedInputStream(file, new CRC32C());
+			CountingInputStream counted = new CountingInputStream(checked);
+			T artifact = codec.read(new DataInputStream(counted));
+			long payloadCrc = checked.getChecksum().getValue();
+
+			DataInputStream trailer = new DataInputStream(file);
+			if (trailer.readLong() != counted.count || trailer.readLong() != payloadCrc || file.read() != -1) {
+				return null;
+			}
+			return artifact;
+		}
+	}
+
+	/**
+	 * Writes an entry to a temporary file in the cache directory, then moves it into place.
+	 */
+	private <T> void write(Path path, long mapHash, String type, int version, String parameters, Codec<T> codec, T artifact) throws IOException {
+		Files.createDirectories(directory);
+		Path tempPath = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+		try {
+			try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(tempPath), 1 << 16)) {
+				DataOutputStream header = new DataOutputStream(file);
+				header.writeInt(MAGIC);
+				header.writeInt(FORMAT_VERSION);
+				header.writeLong(mapHash);
+				header.writeUTF(type);
+				header.writeInt(version);
+				header.writeUTF(parameters);
+				header.flush();
+
+				CheckedOutputStream checked = new CheckedOutputStream(file, new CRC32C());
+				DataOutputStream payload = new DataOutputStream(checked);
+				codec.write(artifact, payload);
+				payload.flush();
+
+				DataOutputStream trailer = new DataOutputStream(file);
+				trailer.writeLong(payload.size());
+				trailer.writeLong(checked.getChecksum().getValue());
+				trailer.flush();
+			}
+			try {
+				Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tempPath);
+		}
+	}
+
+	/**
+	 * Removes the entries of the same type and parameters which belong to other maps or versions.
+	 */
+	private void removeStaleEntries(String type, String parameters, Path current) throws IOException {
+		String prefix = type + "-" + sanitize(parameters) + "-v";
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, prefix + "*.bin")) {
+			for (Path entry : entries) {
+				if (!entry.equals(current)) {
+					Files.deleteIfExists(entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes an array of ints in bulk (big-endian, as DataOutputStream.writeInt())
+	 */
+	public static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+		for (int i = 0; i < values.length; ) {
+			int n = Math.min(values.length - i, CHUNK_BYTES / Integer.BYTES);
+			buffer.clear();
+			buffer.asIntBuffer().put(values, i, n);
+			out.write(buffer.array(), 0, n * Integer.BYTES);
+			i += n;
+		}
+	}
+
+	/**
+	 * Fills an array of ints written by writeInts()
+	 */
+	public static void readInts(DataInputStream in, int[] values) throws IOException {
+		byte[] bytes = new byte[CHUNK_BYTES];
+		for (int i = 0; i < values.length; ) {
+			int n = Math.min(values.length - i, CHUNK_BYTES / Integer.BYTES);
+			in.readFully(bytes, 0, n * Integer.BYTES);
+			ByteBuffer.wrap(bytes).asIntBuffer().get(values, i, n);
+			i += n;
+		}
+	}
+
+	/**
+	 * Writes an array of shorts in bulk (big-endian, as DataOutputStream.writeShort())
+	 */
+	public static void writeShorts(DataOutputStream out, short[] values) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+		for (int i = 0; i < values.length; ) {
+			int n = Math.min(values.length - i, CHUNK_BYTES / Short.BYTES);
+			buffer.clear();
+			buffer.asShortBuffer().put(values, i, n);
+			out.write(buffer.array(), 0, n * Short.BYTES);
+			i += n;
+		}
+	}
+
+	/**
+	 * Fills an array of shorts written by writeShorts()
+	 */
+	public static void readShorts(DataInputStream in, short[] values) throws IOException {
+		byte[] bytes = new byte[CHUNK_BYTES];
+		for (int i = 0; i < values.length; ) {
+			int n = Math.min(values.length - i, CHUNK_BYTES / Short.BYTES);
+			in.readFully(bytes, 0, n * Short.BYTES);
+			ByteBuffer.wrap(bytes).asShortBuffer().get(values, i, n);
+			i += n;
+		}
+	}
+
+	/**
+	 * Writes an array of floats in bulk (big-endian, as DataOutputStream.writeFloat())
+	 */
+	public static void writeFloats(DataOutputStream out, float[] values) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+		for (int i = 0; i < values.length; ) {
+			int n = Math.min(values.length - i, CHUNK_BYTES / Float.BYTES);
+			buffer.clear();
+			buffer.asFloatBuffer().put(values, i, n);
+			out.write(buffer.array(), 0, n * Float.BYTES);
+			i += n;
+		}
+	}
+
+	/**
+	 * Fills an array of floats written by writeFloats()
+	 */
+	public static void readFloats(DataInputStream in, float[] values) throws IOException {
+		byte[] bytes = new byte[CHUNK_BYTES];
+		for (int i = 0; i < values.length; ) {
+			int n = Math.min(values.length - i, CHUNK_BYTES / Float.BYTES);
+			in.readFully(bytes, 0, n * Float.BYTES);
+			ByteBuffer.wrap(bytes).asFloatBuffer().get(values, i, n);
+			i += n;
+		}
+	}
+
+	/**
+	 * Counts the bytes read through it; DataInputStream does not.
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+		long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int n = super.read(buffer, offset, length);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+	}
+}
@@ -1,10 +1,21 @@
 package map;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.GZIPInputStream;
 
 /**
- * A class that defines the map object. The map is in the form of a 800 x 800 matrix 
- * where each entry represents a location on the map. 
+ * A class that defines the map object. The map is in the form of a 800 x 800 matrix
+ * where each entry represents a location on the map.
  *<p>
  * The value of each entry:
  *        -1  = don't know
@@ -14,37 +25,259 @@ import java.io.*;
  *        1   = occupiable by robot with probability 1
  *        0   = unoccupiable with probability 1
  *        0.5 = occupiable with probability 0.5
+ *<p>
+ * The map file may be gzipped (".gz") and may still have the header lines of the original wean.dat
+ * ("robot_specifications->..." and "global_map[0]: 800 800"). Parsing the text takes a few hundred milliseconds,
+ * so the grid is also written to a binary cache file next to the map file (CACHE_SUFFIX appended to its name),
+ * which is keyed by the length and CRC32C of the map file and used instead as long as they match.
  **/
 public class GlobalMap {
+	public static final String CACHE_SUFFIX = ".grid";
+	private static final int CACHE_MAGIC = 0x4D434D47;				// "MCMG"
+	private static final int CACHE_HEADER_BYTES = 3 * Integer.BYTES + 2 * Long.BYTES;
+	private static final int DEFAULT_SIZE = 800;
+	private static final double[] POWERS_OF_TEN = {1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15};
+
+	public double[][] globalMapValues;
+	private long contentHash = 0;								// see getContentHash(), computed on first use
 
-	public String[][] globalMapValues;
-	
-	public GlobalMap() {	
-		this("data/map/wean.dat");
+	/**
+	 * Loads data/map/wean.dat, or the gzipped data/map/wean.dat.gz shipped with the repository when it is not there.
+	 */
+	public GlobalMap() {
+		this(new File("data/map/wean.dat").exists() ? "data/map/wean.dat" : "data/map/wean.dat.gz");
 		}
-	
+
 	public GlobalMap(String mapFilePath) {
-		globalMapValues = new String[800][800];
 		loadMap(mapFilePath);
 	}
-	
+
 	/**
-	 * Loads the map of Wean hall and saves it into 2D array of Strings.
-	 * @param filePath	the file path to the map file ("data/map/wean.dat")
+	 * Loads the map of Wean hall into a 2D array, from the cache if it matches the map file.
+	 * @param filePath	the file path to the map file ("data/map/wean.dat" or "data/map/wean.dat.gz")
 	 */
 	private void loadMap(String filePath) {
-		try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-			String line;
-			int i = 0;
-			while ((line = br.readLine()) != null) {
-				String[] values = line.split(" ");
-				globalMapValues[i] = values;
-				i++;
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+		try {
+			byte[] source = Files.readAllBytes(Paths.get(filePath));
+			CRC32C crc = new CRC32C();
+			crc.update(source);
+			long hash = crc.getValue();
+			Path cachePath = Paths.get(filePath + CACHE_SUFFIX);
+
+			globalMapValues = readCache(cachePath, source.length, hash);
+			if (globalMapValues == null) {
+				byte[] text = source;
+				if (filePath.endsWith(".gz")) {
+					try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(source))) {
+						text = in.readAllBytes();
+					}
+				}
+				globalMapValues = parse(text);
+				writeCache(cachePath, source.length, hash);
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
-		} 
+		}
+	}
+
+	/**
+	 * Returns a 64-bit hash of the size and values of the grid (the CRC32C and the CRC32 of its doubles), which
+	 * identifies the map whatever file it was loaded from. Structures derived from the map are keyed by it
+	 * (see ArtifactCache).
+	 */
+	public long getContentHash() {
+		if (contentHash == 0) {
+			ByteBuffer buffer = ByteBuffer.allocate(2 * Integer.BYTES + globalMapValues[0].length * Double.BYTES);
+			CRC32C crc32c = new CRC32C();
+			CRC32 crc32 = new CRC32();
+			buffer.putInt(globalMapValues.length).putInt(globalMapValues[0].length).flip();
+			crc32c.update(buffer.duplicate());
+			crc32.update(buffer);
+			for (double[] row : globalMapValues) {
+				buffer.clear();
+				buffer.asDoubleBuffer().put(row);
+				buffer.limit(row.length * Double.BYTES);
+				crc32c.update(buffer.duplicate());
+				crc32.update(buffer);
+			}
+			contentHash = (crc32c.getValue() << 32) | crc32.getValue();
+		}
+		return contentHash;
+	}
+
+	/**
+	 * Parses the text of a map: every line holding numbers is a row of the grid. Lines starting with a letter are
+	 * header lines, of which "global_map[0]: width height" gives the size (800 x 800 without it).
+	 * The numbers are parsed from the bytes, without creating strings, and equal what Double.parseDouble() returns.
+	 */
+	public static double[][] parse(byte[] text) throws IOException {
+		int width = DEFAULT_SIZE;
+		int height = DEFAULT_SIZE;
+		double[][] values = null;
+		int row = 0;
+		int pos = 0;
+
+		while (pos < text.length) {
+			int lineEnd = pos;
+			while (lineEnd < text.length && text[lineEnd] != '\n') {
+				lineEnd++;
+			}
+			int first = skipSpaces(text, pos, lineEnd);
+			if (first < lineEnd && Character.isLetter(text[first])) {
+				String header = new String(text, first, lineEnd - first, "US-ASCII").trim();
+				if (header.startsWith("global_map[0]:")) {
+					String[] size = header.substring("global_map[0]:".length()).trim().split("\\s+");
+					width = Integer.parseInt(size[0]);
+					height = Integer.parseInt(size[1]);
+				}
+			} else if (first < lineEnd) {
+				if (values == null) {
+					values = new double[width][height];
+				}
+				if (row >= values.length) {
+					throw new IOException("The map has more than " + values.length + " rows");
+				}
+				double[] rowValues = values[row++];
+				int col = 0;
+				int p = first;
+				while (p < lineEnd) {
+					int tokenEnd = p;
+					while (tokenEnd < lineEnd && text[tokenEnd] > ' ') {
+						tokenEnd++;
+					}
+					if (col >= rowValues.length) {
+						throw new IOException("Row " + (row - 1) + " of the map has more than " + rowValues.length + " values");
+					}
+					rowValues[col++] = parseNumber(text, p, tokenEnd);
+					p = skipSpaces(text, tokenEnd, lineEnd);
+				}
+			}
+			pos = lineEnd + 1;
+		}
+		if (values == null || row != values.length) {
+			throw new IOException("The map has " + row + " rows instead of " + width);
+		}
+		return values;
+	}
+
+	private static int skipSpaces(byte[] text, int pos, int end) {
+		while (pos < end && text[pos] <= ' ') {
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * Parses a decimal number such as "-1.000" or "0.25" in text[from, to). With up to 15 digits, the digits make
+	 * an exact integer, and a single (correctly rounded) division by a power of ten gives the nearest double.
+	 */
+	private static double parseNumber(byte[] text, int from, int to) throws IOException {
+		int p = from;
+		boolean negative = text[p] == '-';
+		if (negative || text[p] == '+') {
+			p++;
+		}
+		long digits = 0;
+		int numDigits = 0;
+		int fractionDigits = -1;
+		for (; p < to; p++) {
+			byte c = text[p];
+			if (c >= '0' && c <= '9') {
+				digits = digits * 10 + (c - '0');
+				numDigits++;
+				if (fractionDigits >= 0) {
+					fractionDigits++;
+				}
+			} else if (c == '.' && fractionDigits < 0) {
+				fractionDigits = 0;
+			} else {
+				break;
+			}
+		}
+		if (p != to || numDigits == 0 || numDigits > 15) {
+			// Not a plain decimal number (e.g. an exponent): leave it to the JDK
+			try {
+				return Double.parseDouble(new String(text, from, to - from, "US-ASCII"));
+			} catch (NumberFormatException e) {
+				throw new IOException("Not a number in the map: " + new String(text, from, to - from, "US-ASCII"));
+			}
+		}
+		double value = fractionDigits > 0 ? digits / POWERS_OF_TEN[fractionDigits] : digits;
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Reads the cached grid, or returns null if there is no cache for a map file of this length and hash.
+	 */
+	private static double[][] readCache(Path cachePath, long sourceLength, long hash) throws IOException {
+		if (!Files.exists(cachePath)) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(cachePath, StandardOpenOption.READ)) {
+			if (channel.size() < CACHE_HEADER_BYTES) {
+				return null;
+			}
+			ByteBuffer header = ByteBuffer.allocate(CACHE_HEADER_BYTES);
+			readFully(channel, header);
+			if (header.getInt() != CACHE_MAGIC || header.getLong() != sourceLength || header.getLong() != hash) {
+				return null;
+			}
+			int width = header.getInt();
+			int height = header.getInt();
+			if (channel.size() != CACHE_HEADER_BYTES + (long) width * height * Double.BYTES) {
+				return null;
+			}
+
+			ByteBuffer data = ByteBuffer.allocateDirect(width * height * Double.BYTES);
+			readFully(channel, data);
+			DoubleBuffer doubles = data.asDoubleBuffer();
+			double[][] values = new double[width][height];
+			for (double[] row : values) {
+				doubles.get(row);
+			}
+			return values;
+		}
+	}
+
+	/**
+	 * Fills the buffer from the channel and flips it for reading.
+	 */
+	private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("The map cache ended early");
+			}
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Writes the grid to the cache; a map in a read-only directory simply stays uncached.
+	 */
+	private void writeCache(Path cachePath, long sourceLength, long hash) {
+		int width = globalMapValues.length;
+		int height = globalMapValues[0].length;
+		ByteBuffer buffer = ByteBuffer.allocate(CACHE_HEADER_BYTES + width * height * Double.BYTES);
+		buffer.putInt(CACHE_MAGIC).putLong(sourceLength).putLong(hash).putInt(width).putInt(height);
+		for (double[] row : globalMapValues) {
+			buffer.asDoubleBuffer().put(row);
+			buffer.position(buffer.position() + height * Double.BYTES);
+		}
+		buffer.flip();
+
+		Path tempPath = cachePath.resolveSibling(cachePath.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch (IOException e) {
+			System.out.println("Could not cache the map in " + cachePath + ": " + e);
+			return;
+		}
+		try {
+			Files.move(tempPath, cachePath, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			System.out.println("Could not cache the map in " + cachePath + ": " + e);
+		}
 	}
 }
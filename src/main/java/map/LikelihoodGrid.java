@@ -0,0 +1,172 @@
+package map;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.stream.IntStream;
+
+/**
+ * A likelihood field of the map for correlative scan matching (see mcl.CorrelativeScanMatcher), with coarser levels
+ * for branch and bound.
+ * <p>
+ * Level 0 holds for every 10 cm cell how well a laser beam ending in it fits the map: exp(-d^2 / (2 sigma^2)), where d
+ * is the distance to the nearest obstacle, or 0 beyond 3 sigma. Obstacles are the known cells which the ray casting
+ * stops at (a value below OBSTACLE_MAX_VALUE); unknown cells are not, so that beams leaving the map score nothing.
+ * <p>
+ * Level h holds at (x, y) the maximum of level 0 over the 2^h x 2^h cells from (x, y) on. The sum of level h over
+ * the beam endpoints is thus an upper bound of the sum of level 0 for every shift of the endpoints within such a
+ * block (Hess, Kohler, Rapp and Andor, Real-time loop closure in 2D LIDAR SLAM, 2016). All levels keep the full
+ * resolution, as float arrays of width x height.
+ * <p>
+ * The grid only depends on the map, sigma and the number of levels, so it can be kept in an ArtifactCache (see fromCache()).
+ */
+public class LikelihoodGrid {
+	public static final String ARTIFACT_TYPE = "likelihood-grid";
+	public static final int ARTIFACT_VERSION = 1;				// bump when the field changes
+	public static final int CELL_SIZE = 10;						// cm per cell
+	private static final double OBSTACLE_MAX_VALUE = 0.7;		// as MIN_VAL_FREE_SPACE of the ray casting
+
+	private final int width;
+	private final int height;
+	private final float[][] levels;								// [level][x * height + y]
+
+	/**
+	 * Writes and reads a grid for an ArtifactCache.
+	 */
+	public static final ArtifactCache.Codec<LikelihoodGrid> CODEC = new ArtifactCache.Codec<>() {
+		@Override
+		public void write(LikelihoodGrid grid, DataOutputStream out) throws IOException {
+			out.writeInt(grid.width);
+			out.writeInt(grid.height);
+			out.writeInt(grid.levels.length);
+			for (float[] level : grid.levels) {
+				ArtifactCache.writeFloats(out, level);
+			}
+		}
+
+		@Override
+		public LikelihoodGrid read(DataInputStream in) throws IOException {
+			int width = in.readInt();
+			int height = in.readInt();
+			float[][] levels = new float[in.readInt()][width * height];
+			for (float[] level : levels) {
+				ArtifactCache.readFloats(in, level);
+			}
+			return new LikelihoodGrid(width, height, levels);
+		}
+	};
+
+	/**
+	 * Computes the likelihood field of a map and its coarser levels.
+	 *
+	 * @param map		the map
+	 * @param sigma		the standard deviation of the distance from a beam endpoint to the obstacle it hit, in cm
+	 * @param numLevels	the number of levels including level 0
+	 */
+	public LikelihoodGrid(GlobalMap map, double sigma, int numLevels) {
+		this.width = map.globalMapValues.length;
+		this.height = map.globalMapValues[0].length;
+		this.levels = new float[numLevels][];
+
+		// Stamp a Gaussian kernel around every obstacle, keeping the largest value of each cell
+		int radius = (int) Math.ceil(3 * sigma / CELL_SIZE);
+		float[] kernel = new float[(2 * radius + 1) * (2 * radius + 1)];
+		for (int dx = -radius; dx <= radius; dx++) {
+			for (int dy = -radius; dy <= radius; dy++) {
+				double distance = Math.hypot(dx, dy) * CELL_SIZE;
+				kernel[(dx + radius) * (2 * radius + 1) + dy + radius] = distance > 3 * sigma ? 0 : (float) Math.exp(-distance * distance / (2 * sigma * sigma));
+			}
+		}
+		float[] field = new float[width * height];
+		IntStream.range(0, width).parallel().forEach(x -> {
+			for (int y = 0; y < height; y++) {
+				float max = 0;
+				for (int ox = Math.max(x - radius, 0); ox <= Math.min(x + radius, width - 1); ox++) {
+					for (int oy = Math.max(y - radius, 0); oy <= Math.min(y + radius, height - 1); oy++) {
+						double value = map.globalMapValues[ox][oy];
+						if (value >= 0 && value < OBSTACLE_MAX_VALUE) {
+							max = Math.max(max, kernel[(ox - x + radius) * (2 * radius + 1) + oy - y + radius]);
+						}
+					}
+				}
+				field[x * height + y] = max;
+			}
+		});
+		levels[0] = field;
+
+		// Every level takes the maximum of four blocks of the level below
+		for (int level = 1; level < numLevels; level++) {
+			float[] below = levels[level - 1];
+			float[] current = new float[width * height];
+			int half = 1 << (level - 1);
+			for (int x = 0; x < width; x++) {
+				for (int y = 0; y < height; y++) {
+					float max = below[x * height + y];
+					if (x + half < width) {
+						max = Math.max(max, below[(x + half) * height + y]);
+					}
+					if (y + half < height) {
+						max = Math.max(max, below[x * height + y + half]);
+					}
+					if (x + half < width && y + half < height) {
+						max = Math.max(max, below[(x + half) * height + y + half]);
+					}
+					current[x * height + y] = max;
+				}
+			}
+			levels[level] = current;
+		}
+	}
+
+	private LikelihoodGrid(int width, int height, float[][] levels) {
+		this.width = width;
+		this.height = height;
+		this.levels = levels;
+	}
+
+	/**
+	 * Returns the likelihood field of a map from the artifact cache, computing and caching it on a miss.
+	 */
+	public static LikelihoodGrid fromCache(ArtifactCache cache, GlobalMap map, double sigma, int numLevels) {
+		String parameters = String.format("sigma=%s,levels=%d", sigma, numLevels);
+		return cache.get(map, ARTIFACT_TYPE, ARTIFACT_VERSION, parameters, CODEC, () -> new LikelihoodGrid(map, sigma, numLevels));
+	}
+
+	/**
+	 * Returns the value of a cell at a level, or 0 outside of the map
+	 */
+	public float getValue(int level, int x, int y) {
+		if (x < 0 || y < 0 || x >= width || y >= height) {
+			return 0;
+		}
+		return levels[level][x * height + y];
+	}
+
+	/**
+	 * Returns the value of level 0 at a position in cm, interpolated bilinearly between the centers of the cells
+	 */
+	public double interpolate(double xPosition, double yPosition) {
+		double u = xPosition / CELL_SIZE - 0.5;
+		double v = yPosition / CELL_SIZE - 0.5;
+		int x = (int) Math.floor(u);
+		int y = (int) Math.floor(v);
+		double fx = u - x;
+		double fy = v - y;
+		return (1 - fx) * ((1 - fy) * getValue(0, x, y) + fy * getValue(0, x, y + 1))
+				+ fx * ((1 - fy) * getValue(0, x + 1, y) + fy * getValue(0, x + 1, y + 1));
+	}
+
+	/**
+	 * Returns the number of levels including level 0
+	 */
+	public int getNumLevels() {
+		return levels.length;
+	}
+
+	/**
+	 * Defines the format of string to be printed out
+	 */
+	public String toString() {
+		return String.format("%d x %d cells, %d levels, %.1f MB", width, height, levels.length, (long) levels.length * width * height * Float.BYTES / 1e6);
+	}
+}
@@ -4,7 +4,10 @@ import java.awt.*;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.image.BufferedImage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
 
 import java.util.List;
 
@@ -18,12 +21,37 @@ import mcl.Particle;
  * A helper class used to visualize the map of Wean hall, particles, and laser readings.
  */
 public class Plot extends JPanel{
+	private static final String IMAGE_ARTIFACT_TYPE = "map-image";
+	private static final int IMAGE_ARTIFACT_VERSION = 1;
+
+	/**
+	 * Writes and reads the pixels of the map image for an ArtifactCache.
+	 */
+	private static final ArtifactCache.Codec<BufferedImage> IMAGE_CODEC = new ArtifactCache.Codec<>() {
+		@Override
+		public void write(BufferedImage image, DataOutputStream out) throws IOException {
+			out.writeInt(image.getWidth());
+			out.writeInt(image.getHeight());
+			ArtifactCache.writeInts(out, image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth()));
+		}
+
+		@Override
+		public BufferedImage read(DataInputStream in) throws IOException {
+			int width = in.readInt();
+			int height = in.readInt();
+			int[] pixels = new int[width * height];
+			ArtifactCache.readInts(in, pixels);
+			BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			image.setRGB(0, 0, width, height, pixels, 0, width);
+			return image;
+		}
+	};
 	
 	private GlobalMap globalMap;
 	private JFrame frame;
 	private BufferedImage mapImage;
 	private Observation observation;
-	private Particle robot;
+	private double[] robotPose;
 	private List<Particle> particles;
 	private int greyscale;
 	private int size;
@@ -33,6 +61,13 @@ public class Plot extends JPanel{
 	
 	
 	public Plot(GlobalMap map, int drawMax, boolean drawLogPose) {
+		this(map, drawMax, drawLogPose, null);
+	}
+
+	/**
+	 * @param cache	the artifact cache which holds the rendered map image, or null to render it every time
+	 */
+	public Plot(GlobalMap map, int drawMax, boolean drawLogPose, ArtifactCache cache) {
 		this.drawLoggedPose = drawLogPose;
 		this.drawMax = drawMax;
 		this.globalMap = map;
@@ -47,19 +82,10 @@ public class Plot extends JPanel{
 		
 		// Create a 800 x 800 grey scale map image
 		size = 800;
-		mapImage = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
-		
-		for (int i = 0; i < size; i++) {
-			for (int j = 0; j < size; j++) {
-				double value = Double.parseDouble(globalMap.globalMapValues[i][j]);
-				if (value < 0) {
-					greyscale = 0;
-				} else {
-					greyscale = (int) (value * 255);
-				}
-				Color newColor = new Color(greyscale, greyscale, greyscale);	// either (0, 0, 0) or (255, 255, 255)
-				mapImage.setRGB(i, j, newColor.getRGB());
-			}
+		if (cache != null) {
+			mapImage = cache.get(map, IMAGE_ARTIFACT_TYPE, IMAGE_ARTIFACT_VERSION, "size=" + size, IMAGE_CODEC, this::renderMap);
+		} else {
+			mapImage = renderMap();
 		}
 		
 		frame = new JFrame();
@@ -83,6 +109,27 @@ public class Plot extends JPanel{
 //	    });
 	}
 	
+	/**
+	 * Renders the map in grey scale
+	 */
+	private BufferedImage renderMap() {
+		BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+		
+		for (int i = 0; i < size; i++) {
+			for (int j = 0; j < size; j++) {
+				double value = globalMap.globalMapValues[i][j];
+				if (value < 0) {
+					greyscale = 0;
+				} else {
+					greyscale = (int) (value * 255);
+				}
+				Color newColor = new Color(greyscale, greyscale, greyscale);	// either (0, 0, 0) or (255, 255, 255)
+				image.setRGB(i, j, newColor.getRGB());
+			}
+		}
+		return image;
+	}
+	
 	/**
 	 * Updates the plot such that the current list of particles are drawn with the particle having the largest weight
 	 * showing up as a dot with a different color. Also, the laser readings spanning 180 degrees will also be plotted. 
@@ -92,16 +139,27 @@ public class Plot extends JPanel{
 	 * @param particles		the current list of particles
 	 */
 	public void updatePlot(Observation observation, List<Particle> particles) {
+		// particleList is sorted according to particle weights. Pick the most probable particle.
+		updatePlot(observation, particles, particles.get(particles.size() - 1).getPose());
+	}
+	
+	/**
+	 * Updates the plot such that the current list of particles are drawn with the estimated pose of the robot
+	 * showing up as a dot with a different color. Also, the laser readings spanning 180 degrees will also be plotted. 
+	 * Note that when (drawLoggedPose == true), then we directly plot the pose recorded in the log file.
+	 *  
+	 * @param observation	an Observation object associated with a single time step
+	 * @param particles		the current list of particles
+	 * @param estimatedPose	the estimated pose of the robot {x, y, theta}
+	 */
+	public void updatePlot(Observation observation, List<Particle> particles, double[] estimatedPose) {
 		this.observation = observation;
 		this.particles = particles;
-		
-		// particleList is sorted according to particle weights. Pick the most probable particle.
-		robot = particles.get(particles.size() - 1);
+		this.robotPose = estimatedPose;
 		
 		// Or, simply draw the current pose in log
 		if (drawLoggedPose) {
-			robot = robot.clone();
-			robot.setPose(observation.robotPose);
+			robotPose = observation.robotPose;
 		}
 		repaint();
 		saveFig();
@@ -148,10 +206,10 @@ public class Plot extends JPanel{
 		 * hence, subtract PI/2 and draw lines by incrementing PI/180 radians.
 		 */
 		g.setColor(new Color(255, 0, 100));
-		int x = (int) robot.getPose()[0];
-		int y = (int) robot.getPose()[1];
+		int x = (int) robotPose[0];
+		int y = (int) robotPose[1];
 		if (observation.dataType.equals("L")) {
-			double laserTheta = robot.getPose()[2] - Math.PI / 2;
+			double laserTheta = robotPose[2] - Math.PI / 2;
 			for (double reading: observation.laserReadings) {
 				int xt = x + (int) (reading * Math.cos(laserTheta));
 				int yt = y + (int) (reading * Math.sin(laserTheta));
@@ -0,0 +1,119 @@
+package mcl;
+
+/**
+ * The recovery of augmented MCL (Thrun, Burgard and Fox, Probabilistic Robotics, Table 8.3): random particles are
+ * injected when the scans fit the particles much worse than they used to, as after a wrong convergence.
+ * <p>
+ * The filter passes the average likelihood of every scan, sum_i w_i p(z | x_i) over the weights before the scan,
+ * to update(). It is smoothed with a short-term (alphaFast) and a long-term (alphaSlow) exponential filter, and at
+ * every resampling, each new particle is drawn uniformly from the free space instead with probability
+ * max(0, 1 - w_fast / w_slow). The averages are kept as logarithms. The filter passes the log likelihood per beam
+ * (divided by Sensor.NUM_BINS): the likelihood of a whole scan swings by many orders of magnitude from one scan to
+ * the next, which would keep w_fast far below w_slow most of the time.
+ */
+public class AugmentedMcl {
+	private final double alphaSlow;
+	private final double alphaFast;
+
+	private double logSlow = Double.NaN;						// log w_slow, NaN until the first scan
+	private double logFast = Double.NaN;						// log w_fast
+	private int numUpdates;
+	private int numInjected;
+
+	/**
+	 * @param alphaSlow	the decay rate of the long-term average, e.g. 0.001
+	 * @param alphaFast	the decay rate of the short-term average, e.g. 0.1 (0 <= alphaSlow << alphaFast)
+	 */
+	public AugmentedMcl(double alphaSlow, double alphaFast) {
+		this.alphaSlow = alphaSlow;
+		this.alphaFast = alphaFast;
+	}
+
+	/**
+	 * Adds the logarithm of the average likelihood of a scan to the averages (-infinity if no particle fits it),
+	 * in whatever scale the filter uses consistently.
+	 */
+	public void update(double logAverageLikelihood) {
+		if (Double.isNaN(logAverageLikelihood)) {
+			return;
+		}
+		if (numUpdates == 0) {
+			logSlow = logAverageLikelihood;
+			logFast = logAverageLikelihood;
+		} else {
+			logSlow = logMix(logSlow, logAverageLikelihood, alphaSlow);
+			logFast = logMix(logFast, logAverageLikelihood, alphaFast);
+		}
+		numUpdates++;
+	}
+
+	/**
+	 * Forgets the averages, e.g. once the particles have been seeded anew
+	 */
+	public void reset() {
+		numUpdates = 0;
+		logSlow = Double.NaN;
+		logFast = Double.NaN;
+	}
+
+	/**
+	 * Returns the averages and counters, {logSlow, logFast, numUpdates, numInjected}, for a checkpoint
+	 */
+	double[] getState() {
+		return new double[] {logSlow, logFast, numUpdates, numInjected};
+	}
+
+	/**
+	 * Restores the averages and counters returned by getState()
+	 */
+	void restore(double[] state) {
+		logSlow = state[0];
+		logFast = state[1];
+		numUpdates = (int) state[2];
+		numInjected = (int) state[3];
+	}
+
+	/**
+	 * Returns log((1 - alpha) exp(logAverage) + alpha exp(logValue))
+	 */
+	private static double logMix(double logAverage, double logValue, double alpha) {
+		double a = Math.log1p(-alpha) + logAverage;
+		double b = Math.log(alpha) + logValue;
+		double max = Math.max(a, b);
+		if (max == Double.NEGATIVE_INFINITY) {
+			return max;
+		}
+		return max + Math.log(Math.exp(a - max) + Math.exp(b - max));
+	}
+
+	/**
+	 * Returns the probability max(0, 1 - w_fast / w_slow) with which a resampled particle is replaced by a random one
+	 */
+	public double getInjectionProbability() {
+		if (numUpdates == 0 || logSlow == Double.NEGATIVE_INFINITY) {
+			return 0;
+		}
+		return Math.max(0, 1 - Math.exp(logFast - logSlow));
+	}
+
+	/**
+	 * Counts particles injected by the filter
+	 */
+	void countInjected(int count) {
+		numInjected += count;
+	}
+
+	/**
+	 * Returns the number of random particles injected so far
+	 */
+	public int getNumInjected() {
+		return numInjected;
+	}
+
+	/**
+	 * Defines the format of string to be printed out
+	 */
+	public String toString() {
+		return String.format("%d random particles injected over %d scans (alpha_slow=%s, alpha_fast=%s)", numInjected, numUpdates, alphaSlow, alphaFast);
+	}
+}
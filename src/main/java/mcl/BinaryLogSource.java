@@ -0,0 +1,89 @@
+package mcl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Publishes the observations of a binary log written by write(), which is read without parsing any text.
+ * <p>
+ * The file starts with MAGIC, followed by one record per observation: the type ('O' or 'L') as a byte, the timestamp,
+ * and the robot pose as doubles; an "L" record goes on with the laser pose and the 180 readings as doubles.
+ */
+public class BinaryLogSource extends ObservationSource {
+	private static final int MAGIC = 0x4D434C47;					// "MCLG"
+	private static final int NUM_READINGS = 180;
+
+	private final String filePath;
+
+	/**
+	 * @param filePath	the path to the binary log file
+	 */
+	public BinaryLogSource(String filePath) {
+		this.filePath = filePath;
+	}
+
+	/**
+	 * Writes observations (e.g. those of Observation.loadRobotLogData()) to a binary log file.
+	 */
+	public static void write(List<Observation> observations, String filePath) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filePath), 1 << 16))) {
+			out.writeInt(MAGIC);
+			for (Observation observation : observations) {
+				boolean laser = observation.dataType.equals("L");
+				out.writeByte(laser ? 'L' : 'O');
+				out.writeDouble(observation.timeStamp);
+				writeDoubles(out, observation.robotPose);
+				if (laser) {
+					writeDoubles(out, observation.laserPose);
+					writeDoubles(out, observation.laserReadings);
+				}
+			}
+		}
+	}
+
+	private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+		for (double value : values) {
+			out.writeDouble(value);
+		}
+	}
+
+	private static double[] readDoubles(DataInputStream in, int count) throws IOException {
+		double[] values = new double[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = in.readDouble();
+		}
+		return values;
+	}
+
+	@Override
+	protected void produce() throws Exception {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath), 1 << 16))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(filePath + " is not a binary robot log");
+			}
+			while (true) {
+				int type;
+				try {
+					type = in.readByte();
+				} catch (EOFException e) {
+					return;
+				}
+				double timeStamp = in.readDouble();
+				double[] robotPose = readDoubles(in, 3);
+				if (type == 'L') {
+					double[] laserPose = readDoubles(in, 3);
+					emit(new Observation("L", timeStamp, robotPose, laserPose, readDoubles(in, NUM_READINGS)));
+				} else {
+					emit(new Observation("O", timeStamp, robotPose, null, null));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package mcl;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves filter checkpoints to a file on a background thread, so that the filter loop only pays for taking the snapshot.
+ * <p>
+ * At most one checkpoint waits while another one is being written; a newer checkpoint replaces the waiting one,
+ * since only the latest state is worth resuming from.
+ */
+public class CheckpointWriter {
+	private final String filePath;
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * @param filePath	the file to which checkpoints are saved (it is replaced by every checkpoint)
+	 */
+	public CheckpointWriter(String filePath) {
+		this.filePath = filePath;
+		this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1), runnable -> {
+			Thread thread = new Thread(runnable, "checkpoint-writer");
+			thread.setDaemon(true);
+			return thread;
+		}, new ThreadPoolExecutor.DiscardOldestPolicy());
+	}
+
+	/**
+	 * Queues a checkpoint to be saved and returns immediately.
+	 */
+	public void submit(FilterCheckpoint checkpoint) {
+		executor.execute(() -> {
+			try {
+				checkpoint.save(filePath);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Waits until the queued checkpoints are saved and stops the background thread.
+	 */
+	public void close() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the file to which checkpoints are saved
+	 */
+	public String getFilePath() {
+		return filePath;
+	}
+}
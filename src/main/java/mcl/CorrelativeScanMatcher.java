@@ -0,0 +1,285 @@
+package mcl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import map.ArtifactCache;
+import map.GlobalMap;
+import map.LikelihoodGrid;
+import sensor.Sensor;
+
+/**
+ * Refines a pose estimate by correlative scan matching: the pose within a small window around the estimate whose scan
+ * endpoints fit the likelihood field of the map best (Olson, Real-time correlative scan matching, 2009).
+ * <p>
+ * The window is searched at every heading step of the angular window; the step is chosen so that the farthest
+ * endpoint moves by at most one cell. For every heading, the (x, y) shifts are searched by branch and bound over the
+ * levels of the LikelihoodGrid (Hess et al. 2016): the coarsest level bounds the score of a block of shifts, and a
+ * block is only split while its bound beats the best score so far. The search starts from minScore, so a scan which
+ * fits nowhere in the window costs little and leaves the estimate as it is.
+ * <p>
+ * The score of a pose is the mean likelihood over the endpoints, minus linearPenalty per meter and angularPenalty per
+ * radian of correction, which keeps the match from sliding along corridors where the scan cannot tell. The best pose
+ * of the search is on its grid (one cell, and one heading step); it is then refined off the grid by a local search
+ * on the bilinearly interpolated likelihood field, with steps halved REFINE_ITERATIONS times.
+ * <p>
+ * Every scan is matched on its own, so the matches jitter from scan to scan more than the particles do. The correction
+ * is therefore weighted like a Kalman update, var / (var + matchStdDev^2), where var is the position variance of the
+ * estimate: a spread-out belief takes most of the correction, and a tight one little of it.
+ */
+public class CorrelativeScanMatcher {
+	private static final double LASER_OFFSET = 25;			// cm; the laser sensor is placed 25cm ahead of the robot
+	private static final int BEAM_STEP = 2;					// every second reading of a scan is matched
+	private static final int MIN_BEAMS = 20;				// scans with fewer usable readings are not matched
+	private static final int REFINE_ITERATIONS = 4;			// halvings of the steps of the local search off the grid
+	
+	// The settings of forMap() and fromCache()
+	private static final double FIELD_SIGMA = 20;			// cm
+	private static final int FIELD_LEVELS = 4;				// blocks of up to 8 x 8 cells
+	private static final double LINEAR_WINDOW = 50;			// cm
+	private static final double ANGULAR_WINDOW = 0.1;		// radians
+	private static final double MIN_SCORE = 0.3;
+	private static final double LINEAR_PENALTY = 0.2;		// per meter
+	private static final double ANGULAR_PENALTY = 0.5;		// per radian
+	private static final double MATCH_STD_DEV = 10;			// cm
+
+	private final LikelihoodGrid grid;
+	private final int windowCells;
+	private final double angularWindow;
+	private final double minScore;
+	private final double linearPenalty;
+	private final double angularPenalty;
+	private final double matchStdDev;
+
+	private int numScans;
+	private int numRefined;
+	private long numNodes;
+	private long matchNanos;
+	private double sumCorrection;
+	private double sumGain;
+
+	/**
+	 * A block of (x, y) shifts at a heading, of 2^level x 2^level cells from (x, y) on
+	 */
+	private static class Node {
+		final int heading;
+		final int x;
+		final int y;
+		final int level;
+		final double score;
+
+		Node(int heading, int x, int y, int level, double score) {
+			this.heading = heading;
+			this.x = x;
+			this.y = y;
+			this.level = level;
+			this.score = score;
+		}
+	}
+
+	/**
+	 * @param grid				the likelihood field of the map
+	 * @param linearWindow		the largest correction of x and of y in cm
+	 * @param angularWindow		the largest correction of theta in radians
+	 * @param minScore			the smallest score accepted as a match, in [0, 1]
+	 * @param linearPenalty		score subtracted per meter of correction
+	 * @param angularPenalty	score subtracted per radian of correction
+	 * @param matchStdDev		the standard deviation of the position of a match in cm
+	 */
+	public CorrelativeScanMatcher(LikelihoodGrid grid, double linearWindow, double angularWindow, double minScore,
+			double linearPenalty, double angularPenalty, double matchStdDev) {
+		this.grid = grid;
+		this.windowCells = (int) Math.ceil(linearWindow / LikelihoodGrid.CELL_SIZE);
+		this.angularWindow = angularWindow;
+		this.minScore = minScore;
+		this.linearPenalty = linearPenalty;
+		this.angularPenalty = angularPenalty;
+		this.matchStdDev = matchStdDev;
+	}
+
+	/**
+	 * Returns a matcher for a map with the settings which work on the Wean hall logs: a +-50 cm, +-0.1 rad window 
+	 * over a likelihood field with sigma = 20 cm. Computing the field takes a few hundred milliseconds.
+	 */
+	public static CorrelativeScanMatcher forMap(GlobalMap map) {
+		return new CorrelativeScanMatcher(new LikelihoodGrid(map, FIELD_SIGMA, FIELD_LEVELS), LINEAR_WINDOW, ANGULAR_WINDOW,
+				MIN_SCORE, LINEAR_PENALTY, ANGULAR_PENALTY, MATCH_STD_DEV);
+	}
+
+	/**
+	 * Returns the matcher of forMap(), with the likelihood field taken from the artifact cache (computed and cached on a miss)
+	 */
+	public static CorrelativeScanMatcher fromCache(ArtifactCache cache, GlobalMap map) {
+		return new CorrelativeScanMatcher(LikelihoodGrid.fromCache(cache, map, FIELD_SIGMA, FIELD_LEVELS), LINEAR_WINDOW, ANGULAR_WINDOW,
+				MIN_SCORE, LINEAR_PENALTY, ANGULAR_PENALTY, MATCH_STD_DEV);
+	}
+
+	/**
+	 * Returns the estimate corrected towards the best match of a scan around it, or the estimate itself if no pose in
+	 * the window scores minScore. The covariance and the confidence of the estimate are kept.
+	 *
+	 * @param estimate		the pose estimate of the filter
+	 * @param laserReadings	the 180 readings of the scan
+	 */
+	public PoseEstimate refine(PoseEstimate estimate, double[] laserReadings) {
+		long start = System.nanoTime();
+		numScans++;
+
+		// The readings within range, as (range, angle relative to the robot)
+		List<double[]> beams = new ArrayList<>();
+		double maxRange = 0;
+		for (int i = 0; i < laserReadings.length; i += BEAM_STEP) {
+			if (laserReadings[i] > 0 && laserReadings[i] < Sensor.MAX_LASER_RANGE) {
+				beams.add(new double[] {laserReadings[i], i * Math.PI / 180 - Math.PI / 2});
+				maxRange = Math.max(maxRange, laserReadings[i] + LASER_OFFSET);
+			}
+		}
+		if (beams.size() < MIN_BEAMS) {
+			matchNanos += System.nanoTime() - start;
+			return estimate;
+		}
+
+		// Turn the farthest endpoint by at most one cell per heading step
+		double cell = LikelihoodGrid.CELL_SIZE;
+		double angularStep = Math.acos(1 - cell * cell / (2 * maxRange * maxRange));
+		int numSteps = (int) Math.ceil(angularWindow / angularStep);
+
+		// The endpoint cells of the scan at every heading, for the robot at the estimate
+		int numHeadings = 2 * numSteps + 1;
+		int[][] endpointX = new int[numHeadings][beams.size()];
+		int[][] endpointY = new int[numHeadings][beams.size()];
+		for (int k = 0; k < numHeadings; k++) {
+			double theta = estimate.theta + (k - numSteps) * angularStep;
+			double laserX = estimate.x + LASER_OFFSET * Math.cos(theta);
+			double laserY = estimate.y + LASER_OFFSET * Math.sin(theta);
+			for (int j = 0; j < beams.size(); j++) {
+				double[] beam = beams.get(j);
+				endpointX[k][j] = (int) Math.floor((laserX + beam[0] * Math.cos(theta + beam[1])) / cell);
+				endpointY[k][j] = (int) Math.floor((laserY + beam[0] * Math.sin(theta + beam[1])) / cell);
+			}
+		}
+
+		// The coarsest blocks which cover the window at every heading, best first
+		int topLevel = grid.getNumLevels() - 1;
+		List<Node> roots = new ArrayList<>();
+		for (int k = 0; k < numHeadings; k++) {
+			for (int x = -windowCells; x <= windowCells; x += 1 << topLevel) {
+				for (int y = -windowCells; y <= windowCells; y += 1 << topLevel) {
+					roots.add(scoreNode(k, x, y, topLevel, endpointX, endpointY, numSteps, angularStep));
+				}
+			}
+		}
+		roots.sort((a, b) -> Double.compare(b.score, a.score));
+
+		// Depth-first branch and bound
+		Node best = null;
+		double bestScore = minScore;
+		List<Node> stack = new ArrayList<>();
+		for (int r = roots.size() - 1; r >= 0; r--) {
+			stack.add(roots.get(r));
+		}
+		while (!stack.isEmpty()) {
+			Node node = stack.remove(stack.size() - 1);
+			if (node.score <= bestScore) {
+				continue;
+			}
+			if (node.level == 0) {
+				best = node;
+				bestScore = node.score;
+				continue;
+			}
+			int half = 1 << (node.level - 1);
+			List<Node> children = new ArrayList<>(4);
+			for (int x = node.x; x < node.x + 2 * half && x <= windowCells; x += half) {
+				for (int y = node.y; y < node.y + 2 * half && y <= windowCells; y += half) {
+					children.add(scoreNode(node.heading, x, y, node.level - 1, endpointX, endpointY, numSteps, angularStep));
+				}
+			}
+			children.sort((a, b) -> Double.compare(a.score, b.score));
+			stack.addAll(children);
+		}
+		if (best == null) {
+			matchNanos += System.nanoTime() - start;
+			return estimate;
+		}
+
+		// Refine the best pose of the grid by a local search which halves its steps
+		double[] correction = {best.x * cell, best.y * cell, (best.heading - numSteps) * angularStep};
+		double score = interpolatedScore(estimate, correction, beams);
+		double[] steps = {cell / 2, cell / 2, angularStep / 2};
+		for (int iteration = 0; iteration < REFINE_ITERATIONS; iteration++) {
+			boolean improved = true;
+			while (improved) {
+				improved = false;
+				for (int d = 0; d < 3; d++) {
+					for (int sign = -1; sign <= 1; sign += 2) {
+						double[] candidate = correction.clone();
+						candidate[d] += sign * steps[d];
+						double candidateScore = interpolatedScore(estimate, candidate, beams);
+						if (candidateScore > score) {
+							correction = candidate;
+							score = candidateScore;
+							improved = true;
+						}
+					}
+				}
+			}
+			for (int d = 0; d < 3; d++) {
+				steps[d] /= 2;
+			}
+		}
+		matchNanos += System.nanoTime() - start;
+		
+		// Weigh the match against the spread of the particles
+		double variance = estimate.covariance[0][0] + estimate.covariance[1][1];
+		double gain = Double.isNaN(variance) ? 1 : variance / (variance + matchStdDev * matchStdDev);
+		sumGain += gain;
+		numRefined++;
+		sumCorrection += gain * Math.hypot(correction[0], correction[1]);
+		return new PoseEstimate(estimate.x + gain * correction[0], estimate.y + gain * correction[1], estimate.theta + gain * correction[2], 
+				estimate.covariance, estimate.confidence);
+	}
+
+	/**
+	 * Returns the score of a correction {dx, dy, dtheta} of the estimate on the interpolated likelihood field
+	 */
+	private double interpolatedScore(PoseEstimate estimate, double[] correction, List<double[]> beams) {
+		double theta = estimate.theta + correction[2];
+		double laserX = estimate.x + correction[0] + LASER_OFFSET * Math.cos(theta);
+		double laserY = estimate.y + correction[1] + LASER_OFFSET * Math.sin(theta);
+		double sum = 0;
+		for (double[] beam : beams) {
+			sum += grid.interpolate(laserX + beam[0] * Math.cos(theta + beam[1]), laserY + beam[0] * Math.sin(theta + beam[1]));
+		}
+		double penalty = linearPenalty * Math.hypot(correction[0], correction[1]) / 100 + angularPenalty * Math.abs(correction[2]);
+		return sum / beams.size() - penalty;
+	}
+
+	/**
+	 * Scores a block of shifts at a level: the mean likelihood over the endpoints minus the smallest penalty of the block
+	 */
+	private Node scoreNode(int heading, int x, int y, int level, int[][] endpointX, int[][] endpointY, int numSteps, double angularStep) {
+		numNodes++;
+		int[] xs = endpointX[heading];
+		int[] ys = endpointY[heading];
+		double sum = 0;
+		for (int j = 0; j < xs.length; j++) {
+			sum += grid.getValue(level, xs[j] + x, ys[j] + y);
+		}
+		int size = 1 << level;
+		double nearestX = Math.max(0, Math.max(x, -(x + size - 1)));
+		double nearestY = Math.max(0, Math.max(y, -(y + size - 1)));
+		double shift = Math.hypot(nearestX, nearestY) * LikelihoodGrid.CELL_SIZE / 100;
+		double penalty = linearPenalty * shift + angularPenalty * Math.abs(heading - numSteps) * angularStep;
+		return new Node(heading, x, y, level, sum / xs.length - penalty);
+	}
+
+	/**
+	 * Defines the format of string to be printed out
+	 */
+	public String toString() {
+		return String.format("%d of %d scans matched, mean correction %.1f cm (weight %.2f), %.0f nodes and %.2f ms per scan", numRefined,
+				numScans, numRefined > 0 ? sumCorrection / numRefined : 0, numRefined > 0 ? sumGain / numRefined : 0,
+				numScans > 0 ? (double) numNodes / numScans : 0, numScans > 0 ? matchNanos / 1e6 / numScans : 0);
+	}
+}
@@ -0,0 +1,115 @@
+package mcl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+import java.util.random.RandomGenerator;
+
+/**
+ * The dual proposal of Mixture-MCL (Thrun, Fox, Burgard and Dellaert, Robust Monte Carlo localization for mobile
+ * robots, 2001): a share of the particles is drawn from the scan, x ~ p(z | x), and weighted by how probable the
+ * predicted belief finds them, instead of the other way round.
+ * <p>
+ * Sampling poses from p(z | x) directly needs an inverse sensor model, which this code does not have; it is
+ * approximated by importance sampling: numCandidates poses are drawn uniformly from the free space and weighted by
+ * the likelihood of the scan. The predicted belief is a histogram of the particles over DENSITY_CELL_SIZE cells,
+ * plus a floor so that poses which the belief has missed altogether (e.g. after a wrong convergence) can still be
+ * drawn. The dual particles are drawn from the candidates in proportion to likelihood x belief, by systematic
+ * resampling.
+ */
+public class DualProposal {
+	private static final double DENSITY_CELL_SIZE = 50;			// cm
+	private static final double DENSITY_FLOOR = 1e-3;			// belief density of a cell without particles
+
+	private final double fraction;
+	private final int numCandidates;
+	private int numDrawn;
+
+	/**
+	 * @param fraction		the share of the resampled particles which is drawn from the dual proposal, e.g. 0.1
+	 * @param numCandidates	the number of random poses weighted by the scan at every resampling
+	 */
+	public DualProposal(double fraction, int numCandidates) {
+		this.fraction = fraction;
+		this.numCandidates = numCandidates;
+	}
+
+	/**
+	 * Returns the share of the resampled particles which is drawn from the dual proposal
+	 */
+	public double getFraction() {
+		return fraction;
+	}
+
+	/**
+	 * Draws particles from the dual proposal.
+	 *
+	 * @param belief			particles of the predicted belief (their weights are ignored)
+	 * @param count				the number of particles to draw
+	 * @param scanLogLikelihood	the log likelihood of the current scan at the pose of a particle
+	 * @param random			the source of the candidate poses and of the resampling
+	 * @return					count new particles with unit weights
+	 */
+	List<Particle> sample(List<Particle> belief, int count, ToDoubleFunction<Particle> scanLogLikelihood, RandomGenerator random) {
+		List<Particle> drawn = new ArrayList<>(count);
+		if (count <= 0 || belief.isEmpty()) {
+			return drawn;
+		}
+		Map<Long, Integer> histogram = new HashMap<>();
+		for (Particle p : belief) {
+			histogram.merge(cellKey(p), 1, Integer::sum);
+		}
+
+		// Weight random poses by the scan and by the belief
+		List<Particle> candidates = new ArrayList<>(numCandidates);
+		double[] logWeights = new double[numCandidates];
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < numCandidates; i++) {
+			Particle candidate = new Particle(random);
+			double density = histogram.getOrDefault(cellKey(candidate), 0) / (double) belief.size();
+			logWeights[i] = scanLogLikelihood.applyAsDouble(candidate) + Math.log(density + DENSITY_FLOOR);
+			max = Math.max(max, logWeights[i]);
+			candidates.add(candidate);
+		}
+		if (max == Double.NEGATIVE_INFINITY || Double.isNaN(max)) {
+			return drawn;
+		}
+
+		// Systematic resampling of the candidates
+		double[] weights = new double[numCandidates];
+		double total = 0;
+		for (int i = 0; i < numCandidates; i++) {
+			weights[i] = Double.isNaN(logWeights[i]) ? 0 : Math.exp(logWeights[i] - max);
+			total += weights[i];
+		}
+		double increment = total / count;
+		double pointer = random.nextDouble() * increment;
+		double cumulative = weights[0];
+		int i = 0;
+		for (int slot = 0; slot < count; slot++) {
+			while (pointer >= cumulative && i < numCandidates - 1) {
+				i++;
+				cumulative += weights[i];
+			}
+			double[] pose = candidates.get(i).getPose();
+			drawn.add(new Particle(pose[0], pose[1], pose[2], 0, 1.0));
+			pointer += increment;
+		}
+		numDrawn += count;
+		return drawn;
+	}
+
+	private static long cellKey(Particle p) {
+		double[] pose = p.getPose();
+		return ((long) Math.floor(pose[0] / DENSITY_CELL_SIZE) << 32) ^ (long) Math.floor(pose[1] / DENSITY_CELL_SIZE);
+	}
+
+	/**
+	 * Defines the format of string to be printed out
+	 */
+	public String toString() {
+		return String.format("%d particles drawn from the scan (%.0f%% of every resampling, %d candidates)", numDrawn, 100 * fraction, numCandidates);
+	}
+}
@@ -0,0 +1,241 @@
+package mcl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A snapshot of the complete state of a MonteCarloLocalization run between two time steps.
+ * <p>
+ * It holds the particles (in list order), the state of MonteCarloLocalization.RANDOM and of the motion noise stream,
+ * the index of the next observation, the previous logged robot pose, the coarse-to-fine level, the resampling
+ * counters, the recorded trajectory and the effective sample sizes so far, and the accumulators of the motion gate
+ * and the likelihood averages of augmented MCL and the last correction of the scan matcher if they are enabled. Restoring it and running on gives exactly the same results as the uninterrupted run.
+ * <p>
+ * The binary format is a magic number and a version followed by the fields in the order of write(); all numbers
+ * are big-endian as written by DataOutputStream. A snapshot is immutable, so it can be written by another thread.
+ */
+public final class FilterCheckpoint {
+	private static final int MAGIC = 0x4D434C43;				// "MCLC"
+	private static final int VERSION = 4;						// 2: motion gate, 3: augmented MCL, 4: scan matching
+
+	final int numParticle;
+	final int numObservations;
+	final int timeIndex;										// index of the next observation to process
+	final int resolutionLevel;
+	final double[] prevLoggedRobotPose;						// null before the first step
+	final ParticleColumns particles;
+	final long randomState;
+	final double randomNextGaussian;							// NaN if no Gaussian sample is cached
+	final long noiseSeed;
+	final long noiseGamma;
+	final double currentEss;
+	final int numResamplings;
+	final int numScheduledResamplings;
+	final List<double[]> trackedPosition;
+	final double[] effectiveSampleSizes;
+	final double[] gateState;									// see MotionGate.getState(); null without a motion gate
+	final double[] recoveryState;								// see AugmentedMcl.getState(); null without augmented MCL
+	final double[] scanMatchCorrection;						// {dx, dy, dtheta} of the last scan; null without scan matching
+
+	FilterCheckpoint(int numParticle, int numObservations, int timeIndex, int resolutionLevel, double[] prevLoggedRobotPose,
+			ParticleColumns particles, long randomState, double randomNextGaussian, long noiseSeed, long noiseGamma,
+			double currentEss, int numResamplings, int numScheduledResamplings, List<double[]> trackedPosition,
+			double[] effectiveSampleSizes, double[] gateState, double[] recoveryState, double[] scanMatchCorrection) {
+		this.numParticle = numParticle;
+		this.numObservations = numObservations;
+		this.timeIndex = timeIndex;
+		this.resolutionLevel = resolutionLevel;
+		this.prevLoggedRobotPose = prevLoggedRobotPose;
+		this.particles = particles;
+		this.randomState = randomState;
+		this.randomNextGaussian = randomNextGaussian;
+		this.noiseSeed = noiseSeed;
+		this.noiseGamma = noiseGamma;
+		this.currentEss = currentEss;
+		this.numResamplings = numResamplings;
+		this.numScheduledResamplings = numScheduledResamplings;
+		this.trackedPosition = trackedPosition;
+		this.effectiveSampleSizes = effectiveSampleSizes;
+		this.gateState = gateState;
+		this.recoveryState = recoveryState;
+		this.scanMatchCorrection = scanMatchCorrection;
+	}
+
+	/**
+	 * Returns the index of the observation the restored run continues with
+	 */
+	public int getTimeIndex() {
+		return timeIndex;
+	}
+
+	/**
+	 * Returns new Particle objects with the poses and weights of the snapshot, in the same order
+	 */
+	List<Particle> createParticles() {
+		List<Particle> list = new ArrayList<>(particles.size());
+		for (int i = 0; i < particles.size(); i++) {
+			list.add(new Particle(particles.getX(i), particles.getY(i), particles.getTheta(i),
+					particles.getLogWeight(i), particles.getWeight(i)));
+		}
+		return list;
+	}
+
+	/**
+	 * Writes the snapshot in the binary format.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(numParticle);
+		out.writeInt(numObservations);
+		out.writeInt(timeIndex);
+		out.writeInt(resolutionLevel);
+		writeOptionalDoubles(out, prevLoggedRobotPose);
+
+		int n = particles.size();
+		out.writeInt(n);
+		for (int i = 0; i < n; i++) {
+			out.writeDouble(particles.getX(i));
+			out.writeDouble(particles.getY(i));
+			out.writeDouble(particles.getTheta(i));
+			out.writeDouble(particles.getLogWeight(i));
+			out.writeDouble(particles.getWeight(i));
+		}
+
+		out.writeLong(randomState);
+		out.writeDouble(randomNextGaussian);
+		out.writeLong(noiseSeed);
+		out.writeLong(noiseGamma);
+		out.writeDouble(currentEss);
+		out.writeInt(numResamplings);
+		out.writeInt(numScheduledResamplings);
+
+		out.writeInt(trackedPosition.size());
+		for (double[] trace : trackedPosition) {
+			writeDoubles(out, trace);
+		}
+		writeDoubles(out, effectiveSampleSizes);
+		writeOptionalDoubles(out, gateState);
+		writeOptionalDoubles(out, recoveryState);
+		writeOptionalDoubles(out, scanMatchCorrection);
+	}
+
+	/**
+	 * Reads a snapshot written by write().
+	 */
+	public static FilterCheckpoint read(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a filter checkpoint");
+		}
+		int version = in.readInt();
+		if (version != VERSION) {
+			throw new IOException(String.format("Unsupported checkpoint version %d (expected %d)", version, VERSION));
+		}
+		int numParticle = in.readInt();
+		int numObservations = in.readInt();
+		int timeIndex = in.readInt();
+		int resolutionLevel = in.readInt();
+		double[] prevLoggedRobotPose = readOptionalDoubles(in);
+
+		int n = in.readInt();
+		ParticleColumns particles = new ParticleColumns(n);
+		particles.setSize(n);
+		for (int i = 0; i < n; i++) {
+			particles.setPose(i, in.readDouble(), in.readDouble(), in.readDouble());
+			particles.setLogWeight(i, in.readDouble());
+			particles.setWeight(i, in.readDouble());
+		}
+
+		long randomState = in.readLong();
+		double randomNextGaussian = in.readDouble();
+		long noiseSeed = in.readLong();
+		long noiseGamma = in.readLong();
+		double currentEss = in.readDouble();
+		int numResamplings = in.readInt();
+		int numScheduledResamplings = in.readInt();
+
+		int numTraces = in.readInt();
+		List<double[]> trackedPosition = new ArrayList<>(numTraces);
+		for (int i = 0; i < numTraces; i++) {
+			trackedPosition.add(readDoubles(in));
+		}
+		double[] effectiveSampleSizes = readDoubles(in);
+		double[] gateState = readOptionalDoubles(in);
+		double[] recoveryState = readOptionalDoubles(in);
+		double[] scanMatchCorrection = readOptionalDoubles(in);
+
+		return new FilterCheckpoint(numParticle, numObservations, timeIndex, resolutionLevel, prevLoggedRobotPose,
+				particles, randomState, randomNextGaussian, noiseSeed, noiseGamma, currentEss, numResamplings,
+				numScheduledResamplings, trackedPosition, effectiveSampleSizes, gateState, recoveryState,
+				scanMatchCorrection);
+	}
+
+	/**
+	 * Saves the snapshot to a file. It is first written next to the file and then moved over it,
+	 * so that a crash while saving never leaves a truncated checkpoint behind.
+	 */
+	public void save(String filePath) throws IOException {
+		File file = new File(filePath);
+		File tempFile = new File(filePath + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+			write(out);
+		}
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Loads a snapshot saved by save().
+	 */
+	public static FilterCheckpoint load(String filePath) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath)))) {
+			return read(in);
+		}
+	}
+
+	private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+		out.writeInt(values.length);
+		for (int i = 0; i < values.length; i++) {
+			out.writeDouble(values[i]);
+		}
+	}
+
+	private static double[] readDoubles(DataInputStream in) throws IOException {
+		double[] values = new double[in.readInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.readDouble();
+		}
+		return values;
+	}
+
+	/**
+	 * Writes a flag and, unless the values are null, the values
+	 */
+	private static void writeOptionalDoubles(DataOutputStream out, double[] values) throws IOException {
+		out.writeBoolean(values != null);
+		if (values != null) {
+			writeDoubles(out, values);
+		}
+	}
+
+	private static double[] readOptionalDoubles(DataInputStream in) throws IOException {
+		return in.readBoolean() ? readDoubles(in) : null;
+	}
+
+	/**
+	 * Defines the format of string to be printed out
+	 */
+	public String toString() {
+		return String.format("checkpoint at t=%d/%d, %d particles, level %d", timeIndex, numObservations,
+				particles.size(), resolutionLevel);
+	}
+}
@@ -0,0 +1,43 @@
+package mcl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of one time step of the filter, as handed to the sinks of the pipeline (see StepSink).
+ * <p>
+ * The filter moves on to the next step while the sinks work on this one, so the particles are copies taken at the
+ * end of the step; at most a given number of them are copied (evenly picked), as only so many are drawn.
+ */
+public class FilterStep {
+	public final int timeIndex;
+	public final Observation observation;
+	public final PoseEstimate estimate;
+	public final int numParticles;
+	public final double ess;
+	public final List<Particle> particles;
+
+	FilterStep(int timeIndex, Observation observation, PoseEstimate estimate, int numParticles, double ess, List<Particle> particles) {
+		this.timeIndex = timeIndex;
+		this.observation = observation;
+		this.estimate = estimate;
+		this.numParticles = numParticles;
+		this.ess = ess;
+		this.particles = particles;
+	}
+
+	/**
+	 * Copies up to maxParticles of the particles, evenly picked
+	 */
+	static List<Particle> copyParticles(List<Particle> particles, int maxParticles) {
+		int numCopies = Math.min(maxParticles, particles.size());
+		List<Particle> copies = new ArrayList<>(numCopies);
+		for (int i = 0; i < numCopies; i++) {
+			Particle p = particles.get((int) ((long) i * particles.size() / numCopies));
+			double[] pose = p.getPose();
+			copies.add(new Particle(pose[0], pose[1], pose[2], p.getLogWeight(), p.getWeight()));
+		}
+		return Collections.unmodifiableList(copies);
+	}
+}
@@ -0,0 +1,229 @@
+package mcl;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Collects the health of the filter (pose estimate, particle count, ESS, stage latencies, steps/sec) on the filter
+ * thread and publishes it as immutable snapshots for other threads, such as the TelemetryServer.
+ * <p>
+ * The filter thread marks the end of every stage of a step with mark(); a stage's latency is the time since the
+ * previous mark. The latencies of the last LATENCY_WINDOW steps are kept in one ring per stage, which only the filter
+ * thread touches. At most once per publish period, endStep() turns them into percentiles, copies a downsampled
+ * particle cloud and replaces the published Snapshot with a single atomic store; readers never take a lock and never
+ * see a half-built snapshot, and the filter never waits for them. A stage that a mode does not mark (e.g. the
+ * motion update of the island filter, which runs on its own threads) is counted in the next stage that is marked.
+ */
+public class FilterTelemetry {
+	public static final int MOTION = 0;
+	public static final int SENSOR = 1;
+	public static final int RESAMPLE = 2;
+	public static final int ESTIMATE = 3;
+	public static final int REPORT = 4;
+	public static final String[] STAGE_NAMES = {"motion", "sensor", "resample", "estimate", "report", "step"};
+	private static final int STEP = 5;								// the whole step, from beginStep() to endStep()
+	private static final int LATENCY_WINDOW = 256;					// steps over which the percentiles are computed
+	private static final double[] PERCENTILES = {50, 90, 99};
+
+	private final int maxCloudParticles;
+	private final long publishPeriodNanos;
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+
+	// Only touched by the filter thread
+	private final long[][] latencies = new long[STAGE_NAMES.length][LATENCY_WINDOW];
+	private final int[] numLatencies = new int[STAGE_NAMES.length];
+	private long stepStart;
+	private long lastMark;
+	private long lastPublish;
+	private long numSteps;
+	private long numStepsAtLastPublish;
+	private long sequence;
+
+	/**
+	 * @param maxCloudParticles		the number of particles in the published cloud (evenly picked from all particles)
+	 * @param publishPeriodMillis	the minimum time between two snapshots
+	 */
+	public FilterTelemetry(int maxCloudParticles, long publishPeriodMillis) {
+		this.maxCloudParticles = maxCloudParticles;
+		this.publishPeriodNanos = publishPeriodMillis * 1000000L;
+	}
+
+	/**
+	 * Starts timing a step
+	 */
+	public void beginStep() {
+		stepStart = System.nanoTime();
+		lastMark = stepStart;
+		if (lastPublish == 0) {
+			lastPublish = stepStart;
+		}
+	}
+
+	/**
+	 * Ends a stage of the current step (MOTION, SENSOR, ...), which took the time since the previous mark.
+	 */
+	public void mark(int stage) {
+		long now = System.nanoTime();
+		record(stage, now - lastMark);
+		lastMark = now;
+	}
+
+	private void record(int stage, long nanos) {
+		latencies[stage][numLatencies[stage] % LATENCY_WINDOW] = nanos;
+		numLatencies[stage]++;
+	}
+
+	/**
+	 * Ends the current step, and publishes a new snapshot if the last one is older than the publish period.
+	 *
+	 * @param timeIndex		the number of time steps processed so far
+	 * @param timeStamp		the timestamp of the observation of the step
+	 * @param estimate		the pose estimate of the step
+	 * @param numParticles	the number of particles of the filter
+	 * @param ess			the effective sample size of the weights
+	 * @param particles		the particles to draw the cloud from (possibly a subset of all particles)
+	 */
+	public void endStep(int timeIndex, double timeStamp, PoseEstimate estimate, int numParticles, double ess, List<Particle> particles) {
+		long now = System.nanoTime();
+		record(STEP, now - stepStart);
+		numSteps++;
+		if (now - lastPublish < publishPeriodNanos && sequence > 0) {
+			return;
+		}
+
+		double[][] stagePercentiles = new double[STAGE_NAMES.length][];
+		for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+			stagePercentiles[stage] = percentiles(stage);
+		}
+		double stepsPerSecond = (numSteps - numStepsAtLastPublish) / ((now - lastPublish) / 1e9);
+
+		// Pick every k-th particle, so that the cloud covers all of them
+		int numCloud = Math.min(maxCloudParticles, particles.size());
+		float[] cloud = new float[3 * numCloud];
+		for (int i = 0; i < numCloud; i++) {
+			double[] pose = particles.get((int) ((long) i * particles.size() / numCloud)).getPose();
+			cloud[3 * i] = (float) pose[0];
+			cloud[3 * i + 1] = (float) pose[1];
+			cloud[3 * i + 2] = (float) pose[2];
+		}
+
+		snapshot.set(new Snapshot(++sequence, timeIndex, timeStamp, estimate, numParticles, ess, stepsPerSecond,
+				numSteps, stagePercentiles, cloud));
+		lastPublish = now;
+		numStepsAtLastPublish = numSteps;
+	}
+
+	/**
+	 * Returns the PERCENTILES of the latencies of a stage in ms, or null if the stage has not been marked
+	 */
+	private double[] percentiles(int stage) {
+		int count = Math.min(numLatencies[stage], LATENCY_WINDOW);
+		if (count == 0) {
+			return null;
+		}
+		long[] sorted = Arrays.copyOf(latencies[stage], count);
+		Arrays.sort(sorted);
+		double[] result = new double[PERCENTILES.length];
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			int rank = (int) Math.ceil(PERCENTILES[i] / 100 * count) - 1;
+			result[i] = sorted[Math.max(rank, 0)] / 1e6;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the latest snapshot, or null before the first step has ended
+	 */
+	public Snapshot getSnapshot() {
+		return snapshot.get();
+	}
+
+	/**
+	 * An immutable view of the filter after one step. The JSON is only built by the threads which ask for it.
+	 */
+	public static final class Snapshot {
+		public final long sequence;
+		public final int timeIndex;
+		public final double timeStamp;
+		public final PoseEstimate estimate;
+		public final int numParticles;
+		public final double ess;
+		public final double stepsPerSecond;
+		public final long numSteps;
+		private final double[][] stagePercentiles;				// [stage][p50, p90, p99] in ms, null if not marked
+		private final float[] cloud;							// {x, y, theta} of the sampled particles
+
+		Snapshot(long sequence, int timeIndex, double timeStamp, PoseEstimate estimate, int numParticles, double ess,
+				double stepsPerSecond, long numSteps, double[][] stagePercentiles, float[] cloud) {
+			this.sequence = sequence;
+			this.timeIndex = timeIndex;
+			this.timeStamp = timeStamp;
+			this.estimate = estimate;
+			this.numParticles = numParticles;
+			this.ess = ess;
+			this.stepsPerSecond = stepsPerSecond;
+			this.numSteps = numSteps;
+			this.stagePercentiles = stagePercentiles;
+			this.cloud = cloud;
+		}
+
+		/**
+		 * Returns the status as a JSON object: the pose estimate, the particle count, the ESS, steps/sec and
+		 * the latency percentiles of every stage in ms
+		 */
+		public String statusJson() {
+			StringBuilder json = new StringBuilder(512);
+			json.append("{\"sequence\":").append(sequence)
+				.append(",\"timeIndex\":").append(timeIndex)
+				.append(",\"timestamp\":").append(number(timeStamp))
+				.append(",\"pose\":{\"x\":").append(number(estimate.x))
+				.append(",\"y\":").append(number(estimate.y))
+				.append(",\"theta\":").append(number(estimate.theta))
+				.append(",\"std\":").append(number(estimate.getPositionStdDev()))
+				.append(",\"confidence\":").append(number(estimate.confidence))
+				.append("},\"particles\":").append(numParticles)
+				.append(",\"ess\":").append(number(ess))
+				.append(",\"stepsPerSecond\":").append(number(stepsPerSecond))
+				.append(",\"steps\":").append(numSteps)
+				.append(",\"latencyMs\":{");
+			boolean first = true;
+			for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+				double[] p = stagePercentiles[stage];
+				if (p == null) {
+					continue;
+				}
+				json.append(first ? "" : ",").append('"').append(STAGE_NAMES[stage]).append("\":{");
+				for (int i = 0; i < PERCENTILES.length; i++) {
+					json.append(i == 0 ? "" : ",").append("\"p").append((int) PERCENTILES[i]).append("\":").append(number(p[i]));
+				}
+				json.append('}');
+				first = false;
+			}
+			return json.append("}}").toString();
+		}
+
+		/**
+		 * Returns the particle cloud as a JSON object {"sequence", "timeIndex", "particles": [[x, y, theta], ...]}
+		 */
+		public String cloudJson() {
+			StringBuilder json = new StringBuilder(64 + cloud.length * 8);
+			json.append("{\"sequence\":").append(sequence)
+				.append(",\"timeIndex\":").append(timeIndex)
+				.append(",\"particles\":[");
+			for (int i = 0; i < cloud.length; i += 3) {
+				json.append(i == 0 ? "[" : ",[").append(Math.round(cloud[i] * 10) / 10.0)
+					.append(',').append(Math.round(cloud[i + 1] * 10) / 10.0)
+					.append(',').append(Math.round(cloud[i + 2] * 1000) / 1000.0).append(']');
+			}
+			return json.append("]}").toString();
+		}
+
+		/**
+		 * JSON has no NaN or infinity
+		 */
+		private static String number(double value) {
+			return Double.isFinite(value) ? Double.toString(value) : "null";
+		}
+	}
+}
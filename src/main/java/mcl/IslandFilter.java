@@ -0,0 +1,484 @@
+package mcl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import noise.NoiseStream;
+import odometry.MotionUpdate;
+import odometry.Odometry;
+import sensor.Sensor;
+
+/**
+ * An island-model particle filter: the particles are split into independent sub-filters (islands), each of which
+ * moves, weights and resamples its own particles on its own thread, so no step waits for all particles.
+ * <p>
+ * Islands never wait for each other. Every exchangePeriod steps, an island sends a fraction of its particles (drawn
+ * according to their weights) to the next island of a ring through a lock-free queue, and takes in whatever has
+ * arrived from the previous one. A migrant sent at an earlier step is first moved by the controls of the steps it
+ * missed; one sent at a later step waits in the queue until the receiver gets there. Migrants replace the lightest
+ * particles of the receiver and get its mean weight.
+ * <p>
+ * After every step, an island publishes a summary: its pose estimate, its ESS and its recent evidence, i.e. the
+ * exponential moving average of the log likelihood of the observations under its particles. The global estimate
+ * merges the island estimates around the most probable one. An island none of whose particles explains an
+ * observation has lost track; it starts over from uniformly spread particles. Only the consumer of the global estimates waits for the slowest
+ * island, and islands run at most MAX_LEAD steps ahead of it.
+ */
+public class IslandFilter {
+	private static final double RESAMPLE_ESS_RATIO = 0.5;		// resample an island when its ESS / N drops below this ratio
+	private static final double EVIDENCE_DECAY = 0.9;			// smoothing factor of the log evidence per laser step
+	private static final double MERGE_DISTANCE = 100;			// island estimates this close (cm) to the best one are merged
+	private static final int MAX_LEAD = 64;						// steps an island may run ahead of the consumer
+	private static final long PARK_NANOS = 50_000;
+
+	private final MonteCarloLocalization mcl;					// provides the weighting of particles
+	private final int exchangePeriod;
+	private final double exchangeFraction;
+	private final Island[] islands;
+
+	private List<Observation> observations;
+	private MotionUpdate[] motions;								// the motion of every step, shared by all islands
+	private volatile int consumedStep = -1;
+	private volatile boolean stopped = false;
+
+	private List<Particle> particles = new ArrayList<>();		// all particles of the latest consumed step
+	private double effectiveSampleSize;
+
+	/**
+	 * A batch of particles sent from one island to the next, with the step after which it was taken.
+	 */
+	private static final class Migration {
+		final int step;
+		final ParticleColumns particles;
+
+		Migration(int step, ParticleColumns particles) {
+			this.step = step;
+			this.particles = particles;
+		}
+	}
+
+	/**
+	 * What an island publishes after every step.
+	 */
+	private static final class Summary {
+		final int step;
+		final PoseEstimate estimate;
+		final double logEvidence;
+		final double ess;
+		final ParticleColumns particles;						// a snapshot for plotting
+
+		Summary(int step, PoseEstimate estimate, double logEvidence, double ess, ParticleColumns particles) {
+			this.step = step;
+			this.estimate = estimate;
+			this.logEvidence = logEvidence;
+			this.ess = ess;
+			this.particles = particles;
+		}
+	}
+
+	/**
+	 * @param mcl				the filter whose sensor model and likelihood scale weight the particles
+	 * @param numParticle		the total number of particles, split evenly over the islands
+	 * @param numIslands		the number of islands (and threads)
+	 * @param exchangePeriod	the number of steps between two exchanges
+	 * @param exchangeFraction	the fraction of an island's particles sent to the next island at every exchange
+	 * @param seed				the seed of the islands' random number streams
+	 */
+	public IslandFilter(MonteCarloLocalization mcl, int numParticle, int numIslands, int exchangePeriod,
+			double exchangeFraction, long seed) {
+		if (numIslands < 1 || numParticle < numIslands) {
+			throw new IllegalArgumentException(String.format("Cannot split %d particles over %d islands", numParticle, numIslands));
+		}
+		if (exchangePeriod < 1 || exchangeFraction < 0 || exchangeFraction > 1) {
+			throw new IllegalArgumentException("The exchange period must be positive and the fraction in [0, 1]");
+		}
+		this.mcl = mcl;
+		this.exchangePeriod = exchangePeriod;
+		this.exchangeFraction = exchangeFraction;
+
+		NoiseStream[] streams = new NoiseStream(seed).split(numIslands);
+		this.islands = new Island[numIslands];
+		for (int i = 0; i < numIslands; i++) {
+			int size = numParticle / numIslands + (i < numParticle % numIslands ? 1 : 0);
+			islands[i] = new Island(i, size, streams[i]);
+		}
+	}
+
+	/**
+	 * Starts the islands on a log. The motion update prepared by the odometry model must be thread-safe.
+	 *
+	 * @param observations		the logged observations
+	 * @param odometryModel		the odometry model which moves the particles
+	 * @param sensorModel		the sensor model, which every island forks
+	 */
+	void start(List<Observation> observations, Odometry odometryModel, Sensor sensorModel) {
+		this.observations = observations;
+		this.motions = new MotionUpdate[observations.size()];
+		double[] prevPose = observations.isEmpty() ? null : observations.get(0).robotPose;
+		for (int t = 0; t < motions.length; t++) {
+			double[] pose = observations.get(t).robotPose;
+			double[] control = new double[pose.length];
+			for (int i = 0; i < pose.length; i++) {
+				control[i] = pose[i] - prevPose[i];
+			}
+			motions[t] = odometryModel.prepareMotion(prevPose, control);
+			prevPose = pose;
+		}
+
+		for (Island island : islands) {
+			island.start(sensorModel.fork());
+		}
+	}
+
+	/**
+	 * Waits until every island has finished the given step and returns the global pose estimate of that step.
+	 * Steps must be requested in increasing order.
+	 */
+	PoseEstimate awaitEstimate(int step) {
+		Summary[] summaries = new Summary[islands.length];
+		for (int i = 0; i < islands.length; i++) {
+			summaries[i] = islands[i].awaitSummary(step);
+		}
+		consumedStep = step;
+
+		particles = new ArrayList<>();
+		effectiveSampleSize = 0;
+		for (Summary summary : summaries) {
+			ParticleColumns columns = summary.particles;
+			for (int i = 0; i < columns.size(); i++) {
+				particles.add(new Particle(columns.getX(i), columns.getY(i), columns.getTheta(i),
+						columns.getLogWeight(i), columns.getWeight(i)));
+			}
+			effectiveSampleSize += summary.ess;
+		}
+		return mergeEstimates(summaries);
+	}
+
+	/**
+	 * Merges the island estimates, weighting every island by its evidence.
+	 */
+	private static PoseEstimate mergeEstimates(Summary[] summaries) {
+		PoseEstimate[] estimates = new PoseEstimate[summaries.length];
+		double[] logEvidence = new double[summaries.length];
+		for (int i = 0; i < summaries.length; i++) {
+			estimates[i] = summaries[i].estimate;
+			logEvidence[i] = summaries[i].logEvidence;
+		}
+		return PoseEstimator.merge(estimates, logEvidence, MERGE_DISTANCE);
+	}
+
+	/**
+	 * Returns the particles of all islands at the latest step passed to awaitEstimate()
+	 */
+	List<Particle> getParticles() {
+		return particles;
+	}
+
+	/**
+	 * Returns the sum of the islands' effective sample sizes at the latest step passed to awaitEstimate()
+	 */
+	double getEffectiveSampleSize() {
+		return effectiveSampleSize;
+	}
+
+	/**
+	 * Stops the islands and waits for their threads to end.
+	 */
+	void stop() {
+		stopped = true;
+		for (Island island : islands) {
+			island.join();
+		}
+	}
+
+	/**
+	 * Returns the number of islands
+	 */
+	public int getNumIslands() {
+		return islands.length;
+	}
+
+	/**
+	 * Returns how many times the islands have resampled so far, in total
+	 */
+	public int getNumResamplings() {
+		int count = 0;
+		for (Island island : islands) {
+			count += island.numResamplings;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns how many particles the islands have taken in from their neighbours so far, in total
+	 */
+	public int getNumMigrants() {
+		int count = 0;
+		for (Island island : islands) {
+			count += island.numImmigrants;
+		}
+		return count;
+	}
+
+	/**
+	 * Defines the format of string to be printed out
+	 */
+	public String toString() {
+		return String.format("%d islands, exchanging %.0f%% every %d steps: %d migrants, %d resamplings",
+				islands.length, 100 * exchangeFraction, exchangePeriod, getNumMigrants(), getNumResamplings());
+	}
+
+	/**
+	 * A sub-filter with its own particles, random number stream, sensor model and thread.
+	 */
+	private final class Island implements Runnable {
+		private final int index;
+		private final int size;
+		private final NoiseStream random;
+		private final PoseEstimator poseEstimator = new PoseEstimator();
+		private final ParticleColumns columns = new ParticleColumns(0);
+		private final ConcurrentLinkedQueue<Migration> inbox = new ConcurrentLinkedQueue<>();
+		private final ConcurrentLinkedQueue<Summary> summaries = new ConcurrentLinkedQueue<>();
+
+		private Sensor sensor;
+		private Thread thread;
+		private volatile Throwable failure = null;
+
+		private List<Particle> particles;
+		private double logEvidence = 0;
+		private double ess;
+		private volatile int numResamplings = 0;
+		private volatile int numImmigrants = 0;
+
+		Island(int index, int size, NoiseStream random) {
+			this.index = index;
+			this.size = size;
+			this.random = random;
+		}
+
+		void start(Sensor sensor) {
+			this.sensor = sensor;
+			this.thread = new Thread(this, "mcl-island-" + index);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				particles = createParticles();
+				ess = size;
+				for (int t = 0; t < observations.size() && !stopped; t++) {
+					while (t - consumedStep > MAX_LEAD && !stopped) {
+						LockSupport.parkNanos(PARK_NANOS);
+					}
+					step(t);
+				}
+			} catch (Throwable e) {
+				failure = e;
+			}
+		}
+
+		/**
+		 * Runs one step of the filter on the island's particles and publishes its summary.
+		 */
+		private void step(int t) {
+			Observation observation = observations.get(t);
+			boolean hasLaser = observation.dataType.equals("L");
+			double logMassBefore = hasLaser ? logSumExp(particles) : 0;
+
+			// Move the particles and only keep those with valid positions
+			columns.load(particles);
+			motions[t].apply(columns, 0, columns.size(), random);
+			List<Particle> candidates = new ArrayList<>(particles.size());
+			for (int i = 0; i < particles.size(); i++) {
+				Particle p = particles.get(i);
+				p.setPose(columns.getX(i), columns.getY(i), columns.getTheta(i));
+				if (p.isValidPosition()) {
+					candidates.add(p);
+				}
+			}
+
+			// Weight, update the evidence by the likelihood of the observation, and resample locally if needed
+			if (hasLaser && !candidates.isEmpty()) {
+				for (Particle p : candidates) {
+					mcl.updateWeight(sensor, p, observation.laserReadings);
+				}
+				double logMassAfter = logSumExp(candidates);
+				if (logMassAfter == Double.NEGATIVE_INFINITY) {
+					candidates.clear();
+					logEvidence = Double.NEGATIVE_INFINITY;
+				} else {
+					double logLikelihood = logMassAfter - logMassBefore;
+					logEvidence = logEvidence == Double.NEGATIVE_INFINITY ? logLikelihood
+							: EVIDENCE_DECAY * logEvidence + (1 - EVIDENCE_DECAY) * logLikelihood;
+					ess = mcl.normalizeLogWeights(candidates);
+					if (ess < RESAMPLE_ESS_RATIO * size) {
+						candidates = resample(candidates, size, true);
+						numResamplings++;
+						ess = size;
+					}
+				}
+			}
+			// Start over when no particle is left
+			if (candidates.isEmpty()) {
+				candidates = createParticles();
+				ess = size;
+			}
+			particles = candidates;
+
+			// Exchange particles with the neighbours on the ring
+			if (islands.length > 1) {
+				immigrate(t);
+				if ((t + 1) % exchangePeriod == 0) {
+					emigrate(t);
+				}
+			}
+
+			ParticleColumns snapshot = new ParticleColumns(particles.size());
+			snapshot.load(particles);
+			summaries.offer(new Summary(t, poseEstimator.estimate(particles), logEvidence, ess, snapshot));
+		}
+
+		/**
+		 * Sends copies of some particles, drawn according to their weights, to the next island.
+		 */
+		private void emigrate(int t) {
+			int count = (int) Math.round(exchangeFraction * particles.size());
+			if (count == 0) {
+				return;
+			}
+			List<Particle> emigrants = resample(particles, count, false);
+			ParticleColumns batch = new ParticleColumns(count);
+			batch.load(emigrants);
+			islands[(index + 1) % islands.length].inbox.offer(new Migration(t, batch));
+		}
+
+		/**
+		 * Takes in the migrants which have been sent up to step t; they replace the lightest particles.
+		 */
+		private void immigrate(int t) {
+			Migration migration;
+			while ((migration = inbox.peek()) != null && migration.step <= t) {
+				inbox.poll();
+				ParticleColumns batch = migration.particles;
+				for (int s = migration.step + 1; s <= t; s++) {
+					motions[s].apply(batch, 0, batch.size(), random);
+				}
+
+				double meanLogWeight = logSumExp(particles) - Math.log(particles.size());
+				double meanWeight = 0;
+				for (Particle p : particles) {
+					meanWeight += p.getWeight();
+				}
+				meanWeight /= particles.size();
+
+				Collections.sort(particles);
+				int replaced = 0;
+				for (int i = 0; i < batch.size() && replaced < particles.size(); i++) {
+					Particle migrant = new Particle(batch.getX(i), batch.getY(i), batch.getTheta(i), meanLogWeight, meanWeight);
+					if (migrant.isValidPosition()) {
+						particles.set(replaced++, migrant);
+					}
+				}
+				numImmigrants += replaced;
+			}
+		}
+
+		/**
+		 * Systematic resampling of count particles. With reuseFirst, the first copy of a particle is the particle
+		 * itself; further copies are perturbed. The returned particles have their weights reset.
+		 */
+		private List<Particle> resample(List<Particle> source, int count, boolean reuseFirst) {
+			double totalWeight = 0;
+			for (Particle p : source) {
+				totalWeight += p.getWeight();
+			}
+			List<Particle> resampled = new ArrayList<>(count);
+			double increment = totalWeight / count;
+			double u = random.nextDouble() * increment;
+			double cumulative = source.get(0).getWeight();
+			int i = 0;
+			int lastIndex = -1;
+			for (int slot = 0; slot < count; slot++) {
+				while (u >= cumulative && i < source.size() - 1) {
+					i++;
+					cumulative += source.get(i).getWeight();
+				}
+				Particle p = source.get(i);
+				if (i == lastIndex || !reuseFirst) {
+					p = p.copy();
+					if (i == lastIndex) {
+						p.perturb(random);
+					}
+				}
+				p.setLogWeight(0);
+				p.setWeight(1.0);
+				resampled.add(p);
+				lastIndex = i;
+				u += increment;
+			}
+			return resampled;
+		}
+
+		private List<Particle> createParticles() {
+			List<Particle> created = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				created.add(new Particle(random));
+			}
+			return created;
+		}
+
+		/**
+		 * Waits for the summary of the given step.
+		 */
+		Summary awaitSummary(int step) {
+			Summary summary;
+			while ((summary = summaries.poll()) == null) {
+				if (failure != null) {
+					throw new IllegalStateException("Island " + index + " failed", failure);
+				}
+				if (!thread.isAlive() && summaries.isEmpty()) {
+					throw new IllegalStateException("Island " + index + " stopped before step " + step);
+				}
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+			if (summary.step != step) {
+				throw new IllegalStateException(String.format("Island %d published step %d, expected %d", index, summary.step, step));
+			}
+			return summary;
+		}
+
+		void join() {
+			if (thread == null) {
+				return;
+			}
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Returns log \sum_i exp(l_i) over the log weights of the particles
+	 */
+	private static double logSumExp(List<Particle> particles) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (Particle p : particles) {
+			max = Math.max(max, p.getLogWeight());
+		}
+		if (max == Double.NEGATIVE_INFINITY) {
+			return max;
+		}
+		double sum = 0;
+		for (Particle p : particles) {
+			sum += Math.exp(p.getLogWeight() - max);
+		}
+		return max + Math.log(sum);
+	}
+}
@@ -0,0 +1,43 @@
+package mcl;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Publishes observations handed over by another thread, e.g. the driver of a live robot, as they come.
+ * The producer calls offer() for every observation and finish() at the end.
+ */
+public class LiveSource extends ObservationSource {
+	private static final Observation END = new Observation("O", 0, null, null, null);
+
+	private final BlockingQueue<Observation> queue;
+
+	/**
+	 * @param capacity	the number of observations which can wait to be published
+	 */
+	public LiveSource(int capacity) {
+		this.queue = new ArrayBlockingQueue<>(capacity);
+	}
+
+	/**
+	 * Hands over an observation, or returns false if too many are waiting (as a sensor driver would drop it)
+	 */
+	public boolean offer(Observation observation) {
+		return queue.offer(observation);
+	}
+
+	/**
+	 * Ends the source once the observations handed over so far are published
+	 */
+	public void finish() throws InterruptedException {
+		queue.put(END);
+	}
+
+	@Override
+	protected void produce() throws Exception {
+		Observation observation;
+		while ((observation = queue.take()) != END) {
+			emit(observation);
+		}
+	}
+}
@@ -1,10 +1,23 @@
 package mcl;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.random.RandomGenerator;
 
 import map.GlobalMap;
 import map.Plot;
+import noise.CounterStream;
+import noise.NoiseStream;
+import noise.RestorableRandom;
+import odometry.MotionUpdate;
 import odometry.Odometry;
+import sensor.ExpectedReadingPyramid;
+import sensor.ScanSignatureIndex;
 import sensor.Sensor;
 import util.Util;
 
@@ -16,18 +29,88 @@ public class MonteCarloLocalization {
 	
 	public static final double LIKELIHOOD_SCALE = 0.90;				// Scale factor you may want to adjust
 	private static final int RESAMPLE_PERIOD = 10;					// how frequently resample
+	private static final double RESAMPLE_ESS_RATIO = 0.5;			// resample when ESS / N drops below this ratio
+	private static final int COARSE_PARTICLE_FACTOR = 2;			// particles per level of coarse-to-fine localization
+	private static final double PROMOTE_MIN_CONFIDENCE = 0.6;		// move to a finer level when the heaviest cluster
+	private static final double PROMOTE_MAX_STD_CELLS = 3;			// is this confident and this many (coarse) cells wide
+	private static final int PREFETCH_MARGIN_CELLS = 10;			// cells of expected readings to prefetch beyond 2 std of the estimate
 	private static final int MIN_NUM_PARTICLE = 300;				// The minimum number of particles to keep around
+	private static final int MAX_PLOTTED_PARTICLES = 2000;			// particles plotted in the off-heap mode (and copied for the pipeline sinks)
+	private static final int PIPELINE_BUFFER = 16;					// filter steps a pipeline sink may lag behind
+	private static final double SEED_SIGMA_POSITION = 10;			// cm of spread of the particles seeded around a candidate place
+	private static final double SEED_SIGMA_THETA = 0.15;			// radians of spread (about three bins of the expected readings)
+	private static final int SEED_MAX_TRIES = 10;					// draws of a seeded particle before it is put at the candidate itself
+	private static final double KIDNAP_INJECTION_PROBABILITY = 0.5;	// re-seed when augmented MCL would inject this many particles
 	private static final int LOGNUM = 1;							// Use the robotdata1.log file
-	public static final Random RANDOM = new Random(0);				// DO NOT MODIFY THIS
+	public static final Random RANDOM = new RestorableRandom(0);	// DO NOT MODIFY THIS (same sequence as new Random(0))
 	private int numParticle;										// total number of particles
 	private double[] prevLoggedRobotPose;
+	private List<Particle> particles = null;						// the current particles between time steps
+	private int timeIndex = 0;										// the index of the next observation to process
 	
 	private List<Observation> obsList;
 	public List<double[]> trackedPosition = new ArrayList<>();
+	public List<Double> effectiveSampleSizes = new ArrayList<>();	// ESS of the particle weights at every time step
+	
+	private ExpectedReadingPyramid readingPyramid = null;			// coarse-to-fine mode; see setMultiResolution()
+	private int resolutionLevel = 0;
+	
+	private PoseEstimator poseEstimator = new PoseEstimator();
+	private PoseEstimate poseEstimate;
+	
+	private boolean adaptiveResampling = true;						// resample based on ESS rather than every RESAMPLE_PERIOD steps
+	private boolean spatialOrdering = false;						// weight particles in Z-order of their cells; see setSpatialOrdering()
+	private long[] spatialKeys = new long[0];
+	private double currentEss;
+	private int numResamplings;
+	private int numScheduledResamplings;
 	
 	private Plot plotObj = null;
 	private Sensor sensorModel = null;
 	private Odometry odometryModel = null;
+	
+	private ParticleColumns motionColumns = new ParticleColumns(0);	// Reused to move all particles in one batch
+	private NoiseStream motionNoise = new NoiseStream(0);			// Noise stream of the batched odometry update
+	
+	private TrajectoryEvaluator trajectoryEvaluator = null;		// compares the estimates with ground truth as they come
+	private CheckpointWriter checkpointWriter = null;				// saves a checkpoint every checkpointPeriod steps
+	private int checkpointPeriod;
+	
+	// Deterministic parallel mode; see setParallelism()
+	private static final int DOMAIN_MOTION = 1;						// counter-based random number domains
+	private static final int DOMAIN_RESAMPLE = 2;
+	private static final int DOMAIN_PERTURB = 3;
+	private static final int DOMAIN_RECOVERY = 4;
+	private ParallelRunner parallelRunner = null;
+	private ParallelResampler parallelResampler = null;
+	private int metropolisIterations = 0;							// Metropolis rather than systematic resampling when > 0
+	private long parallelSeed;
+	private ThreadLocal<CounterStream> workerStreams;
+	private ThreadLocal<Sensor> workerSensors;
+	
+	private IslandFilter islandFilter = null;						// island mode; see setIslands()
+	private ShardCoordinator shardCoordinator = null;				// distributed mode; see setSharding()
+	private boolean offHeapParticles = false;						// off-heap mode; see setOffHeapParticles()
+	
+	private boolean preintegration = false;							// defer "O" steps; see setPreintegration()
+	private double preintegrationMaxDistance;
+	private double preintegrationMaxTime;
+	private List<double[]> pendingPoses = new ArrayList<>();		// logged poses since the last processed step
+	private MotionGate motionGate = null;							// skips scans of a robot standing still; see setMotionGate()
+	private FilterTelemetry telemetry = null;						// stage latencies and snapshots; see setTelemetry()
+	private ReplayScheduler replay = null;							// real-time replay; see setRealTimeReplay()
+	private SubmissionPublisher<FilterStep> stepPublisher = null;	// sinks of the pipeline mode; see runPipeline()
+	private volatile boolean pipelineAborted = false;
+	private AugmentedMcl augmentedMcl = null;						// random particle injection; see setAugmentedMcl()
+	private DualProposal dualProposal = null;						// Mixture-MCL; see setDualProposal()
+	private ScanSignatureIndex signatureIndex = null;				// global initialization from the scan; see setGlobalInitialization()
+	private int numSeedCandidates;
+	private boolean seedPending = false;							// seed the particles on the next scan
+	private CorrelativeScanMatcher scanMatcher = null;				// refinement of the estimate; see setScanMatching()
+	private double[] scanMatchCorrection = new double[3];			// correction of the last scan, kept for odometry-only steps
+	private double lastLogSumExp;									// log of the sum of the weights of the last normalization
+	private double pendingDistance;
+	private double pendingSince;
 
 	/**
 	* TODO: since we are not using your Main.java for grading, you should make sure to correctly set 
@@ -55,48 +138,52 @@ public class MonteCarloLocalization {
 	 * 		1) getControlSignal & getLaserReadings -- retrieve the control signal and laser readings
 	 * 		2) updateParticles -- update poses and weights of particles; then, resample particles
 	 * 		3) addParticlesIfNeeded -- apply some additional tricks to prevent early-convergence
-	 * 		4) updatePlot -- plot the current particles on the map
+	 * 		4) estimate -- estimate the pose from the heaviest cluster of particles
+	 * 		5) updatePlot -- plot the current particles and the estimated pose on the map
 	 * 
 	 * *** DO NOT ALTER THE PARAMETER AND RETURN VALUES & TYPES *** 
-	 * @param recordPosition	whether to record the track of the most probable particles
+	 * @param recordPosition	whether to record the track of the estimated poses
 	 * @return 					when recordPosition == true, returns the list of the trace
 	 */
 	public List<double[]> runMonteCarloLocalization(boolean recordPosition) {		
-		// Create initial particles
-		List<Particle> particles = createParticles();
+		validateModes();
+		if (islandFilter != null) {
+			return runIslands(recordPosition);
+		}
+		if (shardCoordinator != null) {
+			return runShards(recordPosition);
+		}
+		if (offHeapParticles) {
+			return runOffHeap(recordPosition);
+		}
 		
-		// Iterate through time steps
-		for (int t = 0; t < obsList.size(); t++) {
-			Observation observation = obsList.get(t);
-			
-			// Get the control signal & laser observations from logged data
-			double[] control = getControlSignal(observation);
-			double[] laserObservations = getLaserReadings(observation);
-			
-			// Run a single iteration of MCL algorithm
-			boolean resample = (observation.dataType.equals("L") && (t+1) % RESAMPLE_PERIOD == 0);
-			particles = updateParticles(particles, control, laserObservations, resample);
-			
-			// Adaptively manage the number of particles
-			particles = addParticlesIfNeeded(particles);
-
-			// Sort particles according to their weights and plot on the map
-			Collections.sort(particles);
-			Particle p = particles.get(particles.size() - 1);				// Particle with the largest weight will be marked on the map
-			
-			// Track the position of the most probable particle
-			if (recordPosition) {
-				recordRobotPath(p, observation);
-			} else {
-				System.out.println(String.format("\t# of particles: %d, timestamp=%.4f particle=%s", particles.size(), observation.timeStamp, p));
+		// Create initial particles (more of them when starting at a coarse level), unless resuming from a checkpoint
+		if (particles == null) {
+			particles = resolutionLevel > 0 ? createParticles(numParticlesAtLevel(resolutionLevel)) : createParticles();
+			currentEss = particles.size();
+			seedPending = signatureIndex != null;
+		}
+		
+		// Iterate through time steps (as they are released in the real-time replay mode)
+		if (replay != null) {
+			replay.start(obsList, timeIndex);
+		}
+		for (int t = firstTimeStep(); t >= 0 && t < obsList.size(); t = nextTimeStep(t)) {
+			if (!filterStep(obsList.get(t), t, recordPosition)) {
+				break;
 			}
-
-			plotObj.updatePlot(observation, particles);
-			
-			// Shuffle the particle list 
-			Collections.shuffle(particles, RANDOM);
-			
-			prevLoggedRobotPose = observation.robotPose;
+		}
+		if (checkpointWriter != null) {
+			checkpointWriter.close();
+		}
+		System.out.println(String.format("Resampled %d times (every %d steps: %d times)", numResamplings, RESAMPLE_PERIOD, numScheduledResamplings));
+		if (motionGate != null) {
+			System.out.println("Motion gate: " + motionGate);
+		}
+		printRecovery();
+		if (replay != null) {
+			replay.stop();
+			System.out.println("Real-time replay: " + replay);
 		}
 		
 		// 
@@ -107,189 +194,1079 @@ public class MonteCarloLocalization {
 		}
 	}
 	
-
+	
 	/**
-	 * The core method which constitutes a single iteration of MCL. 
-	 * Given the list of current particles, control, and laser observations, the following steps should be implemented: 
-	 * 		1) particle poses are updated based on the control signal;
-	 * 		2) particles are reweighted based on the laser readings;
-	 * 		3) weights are renormalized via the exp-normalize trick;
-	 * 		4) particles are resampled according to their weights.
+	 * Checks that the enabled modes can run together. The off-heap, island and distributed modes run their own loop
+	 * over the observations, which supports the telemetry, the trajectory evaluator and (off the heap) adaptive
+	 * resampling, but none of the other options of the list-based filter; only one of them can be enabled.
+	 * The setters can be called in any order, so the combination is only checked here, when the run starts.
+	 * 
+	 * @throws IllegalStateException	if an option is enabled which the mode of the run would ignore
+	 */
+	private void validateModes() {
+		int numModes = (islandFilter != null ? 1 : 0) + (shardCoordinator != null ? 1 : 0) + (offHeapParticles ? 1 : 0);
+		if (numModes == 0) {
+			return;
+		}
+		List<String> unsupported = new ArrayList<>();
+		if (numModes > 1) {
+			unsupported.add("another of the off-heap, island and distributed modes");
+		}
+		if (readingPyramid != null) {
+			unsupported.add("the coarse-to-fine mode");
+		}
+		if (checkpointWriter != null || particles != null || timeIndex > 0) {
+			unsupported.add("checkpoints");
+		}
+		if (parallelRunner != null) {
+			unsupported.add("the parallel mode");
+		}
+		if (spatialOrdering) {
+			unsupported.add("spatial ordering");
+		}
+		if (preintegration) {
+			unsupported.add("pre-integration");
+		}
+		if (motionGate != null) {
+			unsupported.add("motion gating");
+		}
+		if (replay != null) {
+			unsupported.add("the real-time replay");
+		}
+		if (augmentedMcl != null) {
+			unsupported.add("augmented MCL");
+		}
+		if (dualProposal != null) {
+			unsupported.add("the dual proposal");
+		}
+		if (signatureIndex != null) {
+			unsupported.add("global initialization");
+		}
+		if (scanMatcher != null) {
+			unsupported.add("scan matching");
+		}
+		if (unsupported.isEmpty()) {
+			return;
+		}
+		
+		String mode = islandFilter != null ? "island" : shardCoordinator != null ? "distributed" : "off-heap";
+		if (shardCoordinator != null) {
+			try {
+				shardCoordinator.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		throw new IllegalStateException(String.format("The %s mode does not support %s", mode, String.join(", ", unsupported)));
+	}
+	
+	
+	/**
+	 * Runs the list-based filter (sequential or parallel) as the middle stage of a pipeline: the observations come 
+	 * from a source, which reads or receives them on its own thread, and every step is handed to the sinks, which
+	 * record, print, plot and evaluate it on theirs. Reading step t+1 and the sinks' work on step t-1 thus overlap 
+	 * with the filtering of step t. Both ends have bounded buffers (ObservationSource.BUFFER_SIZE observations and 
+	 * PIPELINE_BUFFER steps), so a slow filter holds up the source and a slow sink holds up the filter.
 	 * <p>
-	 * Note that when we don't resample, particle weights are multiplicatively updated.
-	 * When resampling happens, all weights are reset to 1 (i.e. log weight = 0).
+	 * The observations of the source replace those of the log loaded by the constructor; when resuming from a
+	 * checkpoint, the observations before its time step are passed over. Returns once every sink is done. 
 	 * 
-	 * @param currParticles		a list of current particles 
-	 * @param control			an array of control signals: {deltaX, deltaY, deltaTheta}
-	 * @param laserObservations	an array of 180 laser readings 
-	 * @param resample			whether to resample or not
-	 * @return
+	 * @param source	the source of the observations; it is started and closed by this method
+	 * @param sinks		the consumers of the filter steps, e.g. StepSink.renderer(plot)
 	 */
-	private List<Particle> updateParticles(List<Particle> currParticles, double[] control, double[] laserObservations, boolean resample) {
-		List<Particle> candidateParticles = new ArrayList<>();
+	public void runPipeline(ObservationSource source, List<StepSink> sinks) {
+		if (replay != null || islandFilter != null || shardCoordinator != null || offHeapParticles) {
+			throw new IllegalStateException("Only the list-based filter runs in a pipeline");
+		}
+		ExecutorService sinkExecutor = Executors.newFixedThreadPool(Math.max(sinks.size(), 1), runnable -> {
+			Thread thread = new Thread(runnable, "pipeline-sink");
+			thread.setDaemon(true);
+			return thread;
+		});
+		stepPublisher = new SubmissionPublisher<>(sinkExecutor, PIPELINE_BUFFER);
+		for (StepSink sink : sinks) {
+			stepPublisher.subscribe(sink);
+		}
+		if (particles == null) {
+			particles = resolutionLevel > 0 ? createParticles(numParticlesAtLevel(resolutionLevel)) : createParticles();
+			currentEss = particles.size();
+			seedPending = signatureIndex != null;
+		}
 		
-		// Loop through particles
-		for (int i = 0; i < currParticles.size(); i++) {
-			Particle p = currParticles.get(i);
+		// The filter runs on the thread which delivers the observations, and asks for one at a time
+		CountDownLatch done = new CountDownLatch(1);
+		int firstIndex = timeIndex;
+		source.subscribe(new Flow.Subscriber<Observation>() {
+			private Flow.Subscription subscription;
+			private int t = 0;
 			
-			// Update the pose of particle given control
-			updatePose(p, control);
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				this.subscription = subscription;
+				subscription.request(1);
+			}
 			
-			if (p.isValidPosition()) {
-				// Let the sensor model compute the weight
-				updateWeight(p, laserObservations);
-				
-				// Only keep particles with valid positions	
-				candidateParticles.add(p);
+			@Override
+			public void onNext(Observation observation) {
+				boolean proceed = true;
+				try {
+					if (t >= firstIndex) {
+						proceed = filterStep(observation, t, false);
+					}
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					proceed = false;
+				}
+				t++;
+				if (proceed && !pipelineAborted) {
+					subscription.request(1);
+				} else {
+					subscription.cancel();
+					done.countDown();
+				}
+			}
+			
+			@Override
+			public void onError(Throwable throwable) {
+				throwable.printStackTrace();
+				done.countDown();
 			}
+			
+			@Override
+			public void onComplete() {
+				done.countDown();
+			}
+		});
+		source.start();
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
+		source.close();
 		
-		// Resample
-		if (resample) {
-			// Normalize weights using the exp-normalize trick
-			normalizeWeights(candidateParticles, true);
-			
-			// Resample particles as per their weights
-			List<Particle> newParticles = resampleParticles(candidateParticles);
-			return newParticles;
-		} 
-		// Or simply return valid particles with updated weights and poses
-		else {
-			return candidateParticles;
+		// Let the sinks finish the steps they have been handed
+		stepPublisher.close();
+		for (StepSink sink : sinks) {
+			sink.awaitCompletion();
 		}
+		sinkExecutor.shutdown();
+		stepPublisher = null;
+		if (checkpointWriter != null) {
+			checkpointWriter.close();
+		}
+		System.out.println(String.format("Resampled %d times (every %d steps: %d times)", numResamplings, RESAMPLE_PERIOD, numScheduledResamplings));
+		if (motionGate != null) {
+			System.out.println("Motion gate: " + motionGate);
+		}
+		printRecovery();
 	}
 	
 	
 	/**
-	 * Updates the pose of this particle based on the odometry model and control signal
-	 * 
-	 * @param particle
-	 * @param control
+	 * Stops a pipeline run (see runPipeline()) after the current step, e.g. when its evaluator sink gives up
 	 */
-	public void updatePose(Particle particle, double[] control) {
-		// TODO
-		particle.setPose(odometryModel.updatePose(particle.getPose(), prevLoggedRobotPose, control));
+	public void abortPipeline() {
+		pipelineAborted = true;
 	}
 	
 	
 	/**
-	 * Updates the weight of a particle given a single laser observation data (180 observations).
-	 * <p>
-	 * The exp-normalize trick for numerical stability should be implemented (instead of directly computing the likelihood, 
-	 * you keep track of its log value).
-	 * Also, see e.g. https://timvieira.github.io/blog/post/2014/02/11/exp-normalize-trick/
-	 * <p>
-	 * Make sure that the log weights are updated multiplicatively. 
-	 * Also, as explained in the slides, you may want to reduce the impact of a single update by a factor of alpha such that
-	 * 		weight = p(o | x)^{alpha}
-	 * 		or, log weight = alpha * log p(o | x)
+	 * Runs a single time step of the list-based filter (sequential or parallel) on an observation.
 	 * 
-	 * @param particle				a particle whose weight is to be updated
-	 * @param laserObservations		a new array containing laser observations from a single time step
+	 * @param observation		the observation of the step
+	 * @param t					the index of the observation in the log
+	 * @param recordPosition	whether to record the estimate of the step
+	 * @return					false if the trajectory evaluator asks to abort the run
 	 */
-	public void updateWeight(Particle particle, double[] laserObservations) {
-		// Update the weight only when laser readings are given
-		if (laserObservations.length != 0) {
-			// TODO:
-			
-			setObsArrayOfSensor(particle.getPose(), laserObservations);
-			particle.setLogWeight(sensorModel.sumOfLogLikelihood() * LIKELIHOOD_SCALE, true);
-			particle.setWeight(Math.exp(particle.getLogWeight()));
-			
-			//INDArray temp_observation[] = new INDArray[180];
-			
-			//for(int i = 0; i < 180; i++) {
-				//temp_observation[i].add(laserObservations[i]);
-			//}
-			//temp_observation[] = sensorModel.likelihood();
-			
+	private boolean filterStep(Observation observation, int t, boolean recordPosition) {
+		// With pre-integration, odometry-only steps are only collected until the next step that gets processed,
+		// and so are the observations a late real-time replay skips
+		if (deferOdometry(observation, t) || skipForReplay(observation, t)) {
+			timeIndex = t + 1;
+			return true;
+		}
+		
+		// Get the control signal & laser observations from logged data
+		beginStep();
+		double[] control = getControlSignal(observation);
+		double[] laserObservations = getLaserReadings(observation);
+		
+		// With motion gating, a scan taken after too little motion neither weights nor resamples the particles
+		boolean gated = false;
+		if (motionGate != null) {
+			motionGate.addMotion(control);
+			if (laserObservations.length != 0 && !passMotionGate(observation)) {
+				laserObservations = new double[0];
+				gated = true;
+			}
+		}
+		
+		// With the signature index, the particles are seeded from the first scan, and again once the filter looks kidnapped
+		if (signatureIndex != null && laserObservations.length != 0 && (seedPending || isKidnapped())) {
+			particles = seedParticles(laserObservations, seedPending ? "first scan" : "kidnapped");
+			currentEss = particles.size();
+			seedPending = false;
+		}
+		
+		// Run a single iteration of MCL algorithm
+		boolean resample = (observation.dataType.equals("L") && !gated && (t+1) % RESAMPLE_PERIOD == 0);
+		if (resample) {
+			numScheduledResamplings++;
+		}
+		particles = updateParticles(particles, control, laserObservations, resample);
+		effectiveSampleSizes.add(currentEss);
+		
+		// Adaptively manage the number of particles
+		particles = addParticlesIfNeeded(particles);
+
+		// Estimate the pose from the heaviest cluster of particles (refined by scan matching); it will be marked on the map
+		poseEstimate = poseEstimator.estimate(particles);
+		if (scanMatcher != null) {
+			poseEstimate = refineEstimate(poseEstimate, laserObservations);
+		}
+		
+		// In the coarse-to-fine mode, move on to a finer level once the belief has concentrated
+		if (resolutionLevel > 0 && laserObservations.length != 0 && isBeliefConcentrated(poseEstimate)) {
+			particles = promoteResolution(particles);
 		}
+		markStage(FilterTelemetry.ESTIMATE);
+		
+		// Print, record, plot and evaluate the estimate
+		if (!reportStep(observation, particles.size(), recordPosition)) {
+			return false;
+		}
+		
+		// Shuffle the particle list 
+		Collections.shuffle(particles, RANDOM);
+		
+		prevLoggedRobotPose = observation.robotPose;
+		pendingPoses.clear();
+		timeIndex = t + 1;
+		if (replay != null) {
+			replay.stepDone(t);
+		}
+		
+		// Save the state in the background now and then, so that a long replay can be resumed
+		if (checkpointWriter != null && timeIndex % checkpointPeriod == 0) {
+			checkpointWriter.submit(checkpoint());
+		}
+		return true;
 	}
 	
 	
 	/**
-	 * Normalizes weights of particles. When expNormalize == true, then we apply the exp-normalize trick.
-	 *
-	 * @param particles
-	 * @param expNormalize
+	 * The island counterpart of runMonteCarloLocalization(), used when setIslands() has been called.
+	 * The islands run on their own threads; this thread only merges their summaries into the estimate of every step.
 	 */
-	public void normalizeWeights(List<Particle> particles, boolean expNormalize) {
-		if (expNormalize) {
-			// TODO: use the exp-normalize trick for normalizing weights
-			
-			int index_max = 0;
-			for(int i = 0; i < particles.size(); i++) {
-				if(particles.get(i).getLogWeight() > particles.get(index_max).getLogWeight()){
-					index_max = i;
-				}	
+	private List<double[]> runIslands(boolean recordPosition) {
+		islandFilter.start(obsList, odometryModel, sensorModel);
+		try {
+			for (int t = 0; t < obsList.size(); t++) {
+				Observation observation = obsList.get(t);
+				beginStep();
+				poseEstimate = islandFilter.awaitEstimate(t);
+				particles = islandFilter.getParticles();
+				currentEss = islandFilter.getEffectiveSampleSize();
+				effectiveSampleSizes.add(currentEss);
+				timeIndex = t + 1;
+				markStage(FilterTelemetry.ESTIMATE);
+				
+				if (!reportStep(observation, particles.size(), recordPosition)) {
+					break;
+				}
+			}
+		} finally {
+			islandFilter.stop();
+		}
+		numResamplings = islandFilter.getNumResamplings();
+		System.out.println("Island filter: " + islandFilter);
+		
+		if (recordPosition) {
+			return trackedPosition;
+		} else {
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * The distributed counterpart of runMonteCarloLocalization(), used when setSharding() has been called.
+	 * The particles live in the worker processes; only the best particle of every shard is plotted.
+	 * The workers are stopped at the end of the run.
+	 */
+	private List<double[]> runShards(boolean recordPosition) {
+		try {
+			for (int t = 0; t < obsList.size(); t++) {
+				Observation observation = obsList.get(t);
+				beginStep();
+				poseEstimate = shardCoordinator.step(t, observation);
+				particles = shardCoordinator.getBestParticles();
+				currentEss = shardCoordinator.getEffectiveSampleSize();
+				effectiveSampleSizes.add(currentEss);
+				timeIndex = t + 1;
+				markStage(FilterTelemetry.ESTIMATE);
+				
+				if (!reportStep(observation, shardCoordinator.getNumParticles(), recordPosition)) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				shardCoordinator.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		numResamplings = shardCoordinator.getNumResamplings();
+		System.out.println("Distributed filter: " + shardCoordinator);
+		
+		if (recordPosition) {
+			return trackedPosition;
+		} else {
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * The off-heap counterpart of runMonteCarloLocalization(), used when setOffHeapParticles() has been called.
+	 * <p>
+	 * The particles live in two generations of OffHeapParticleColumns: resampling writes the new generation into the
+	 * spare one and the two are swapped, so that no step allocates memory per particle. The stages are those of 
+	 * updateParticles(), except that resampling is systematic (duplicates are perturbed) and that particles are
+	 * neither added nor shuffled between steps; a filter that has lost all of its particles, or whose particles
+	 * all have a weight of 0, starts over.
+	 * Only a fixed subset of at most MAX_PLOTTED_PARTICLES particles is plotted.
+	 */
+	private List<double[]> runOffHeap(boolean recordPosition) {
+		OffHeapParticleColumns current = new OffHeapParticleColumns(numParticle);
+		OffHeapParticleColumns spare = new OffHeapParticleColumns(numParticle);
+		createParticles(current, numParticle);
+		currentEss = numParticle;
+		List<Particle> plotted = new ArrayList<>();
+		double[] pose = new double[3];
+		
+		for (int t = 0; t < obsList.size(); t++) {
+			Observation observation = obsList.get(t);
+			beginStep();
+			double[] control = getControlSignal(observation);
+			double[] laserObservations = getLaserReadings(observation);
+			boolean resample = (observation.dataType.equals("L") && (t+1) % RESAMPLE_PERIOD == 0);
+			if (resample) {
+				numScheduledResamplings++;
 			}
 			
-			double b = particles.get(index_max).getLogWeight();
-			double num = 0;
-			double denom = 0;
+			// Move the particles, and only keep those with valid positions
+			odometryModel.updatePoses(current, prevLoggedRobotPose, control, motionNoise);
+			int n = current.removeInvalidPositions();
+			markStage(FilterTelemetry.MOTION);
 			
-			for(int i = 0; i < particles.size(); i++) {
-				double temp = particles.get(i).getLogWeight() - b;
-				denom = denom + Math.exp(temp);
+			// Weight and normalize
+			if (laserObservations.length != 0 && n > 0) {
+				for (int i = 0; i < n; i++) {
+					pose[0] = current.getX(i);
+					pose[1] = current.getY(i);
+					pose[2] = current.getTheta(i);
+					setObsArrayOfSensor(sensorModel, null, 0, pose, laserObservations);
+					current.setLogWeight(i, current.getLogWeight(i) + sensorModel.sumOfLogLikelihood() * LIKELIHOOD_SCALE);
+				}
+				currentEss = normalizeLogWeights(current);
+				if (adaptiveResampling) {
+					resample = currentEss < RESAMPLE_ESS_RATIO * n;
+				}
 			}
+			markStage(FilterTelemetry.SENSOR);
 			
-			for(int i = 0; i < particles.size(); i++) {
-				double temp = particles.get(i).getLogWeight() - b;
-				num = Math.exp(temp);
-				
-				particles.get(i).setWeight(num/denom);
+			// Resample into the spare generation and swap, or start over when no particle is left (or has weight left)
+			if (n == 0 || currentEss == 0) {
+				createParticles(current, numParticle);
+				currentEss = numParticle;
+			} else if (resample) {
+				resampleSystematic(current, spare);
+				OffHeapParticleColumns resampled = spare;
+				spare = current;
+				current = resampled;
+				numResamplings++;
+				currentEss = current.size();
 			}
+			effectiveSampleSizes.add(currentEss);
+			markStage(FilterTelemetry.RESAMPLE);
 			
+			poseEstimate = poseEstimator.estimate(current);
+			particles = plottedParticles(current, plotted);
+			markStage(FilterTelemetry.ESTIMATE);
+			timeIndex = t + 1;
+			if (!reportStep(observation, current.size(), recordPosition)) {
+				break;
+			}
+			prevLoggedRobotPose = observation.robotPose;
+		}
+		System.out.println(String.format("Resampled %d times (every %d steps: %d times)", numResamplings, RESAMPLE_PERIOD, numScheduledResamplings));
+		
+		if (recordPosition) {
+			return trackedPosition;
 		} else {
-			// Directly normalize weights
-			normalizeWeights(particles);
+			return null;
 		}
 	}
 	
 	
 	/**
-	 * Sample with probabilities proportional to the weights of particles.
-	 * This method returns a list whose ith element corresponds to how many times the ith sample has been sampled.
-	 *  
-	 * @param particles	a list of particles
-	 * @return 			an Integer array of counts 
+	 * Fills the columns with count uniformly spread particles of equal weight.
 	 */
-	public Integer[] sampleMultinomial(List<Particle> particles){
-		// TODO
-		int size = particles.size();
+	private void createParticles(ParticleColumns columns, int count) {
+		columns.setSize(count);
+		for (int i = 0; i < count; i++) {
+			double[] initialPose = new Particle().getPose();
+			columns.setPose(i, initialPose[0], initialPose[1], initialPose[2]);
+			columns.setLogWeight(i, 0);
+			columns.setWeight(i, 1.0);
+		}
+	}
+	
+	
+	/**
+	 * normalizeLogWeights() for particle columns; returns 0 (and leaves the weights alone) when all log weights are -inf.
+	 */
+	private double normalizeLogWeights(ParticleColumns columns) {
+		double max = Double.NEGATIVE_INFINITY;
+		double sum = 0;
+		double sumSq = 0;
 		
-		Integer[] vals = new Integer[size];
-		for(int i = 0; i < size; i++) {
-			vals[i] = 0;
+		for (int i = 0; i < columns.size(); i++) {
+			double logWeight = columns.getLogWeight(i);
+			if (logWeight > max) {
+				double rescale = Math.exp(max - logWeight);
+				sum = sum * rescale + 1;
+				sumSq = sumSq * rescale * rescale + 1;
+				max = logWeight;
+			} else if (logWeight != Double.NEGATIVE_INFINITY) {
+				double w = Math.exp(logWeight - max);
+				sum += w;
+				sumSq += w * w;
+			}
 		}
 		
-		double random_num = 0;
-		double weight = 0;
+		if (max == Double.NEGATIVE_INFINITY) {
+			return 0;
+		}
+		double logSumExp = max + Math.log(sum);
+		for (int i = 0; i < columns.size(); i++) {
+			columns.setWeight(i, Math.exp(columns.getLogWeight(i) - logSumExp));
+		}
+		return sum * sum / sumSq;
+	}
+	
+	
+	/**
+	 * Systematically resamples the particles into the target columns (which keep their capacity), keeping the
+	 * first copy of a particle as it is and perturbing the others, and resets the weights.
+	 */
+	private void resampleSystematic(ParticleColumns source, ParticleColumns target) {
+		int n = source.size();
+		target.setSize(n);
+		double totalWeight = 0;
+		for (int i = 0; i < n; i++) {
+			totalWeight += source.getWeight(i);
+		}
 		
-		for(int iter = 0; iter < size; iter++) {
-			random_num = RANDOM.nextDouble();
-			
-			for(int i = 0; i < size; i++) {
-				weight = particles.get(i).getWeight();
-				if(random_num <= weight) {
-					vals[i]++;
-					i = size;
-					//System.out.println(i);
-				} else if (random_num > weight) {
-					random_num -= weight;
-				}
+		double[] perturbed = new double[3];
+		double increment = totalWeight / n;
+		double u = RANDOM.nextDouble() * increment;
+		double cumulative = source.getWeight(0);
+		int i = 0;
+		int lastIndex = -1;
+		for (int slot = 0; slot < n; slot++) {
+			while (u >= cumulative && i < n - 1) {
+				i++;
+				cumulative += source.getWeight(i);
 			}
+			if (i == lastIndex) {
+				Particle.perturb(source.getX(i), source.getY(i), source.getTheta(i), RANDOM, perturbed);
+				target.setPose(slot, perturbed[0], perturbed[1], perturbed[2]);
+			} else {
+				target.setPose(slot, source.getX(i), source.getY(i), source.getTheta(i));
+			}
+			target.setLogWeight(slot, 0);
+			target.setWeight(slot, 1.0);
+			lastIndex = i;
+			u += increment;
 		}
-		return vals;
 	}
 	
 	
 	/**
-	 * Samples new particles with probabilities proportional to their weight.
-	 * Duplicate particles are suppressed unless there are fewer particles than targetNumParticle.
-	 * For multiplicative update of weights, log of weight is reset to 0 (i.e. w = 1).
-	 * 
-	 * @return a list of selected (perturbed) particles
+	 * Copies an evenly spaced subset of at most MAX_PLOTTED_PARTICLES particles into the reused Particle objects
+	 * of the plotted list, and returns the list.
+	 */
+	private List<Particle> plottedParticles(ParticleColumns columns, List<Particle> plotted) {
+		int count = Math.min(columns.size(), MAX_PLOTTED_PARTICLES);
+		while (plotted.size() < count) {
+			plotted.add(new Particle(0, 0, 0, 0, 1.0));
+		}
+		while (plotted.size() > count) {
+			plotted.remove(plotted.size() - 1);
+		}
+		for (int k = 0; k < count; k++) {
+			int i = (int) ((long) k * columns.size() / count);
+			Particle p = plotted.get(k);
+			p.setPose(columns.getX(i), columns.getY(i), columns.getTheta(i));
+			p.setWeight(columns.getWeight(i));
+		}
+		return plotted;
+	}
+	
+	
+	/**
+	 * Starts timing a step for the telemetry, if any
+	 */
+	private void beginStep() {
+		if (telemetry != null) {
+			telemetry.beginStep();
+		}
+	}
+	
+	/**
+	 * Ends a stage of the current step for the telemetry, if any (see FilterTelemetry.mark())
+	 */
+	private void markStage(int stage) {
+		if (telemetry != null) {
+			telemetry.mark(stage);
+		}
+	}
+	
+	
+	/**
+	 * Ends the current step for the telemetry, if any
+	 */
+	private void endTelemetryStep(Observation observation, int numParticles) {
+		if (telemetry != null) {
+			telemetry.mark(FilterTelemetry.REPORT);
+			telemetry.endStep(timeIndex, observation.timeStamp, poseEstimate, numParticles, currentEss, particles);
+		}
+	}
+	
+	
+	/**
+	 * Handles the estimate of a time step: prefetches expected readings around it, records or prints it, 
+	 * plots it and passes it to the trajectory evaluator.
+	 * 
+	 * @param numParticles	the number of particles to print, which may be more than the plotted particles
+	 * @return				false if the trajectory evaluator asks to abort the run
+	 */
+	private boolean reportStep(Observation observation, int numParticles, boolean recordPosition) {
+		// Let lazily computed expected readings get ready around where the particles are heading
+		int prefetchRadius = (int) (2 * poseEstimate.getPositionStdDev() / 10) + PREFETCH_MARGIN_CELLS;
+		sensorModel.getExpectedReadings().prefetch((int) (poseEstimate.x / 10), (int) (poseEstimate.y / 10), prefetchRadius);
+		
+		// In the pipeline mode, the sinks record, print, plot and evaluate the estimate on their own threads
+		if (stepPublisher != null) {
+			stepPublisher.submit(new FilterStep(timeIndex, observation, poseEstimate, numParticles, currentEss, 
+					FilterStep.copyParticles(particles, MAX_PLOTTED_PARTICLES)));
+			endTelemetryStep(observation, numParticles);
+			return !pipelineAborted;
+		}
+		
+		// Track the estimated position
+		if (recordPosition) {
+			recordRobotPath(poseEstimate, observation);
+		} else {
+			System.out.println(String.format("\t# of particles: %d, ESS=%.1f, timestamp=%.4f estimate=%s", numParticles, currentEss, observation.timeStamp, poseEstimate));
+		}
+
+		plotObj.updatePlot(observation, particles, poseEstimate.getPose());
+		endTelemetryStep(observation, numParticles);
+		
+		// Evaluate the estimate against ground truth, and give up early if it is hopeless
+		if (trajectoryEvaluator != null) {
+			trajectoryEvaluator.add(observation.timeStamp, poseEstimate.x, poseEstimate.y);
+			if (trajectoryEvaluator.shouldAbort()) {
+				System.out.println(String.format("Aborted at timestamp=%.4f: %s", observation.timeStamp, trajectoryEvaluator));
+				try {
+					trajectoryEvaluator.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+	
+
+	/**
+	 * The core method which constitutes a single iteration of MCL. 
+	 * Given the list of current particles, control, and laser observations, the following steps should be implemented: 
+	 * 		1) particle poses are updated based on the control signal;
+	 * 		2) particles are reweighted based on the laser readings;
+	 * 		3) weights are renormalized via the exp-normalize trick;
+	 * 		4) particles are resampled according to their weights.
+	 * <p>
+	 * Note that when we don't resample, particle weights are multiplicatively updated.
+	 * When resampling happens, all weights are reset to 1 (i.e. log weight = 0).
+	 * With adaptive resampling, the given resample flag is ignored and particles are resampled whenever
+	 * the effective sample size of the normalized weights drops below RESAMPLE_ESS_RATIO * N.
+	 * 
+	 * @param currParticles		a list of current particles 
+	 * @param control			an array of control signals: {deltaX, deltaY, deltaTheta}
+	 * @param laserObservations	an array of 180 laser readings 
+	 * @param resample			whether to resample or not (on the fixed schedule)
+	 * @return
+	 */
+	private List<Particle> updateParticles(List<Particle> currParticles, double[] control, double[] laserObservations, boolean resample) {
+		if (parallelRunner != null) {
+			return updateParticlesInParallel(currParticles, control, laserObservations, resample);
+		}
+		List<Particle> candidateParticles = new ArrayList<>();
+		
+		// Update the poses of all particles given control; the control-only terms are computed once per step
+		motionColumns.load(currParticles);
+		prepareMotion(control).apply(motionColumns, 0, motionColumns.size(), motionNoise);
+		motionColumns.storePoses(currParticles);
+		
+		// Only keep particles with valid positions
+		for (int i = 0; i < currParticles.size(); i++) {
+			Particle p = currParticles.get(i);
+			
+			if (p.isValidPosition()) {
+				candidateParticles.add(p);
+			}
+		}
+		markStage(FilterTelemetry.MOTION);
+		
+		// Let the sensor model compute the weights, visiting nearby particles one after another if requested
+		double priorLogSumExp = logSumExpForRecovery(candidateParticles, laserObservations);
+		if (spatialOrdering && laserObservations.length != 0) {
+			int[] order = spatialOrder(candidateParticles);
+			for (int i = 0; i < order.length; i++) {
+				updateWeight(candidateParticles.get(order[i]), laserObservations);
+			}
+		} else {
+			for (int i = 0; i < candidateParticles.size(); i++) {
+				updateWeight(candidateParticles.get(i), laserObservations);
+			}
+		}
+		
+		// Normalize weights using the exp-normalize trick; the same sweep gives the effective sample size
+		if (laserObservations.length != 0 && !candidateParticles.isEmpty()) {
+			currentEss = normalizeLogWeights(candidateParticles);
+			if (augmentedMcl != null) {
+				augmentedMcl.update((lastLogSumExp - priorLogSumExp) / Sensor.NUM_BINS);
+			}
+			if (adaptiveResampling) {
+				resample = currentEss < RESAMPLE_ESS_RATIO * candidateParticles.size();
+			}
+			// No particle fits the scan at all: start over (see addParticlesIfNeeded())
+			if (currentEss == 0) {
+				candidateParticles.clear();
+				resample = false;
+			}
+		}
+		markStage(FilterTelemetry.SENSOR);
+		
+		// Resample
+		if (resample) {
+			// Resample particles as per their weights
+			List<Particle> newParticles = resampleParticles(candidateParticles);
+			recoverParticles(newParticles, candidateParticles, laserObservations, RANDOM);
+			numResamplings++;
+			currentEss = newParticles.size();
+			markStage(FilterTelemetry.RESAMPLE);
+			return newParticles;
+		} 
+		// Or simply return valid particles with updated weights and poses
+		else {
+			return candidateParticles;
+		}
+	}
+	
+	
+	/**
+	 * The parallel counterpart of updateParticles(), used when setParallelism() has been called.
+	 * <p>
+	 * Motion, validity checks, weighting and resampling run on the worker threads. Every random number comes from
+	 * a CounterStream positioned at (step, domain, particle index), and every worker weights with its own fork of the
+	 * sensor model, so the result is bit-identical for any number of threads. Normalization stays sequential, 
+	 * since the order of a floating-point sum would otherwise depend on the threads.
+	 * Resampling is systematic (or Metropolis, see setMetropolisResampling()): all N slots are kept, the first copy of a particle as it is and the others perturbed.
+	 */
+	private List<Particle> updateParticlesInParallel(List<Particle> currParticles, double[] control, double[] laserObservations, boolean resample) {
+		int step = timeIndex;
+		int n = currParticles.size();
+		
+		// Move every particle with its own noise
+		motionColumns.load(currParticles);
+		MotionUpdate motion = prepareMotion(control);
+		boolean[] valid = new boolean[n];
+		parallelRunner.forEachChunk(n, (from, to) -> {
+			CounterStream stream = workerStreams.get();
+			for (int i = from; i < to; i++) {
+				motion.apply(motionColumns, i, i + 1, stream.at(step, DOMAIN_MOTION, i));
+				Particle p = currParticles.get(i);
+				p.setPose(motionColumns.getX(i), motionColumns.getY(i), motionColumns.getTheta(i));
+				valid[i] = p.isValidPosition();
+			}
+		});
+		
+		// Only keep particles with valid positions
+		List<Particle> candidateParticles = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			if (valid[i]) {
+				candidateParticles.add(currParticles.get(i));
+			}
+		}
+		markStage(FilterTelemetry.MOTION);
+		
+		double priorLogSumExp = logSumExpForRecovery(candidateParticles, laserObservations);
+		if (laserObservations.length != 0 && !candidateParticles.isEmpty()) {
+			parallelRunner.forEachChunk(candidateParticles.size(), (from, to) -> {
+				Sensor sensor = workerSensors.get();
+				for (int i = from; i < to; i++) {
+					updateWeight(sensor, candidateParticles.get(i), laserObservations);
+				}
+			});
+			currentEss = normalizeLogWeights(candidateParticles);
+			if (augmentedMcl != null) {
+				augmentedMcl.update((lastLogSumExp - priorLogSumExp) / Sensor.NUM_BINS);
+			}
+			if (adaptiveResampling) {
+				resample = currentEss < RESAMPLE_ESS_RATIO * candidateParticles.size();
+			}
+			// No particle fits the scan at all: start over (see addParticlesIfNeeded())
+			if (currentEss == 0) {
+				candidateParticles.clear();
+				resample = false;
+			}
+		}
+		markStage(FilterTelemetry.SENSOR);
+		
+		if (resample && !candidateParticles.isEmpty()) {
+			List<Particle> newParticles = resampleSystematicInParallel(candidateParticles, step);
+			recoverParticles(newParticles, candidateParticles, laserObservations, new CounterStream(parallelSeed).at(step, DOMAIN_RECOVERY, 0));
+			numResamplings++;
+			currentEss = newParticles.size();
+			markStage(FilterTelemetry.RESAMPLE);
+			return newParticles;
+		}
+		return candidateParticles;
+	}
+	
+	
+	/**
+	 * Parallel resampling (see ParallelResampler) whose random numbers come from counter-based streams: systematic
+	 * resampling over a parallel prefix sum of the weights, or Metropolis resampling when setMetropolisResampling()
+	 * asked for it. Copying and perturbing the duplicates runs on the worker threads as well.
+	 */
+	private List<Particle> resampleSystematicInParallel(List<Particle> particles, int step) {
+		int n = particles.size();
+		double[] weights = new double[n];
+		parallelRunner.forEachChunk(n, (from, to) -> {
+			for (int i = from; i < to; i++) {
+				weights[i] = particles.get(i).getWeight();
+			}
+		});
+		
+		int[] source = new int[n];
+		if (metropolisIterations > 0) {
+			parallelResampler.metropolis(weights, n, metropolisIterations, parallelSeed, step, DOMAIN_RESAMPLE, source);
+			Arrays.sort(source);								// duplicates next to each other, as for systematic resampling
+		} else {
+			double u = new CounterStream(parallelSeed).at(step, DOMAIN_RESAMPLE, 0).nextDouble();
+			parallelResampler.systematic(weights, n, u, source);
+		}
+		
+		Particle[] resampled = new Particle[n];
+		parallelRunner.forEachChunk(n, (from, to) -> {
+			CounterStream stream = workerStreams.get();
+			for (int slot = from; slot < to; slot++) {
+				Particle p = particles.get(source[slot]);
+				if (slot > 0 && source[slot] == source[slot - 1]) {
+					p = p.copy();
+					p.perturb(stream.at(step, DOMAIN_PERTURB, slot));
+				}
+				resampled[slot] = p;
+			}
+		});
+		
+		for (Particle p : resampled) {
+			p.setLogWeight(0);
+			p.setWeight(1.0);
+		}
+		return new ArrayList<>(Arrays.asList(resampled));
+	}
+	
+	
+	/**
+	 * Returns the indices of the particles sorted by the Z-order (Morton) code of their map cells.
+	 * Only the order in which particles are weighted changes; the list itself is left as it is.
+	 */
+	private int[] spatialOrder(List<Particle> particles) {
+		int n = particles.size();
+		if (spatialKeys.length < n) {
+			spatialKeys = new long[n];
+		}
+		for (int i = 0; i < n; i++) {
+			double[] pose = particles.get(i).getPose();
+			int code = Util.mortonCode((int) pose[0] / 10, (int) pose[1] / 10);
+			spatialKeys[i] = ((long) code << 32) | i;
+		}
+		Arrays.sort(spatialKeys, 0, n);
+		
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = (int) spatialKeys[i];
+		}
+		return order;
+	}
+	
+	
+	/**
+	 * Updates the pose of this particle based on the odometry model and control signal
+	 * 
+	 * @param particle
+	 * @param control
+	 */
+	public void updatePose(Particle particle, double[] control) {
+		// TODO
+		particle.setPose(odometryModel.updatePose(particle.getPose(), prevLoggedRobotPose, control));
+	}
+	
+	
+	/**
+	 * Updates the weight of a particle given a single laser observation data (180 observations).
+	 * <p>
+	 * The exp-normalize trick for numerical stability should be implemented (instead of directly computing the likelihood, 
+	 * you keep track of its log value).
+	 * Also, see e.g. https://timvieira.github.io/blog/post/2014/02/11/exp-normalize-trick/
+	 * <p>
+	 * Make sure that the log weights are updated multiplicatively. 
+	 * Also, as explained in the slides, you may want to reduce the impact of a single update by a factor of alpha such that
+	 * 		weight = p(o | x)^{alpha}
+	 * 		or, log weight = alpha * log p(o | x)
+	 * 
+	 * @param particle				a particle whose weight is to be updated
+	 * @param laserObservations		a new array containing laser observations from a single time step
+	 */
+	public void updateWeight(Particle particle, double[] laserObservations) {
+		// Update the weight only when laser readings are given
+		if (laserObservations.length != 0) {
+			// TODO:
+			
+			updateWeight(sensorModel, particle, laserObservations);
+			
+			//INDArray temp_observation[] = new INDArray[180];
+			
+			//for(int i = 0; i < 180; i++) {
+				//temp_observation[i].add(laserObservations[i]);
+			//}
+			//temp_observation[] = sensorModel.likelihood();
+			
+		}
+	}
+	
+	
+	/**
+	 * Updates the weight of a particle with the given sensor model, which must not be used by another thread meanwhile.
+	 */
+	void updateWeight(Sensor sensor, Particle particle, double[] laserObservations) {
+		setObsArrayOfSensor(sensor, readingPyramid, resolutionLevel, particle.getPose(), laserObservations);
+		particle.setLogWeight(sensor.sumOfLogLikelihood() * LIKELIHOOD_SCALE, true);
+	}
+	
+	
+	/**
+	 * Normalizes weights of particles. When expNormalize == true, then we apply the exp-normalize trick.
+	 *
+	 * @param particles
+	 * @param expNormalize
+	 */
+	public void normalizeWeights(List<Particle> particles, boolean expNormalize) {
+		if (expNormalize) {
+			// TODO: use the exp-normalize trick for normalizing weights
+			normalizeLogWeights(particles);
+			
+		} else {
+			// Directly normalize weights
+			normalizeWeights(particles);
+		}
+	}
+	
+	
+	/**
+	 * Normalizes weights of particles with the exp-normalize trick and returns their effective sample size.
+	 * <p>
+	 * The maximum log weight b, the sum \sum_i exp(l_i - b) and the sum of squares \sum_i exp(2 (l_i - b)) are all
+	 * accumulated in a single sweep over the log weights: whenever a new maximum shows up, the running sums are rescaled.
+	 * A second loop then only writes the normalized weights w_i = exp(l_i - logSumExp).
+	 *
+	 * When every log weight is -inf, no particle fits the observation at all: the weights are left alone and 0 is
+	 * returned, so that the caller can start over.
+	 *
+	 * @param particles		the list of particles whose weights will be normalized
+	 * @return				the effective sample size 1 / \sum_i w_i^2, which ranges from 1 (degenerate) to N (uniform),
+	 * 						or 0 when all log weights are -inf
+	 */
+	public double normalizeLogWeights(List<Particle> particles) {
+		double max = Double.NEGATIVE_INFINITY;
+		double sum = 0;
+		double sumSq = 0;
+		
+		for (int i = 0; i < particles.size(); i++) {
+			double logWeight = particles.get(i).getLogWeight();
+			if (logWeight > max) {
+				double rescale = Math.exp(max - logWeight);
+				sum = sum * rescale + 1;
+				sumSq = sumSq * rescale * rescale + 1;
+				max = logWeight;
+			} else if (logWeight != Double.NEGATIVE_INFINITY) {
+				double w = Math.exp(logWeight - max);
+				sum += w;
+				sumSq += w * w;
+			}
+		}
+		
+		if (max == Double.NEGATIVE_INFINITY) {
+			lastLogSumExp = max;
+			return 0;
+		}
+		double logSumExp = max + Math.log(sum);
+		lastLogSumExp = logSumExp;
+		for (int i = 0; i < particles.size(); i++) {
+			Particle p = particles.get(i);
+			p.setWeight(Math.exp(p.getLogWeight() - logSumExp));
+		}
+		return sum * sum / sumSq;
+	}
+	
+	
+	/**
+	 * Returns the log of the sum of the weights before a scan is weighted, from which the average likelihood of the
+	 * scan follows for augmented MCL; 0 if it is not needed.
+	 */
+	private double logSumExpForRecovery(List<Particle> particles, double[] laserObservations) {
+		if (augmentedMcl == null || laserObservations.length == 0 || particles.isEmpty()) {
+			return 0;
+		}
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < particles.size(); i++) {
+			max = Math.max(max, particles.get(i).getLogWeight());
+		}
+		if (max == Double.NEGATIVE_INFINITY) {
+			return max;
+		}
+		double sum = 0;
+		for (int i = 0; i < particles.size(); i++) {
+			sum += Math.exp(particles.get(i).getLogWeight() - max);
+		}
+		return max + Math.log(sum);
+	}
+	
+	
+	/**
+	 * After resampling, replaces some of the new particles to recover from a wrong convergence: with augmented MCL,
+	 * every particle becomes a random one with the injection probability, and with the dual proposal, 
+	 * a share of the particles is drawn from the scan (see AugmentedMcl and DualProposal).
+	 * 
+	 * @param resampled			the resampled particles, which are replaced in place
+	 * @param predicted			the particles before weighting, the samples of the predicted belief
+	 * @param laserObservations	the scan of the step
+	 * @param random			the random numbers of the replacements
+	 */
+	private void recoverParticles(List<Particle> resampled, List<Particle> predicted, double[] laserObservations, RandomGenerator random) {
+		boolean[] injected = null;
+		if (augmentedMcl != null) {
+			double injectionProbability = augmentedMcl.getInjectionProbability();
+			if (injectionProbability > 0) {
+				injected = new boolean[resampled.size()];
+				int numInjected = 0;
+				for (int i = 0; i < resampled.size(); i++) {
+					if (random.nextDouble() < injectionProbability) {
+						resampled.set(i, new Particle(random));
+						injected[i] = true;
+						numInjected++;
+					}
+				}
+				augmentedMcl.countInjected(numInjected);
+			}
+		}
+		if (dualProposal != null && laserObservations.length != 0) {
+			int count = (int) Math.round(dualProposal.getFraction() * resampled.size());
+			List<Particle> dual = dualProposal.sample(predicted, count, particle -> scanLogLikelihood(particle, laserObservations), random);
+			
+			// Every dual particle takes a distinct slot which augmented MCL has not just filled (partial Fisher-Yates shuffle)
+			int[] slots = new int[resampled.size()];
+			int numSlots = 0;
+			for (int i = 0; i < slots.length; i++) {
+				if (injected == null || !injected[i]) {
+					slots[numSlots++] = i;
+				}
+			}
+			for (int k = 0; k < dual.size() && k < numSlots; k++) {
+				int j = k + random.nextInt(numSlots - k);
+				int slot = slots[j];
+				slots[j] = slots[k];
+				slots[k] = slot;
+				resampled.set(slot, dual.get(k));
+			}
+		}
+	}
+	
+	
+	/**
+	 * Returns the scaled log likelihood of a scan at the pose of a particle, without changing its weight
+	 */
+	private double scanLogLikelihood(Particle particle, double[] laserObservations) {
+		setObsArrayOfSensor(sensorModel, readingPyramid, resolutionLevel, particle.getPose(), laserObservations);
+		return sensorModel.sumOfLogLikelihood() * LIKELIHOOD_SCALE;
+	}
+	
+	
+	/**
+	 * Sample with probabilities proportional to the weights of particles.
+	 * This method returns a list whose ith element corresponds to how many times the ith sample has been sampled.
+	 *  
+	 * @param particles	a list of particles
+	 * @return 			an Integer array of counts 
+	 */
+	public Integer[] sampleMultinomial(List<Particle> particles){
+		// TODO
+		int size = particles.size();
+		
+		Integer[] vals = new Integer[size];
+		for(int i = 0; i < size; i++) {
+			vals[i] = 0;
+		}
+		
+		double random_num = 0;
+		double weight = 0;
+		
+		for(int iter = 0; iter < size; iter++) {
+			random_num = RANDOM.nextDouble();
+			
+			for(int i = 0; i < size; i++) {
+				weight = particles.get(i).getWeight();
+				if(random_num <= weight) {
+					vals[i]++;
+					i = size;
+					//System.out.println(i);
+				} else if (random_num > weight) {
+					random_num -= weight;
+				}
+			}
+		}
+		return vals;
+	}
+	
+	
+	/**
+	 * Samples new particles with probabilities proportional to their weight.
+	 * Duplicate particles are suppressed unless there are fewer particles than targetNumParticle.
+	 * For multiplicative update of weights, log of weight is reset to 0 (i.e. w = 1).
+	 * 
+	 * @return a list of selected (perturbed) particles
 	 */
 	private List<Particle> resampleParticles(List<Particle> particles){
 		Particle p;
@@ -311,6 +1288,7 @@ public class MonteCarloLocalization {
 					// Include the particle at least once if count > 0
 					p = particles.get(i);
 					p.setLogWeight(0);
+					p.setWeight(1.0);
 					newParticles.add(p);
 				} 
 				else if (count < 3 || newParticleCount < MIN_NUM_PARTICLE) {
@@ -318,6 +1296,7 @@ public class MonteCarloLocalization {
 					p = particles.get(i).clone();
 					p.perturb();
 					p.setLogWeight(0);
+					p.setWeight(1.0);
 					newParticles.add(p);
 				}
 				count -= 1;
@@ -357,6 +1336,7 @@ public class MonteCarloLocalization {
 		if (numRemParticles == 0) {
 			particles = createParticles();
 			numRemParticles = numParticle;
+			currentEss = numParticle;
 		}
 		
 		while (numRemParticles < MIN_NUM_PARTICLE) {
@@ -366,28 +1346,123 @@ public class MonteCarloLocalization {
 			particles.add(p);
 			numRemParticles++;
 		}
-		return particles;
+		return particles;
+	}
+	
+	
+	/**
+	 * Returns the control signal at a specific time step, which is computed by comparing the current odometry value and the previous one.
+	 *  
+	 * @param 	observation	an observation containing the logged robot pose 
+	 * @return				the control signal: {deltaX, deltaY, deltaTheta}
+	 */
+	private double[] getControlSignal(Observation observation) {
+		double[] currLoggedRobotPose = observation.robotPose;
+		double[] control = new double[3];
+		
+		if (prevLoggedRobotPose == null) {
+			prevLoggedRobotPose = currLoggedRobotPose;
+		}
+		
+		for (int i = 0; i < currLoggedRobotPose.length; i++) {
+			control[i] = currLoggedRobotPose[i] - prevLoggedRobotPose[i];
+		}
+		return control;
+	}
+	
+	
+	/**
+	 * Decides whether an observation only adds to the pending odometry (see setPreintegration()) instead of being
+	 * processed, and records its pose if so. "L" steps, steps after which a checkpoint is due, and steps at which
+	 * the pending motion crosses the distance or time threshold are processed.
+	 */
+	private boolean deferOdometry(Observation observation, int t) {
+		if (!preintegration || !observation.dataType.equals("O") || prevLoggedRobotPose == null) {
+			return false;
+		}
+		if (checkpointWriter != null && (t + 1) % checkpointPeriod == 0) {
+			return false;
+		}
+		double distance = pendingDistance(observation);
+		if (distance >= preintegrationMaxDistance || observation.timeStamp - pendingSince >= preintegrationMaxTime) {
+			return false;
+		}
+		pendingPoses.add(observation.robotPose);
+		pendingDistance = distance;
+		return true;
+	}
+	
+	
+	/**
+	 * Returns the logged travel of the pending poses followed by the pose of the observation, starting the
+	 * pending poses at the last processed pose if there are none yet.
+	 */
+	private double pendingDistance(Observation observation) {
+		if (pendingPoses.isEmpty()) {
+			pendingPoses.add(prevLoggedRobotPose);
+			pendingDistance = 0;
+			pendingSince = observation.timeStamp;
+		}
+		double[] last = pendingPoses.get(pendingPoses.size() - 1);
+		return pendingDistance + Math.hypot(observation.robotPose[0] - last[0], observation.robotPose[1] - last[1]);
+	}
+	
+	
+	/**
+	 * In the real-time replay mode, decides whether the filter is too late to process an observation. 
+	 * A skipped observation is added to the pending poses, and its motion applied with the next processed step.
+	 */
+	private boolean skipForReplay(Observation observation, int t) {
+		if (replay == null || prevLoggedRobotPose == null || !replay.shouldSkip(t)) {
+			return false;
+		}
+		pendingDistance = pendingDistance(observation);
+		pendingPoses.add(observation.robotPose);
+		return true;
 	}
 	
 	
 	/**
-	 * Returns the control signal at a specific time step, which is computed by comparing the current odometry value and the previous one.
-	 *  
-	 * @param 	observation	an observation containing the logged robot pose 
-	 * @return				the control signal: {deltaX, deltaY, deltaTheta}
+	 * Returns the index of the first time step to process, or -1 if there is none
 	 */
-	private double[] getControlSignal(Observation observation) {
-		double[] currLoggedRobotPose = observation.robotPose;
-		double[] control = new double[3];
-		
-		if (prevLoggedRobotPose == null) {
-			prevLoggedRobotPose = currLoggedRobotPose;
-		}
-		
-		for (int i = 0; i < currLoggedRobotPose.length; i++) {
-			control[i] = currLoggedRobotPose[i] - prevLoggedRobotPose[i];
+	private int firstTimeStep() {
+		return replay != null ? replay.next() : timeIndex;
+	}
+	
+	
+	/**
+	 * Returns the index of the time step to process after t, waiting for it in the real-time replay mode
+	 */
+	private int nextTimeStep(int t) {
+		return replay != null ? replay.next() : t + 1;
+	}
+	
+	
+	/**
+	 * Asks the motion gate whether the scan of an observation gets a sensor update, and logs the decision.
+	 */
+	private boolean passMotionGate(Observation observation) {
+		double translation = motionGate.getTranslation();
+		double rotation = motionGate.getRotation();
+		boolean update = motionGate.shouldUpdate();
+		System.out.println(String.format("\tMotion gate: %s the scan at timestamp=%.4f (%.1f cm, %.3f rad since the last update)", 
+				update ? "used" : "skipped", observation.timeStamp, translation, rotation));
+		return update;
+	}
+	
+	
+	/**
+	 * Prepares the motion from the previous logged pose by the control signal, composed with the pending odometry
+	 * steps when there are any.
+	 */
+	private MotionUpdate prepareMotion(double[] control) {
+		if (pendingPoses.isEmpty()) {
+			return odometryModel.prepareMotion(prevLoggedRobotPose, control);
 		}
-		return control;
+		List<double[]> loggedPoses = new ArrayList<>(pendingPoses);
+		double[] start = pendingPoses.get(0);
+		loggedPoses.add(new double[] {start[0] + control[0], start[1] + control[1], start[2] + control[2]});
+		return odometryModel.prepareMotion(loggedPoses);
 	}
 	
 	
@@ -411,13 +1486,18 @@ public class MonteCarloLocalization {
 	 * 	Sets the observation arrays of Sensor object based on the current pose of particle. 
 	 *  The expected laser readings must have been precomputed for theta \in [0, 2 * PI].
 	 *	The recorded laser readings span the range of [theta - PI/2, theta + PI/2].
+	 *	@param sensor				the sensor model whose observation arrays are set
+	 *	@param readingPyramid		the expected reading pyramid of the coarse-to-fine mode (only used when level > 0)
+	 *	@param level				the level of the coarse-to-fine mode, or 0 for the sensor's own expected readings
 	 *	@param particlePose			the current pose of a particle
 	 *	@param laserObservations	the laser readings at a specific time step
 	 */
-	private void setObsArrayOfSensor(double[] particlePose, double[] laserObservations){
+	static void setObsArrayOfSensor(Sensor sensor, ExpectedReadingPyramid readingPyramid, int level, double[] particlePose, double[] laserObservations){
 		double expectedReading;
-		int numBins = Sensor.NUM_BINS;							// [0, 2 * PI] range has been divided into discrete number of bins
+		int numBins = level == 0 ? Sensor.NUM_BINS : readingPyramid.getNumBins(level);	// [0, 2 * PI] range has been divided into discrete number of bins
 		int numBinsConsidered =  numBins / 2;					// 180 degrees correspond to the half of bins
+		int cellSize = level == 0 ? 10 : readingPyramid.getCellSize(level);
+		int maxIndex = level == 0 ? 799 : readingPyramid.getWidth(level) - 1;
 		
 		// Get the laser readings
 		double[] subsampledObservations = new double[numBinsConsidered];
@@ -427,24 +1507,28 @@ public class MonteCarloLocalization {
 		double theta = particlePose[2];
 		double xLaserLoc = particlePose[0] + 25 * Math.cos(theta);
 		double yLaserLoc = particlePose[1] + 25 * Math.sin(theta);
-		int xIndex = (int) Math.min(xLaserLoc / 10, 799);
-		int yIndex = (int) Math.min(yLaserLoc / 10, 799);
+		int xIndex = (int) Math.min(xLaserLoc / cellSize, maxIndex);
+		int yIndex = (int) Math.min(yLaserLoc / cellSize, maxIndex);
 		
 		// Set the starting value of theta and get its bin id
 		theta = theta - Math.PI / 2;
-		int binId = Util.thetaToBinId(theta, Sensor.NUM_BINS);
+		int binId = Util.thetaToBinId(theta, numBins);
 		int iInc = 180 / numBinsConsidered;
 		
 		// Retrieve the precomputed expected reading and initialize the actual/expected observation arrays
 		for (int i = 0; i < numBinsConsidered; i++) {
-			expectedReading = sensorModel.getExpectedObs(new int[] {xIndex, yIndex, binId});
+			if (level == 0) {
+				expectedReading = sensor.getExpectedObs(new int[] {xIndex, yIndex, binId});
+			} else {
+				expectedReading = readingPyramid.getExpectedObs(level, xIndex, yIndex, binId);
+			}
 			subsampledObservations[i] = laserObservations[iInc * i];
 			expectedObservations[i] = expectedReading;
 			binId = (binId + 1) % numBins;
 		}
 		
-		sensorModel.setExpectedObs(expectedObservations);
-		sensorModel.setActualObs(subsampledObservations);
+		sensor.setExpectedObs(expectedObservations);
+		sensor.setActualObs(subsampledObservations);
 	}
 
 	
@@ -452,25 +1536,531 @@ public class MonteCarloLocalization {
 	 * Creates numParticle number of Particle objects and returns the list of them.
 	 */
 	public List<Particle> createParticles() {
+		return createParticles(numParticle);
+	}
+	
+	
+	/**
+	 * Creates the given number of Particle objects and returns the list of them.
+	 */
+	private List<Particle> createParticles(int count) {
 		List<Particle> particles = new ArrayList<>();
-		for (int i = 0; i < numParticle; i++) {
+		for (int i = 0; i < count; i++) {
 			particles.add(new Particle());
 		}
 		return particles;
 	}
 	
+	
+	/**
+	 * Creates numParticle particles around the places of the signature index which match a scan best, split evenly
+	 * between them; the current particles are kept if the index has no candidates.
+	 * 
+	 * @param laserObservations	the scan of the step
+	 * @param reason			why the particles are seeded, for the printed message
+	 */
+	private List<Particle> seedParticles(double[] laserObservations, String reason) {
+		long start = System.nanoTime();
+		List<ScanSignatureIndex.Candidate> candidates = signatureIndex.query(laserObservations, numSeedCandidates, sensorModel.getExpectedReadings());
+		if (candidates.isEmpty()) {
+			return particles;
+		}
+		List<Particle> seeded = new ArrayList<>(numParticle);
+		for (int i = 0; i < numParticle; i++) {
+			seeded.add(seedParticle(candidates.get(i % candidates.size())));
+		}
+		if (augmentedMcl != null) {
+			augmentedMcl.reset();
+		}
+		System.out.println(String.format("Seeded %d particles around %d places (%s) in %.1f ms, best %s", numParticle,
+				candidates.size(), reason, (System.nanoTime() - start) / 1e6, candidates.get(0)));
+		return seeded;
+	}
+	
+	
+	/**
+	 * Draws a particle around a candidate place of the signature index. The candidate is the position of the laser,
+	 * which is placed 25cm ahead of the robot.
+	 */
+	private Particle seedParticle(ScanSignatureIndex.Candidate candidate) {
+		for (int i = 0; i < SEED_MAX_TRIES; i++) {
+			double theta = candidate.theta + SEED_SIGMA_THETA * RANDOM.nextGaussian();
+			double x = candidate.laserX + SEED_SIGMA_POSITION * RANDOM.nextGaussian() - 25 * Math.cos(theta);
+			double y = candidate.laserY + SEED_SIGMA_POSITION * RANDOM.nextGaussian() - 25 * Math.sin(theta);
+			if (x >= 0 && y >= 0 && Particle.isValidPosition(x, y)) {
+				return new Particle(x, y, theta, 0, 1.0);
+			}
+		}
+		double theta = candidate.theta;
+		return new Particle(candidate.laserX - 25 * Math.cos(theta), candidate.laserY - 25 * Math.sin(theta), theta, 0, 1.0);
+	}
+	
+	
+	/**
+	 * Returns whether the scans fit the particles so much worse than they used to that the robot has probably been
+	 * moved elsewhere (or the filter has converged to the wrong place); this takes the averages of augmented MCL.
+	 */
+	private boolean isKidnapped() {
+		return augmentedMcl != null && augmentedMcl.getInjectionProbability() > KIDNAP_INJECTION_PROBABILITY;
+	}
+	
+	
+	/**
+	 * Returns the number of particles used at a level of the coarse-to-fine mode: 
+	 * every coarser level multiplies numParticle by COARSE_PARTICLE_FACTOR, since coarse particles are cheaper to weight.
+	 */
+	private int numParticlesAtLevel(int level) {
+		int count = numParticle;
+		for (int i = 0; i < level; i++) {
+			count *= COARSE_PARTICLE_FACTOR;
+		}
+		return count;
+	}
+	
+	
+	/**
+	 * Checks whether the belief has concentrated enough to move on to a finer level: 
+	 * the heaviest cluster must hold most of the weight and be a few coarse cells wide at most.
+	 */
+	private boolean isBeliefConcentrated(PoseEstimate estimate) {
+		double maxStdDev = PROMOTE_MAX_STD_CELLS * readingPyramid.getCellSize(resolutionLevel);
+		return estimate.confidence >= PROMOTE_MIN_CONFIDENCE && estimate.getPositionStdDev() <= maxStdDev;
+	}
+	
+	
+	/**
+	 * Moves the coarse-to-fine mode one level finer. The particles are systematically resampled according to their
+	 * weights down to the particle count of the finer level, and their weights are reset.
+	 * 
+	 * @param particles		the particles at the current level
+	 * @return				the particles at the finer level
+	 */
+	private List<Particle> promoteResolution(List<Particle> particles) {
+		int count = numParticlesAtLevel(resolutionLevel - 1);
+		List<Particle> promoted = new ArrayList<>(count);
+		
+		// Weights need not sum to 1 here (e.g. right after resampling), so spread the pointers over the total weight
+		double totalWeight = 0;
+		for (Particle p : particles) {
+			totalWeight += p.getWeight();
+		}
+		double step = totalWeight / count;
+		double u = RANDOM.nextDouble() * step;
+		double cumulative = 0;
+		int lastIndex = -1;
+		for (int i = 0; i < particles.size() && promoted.size() < count; i++) {
+			cumulative += particles.get(i).getWeight();
+			while (u < cumulative && promoted.size() < count) {
+				Particle p = particles.get(i);
+				if (i == lastIndex) {
+					// Duplicates are cloned and perturbed
+					p = p.clone();
+					p.perturb();
+				}
+				p.setLogWeight(0);
+				p.setWeight(1.0);
+				promoted.add(p);
+				lastIndex = i;
+				u += step;
+			}
+		}
+		
+		resolutionLevel--;
+		currentEss = promoted.size();
+		System.out.println(String.format("Coarse-to-fine: moved to level %d (%d cm cells, %d particles)", 
+				resolutionLevel, resolutionLevel == 0 ? 10 : readingPyramid.getCellSize(resolutionLevel), promoted.size()));
+		return promoted;
+	}
+	
 
 	/**
-	 * Store the path of the most probable particles (may change at every iteration) with timestamps.
+	 * Refines the estimate of a step by matching its scan against the map (see CorrelativeScanMatcher). 
+	 * Steps without a scan keep the correction of the last scan, so that the track does not jump between scans.
 	 */
-	private void recordRobotPath(Particle p, Observation observation) {
+	private PoseEstimate refineEstimate(PoseEstimate estimate, double[] laserObservations) {
+		if (laserObservations.length != 0) {
+			PoseEstimate refined = scanMatcher.refine(estimate, laserObservations);
+			scanMatchCorrection = new double[] {refined.x - estimate.x, refined.y - estimate.y, refined.theta - estimate.theta};
+			return refined;
+		}
+		return new PoseEstimate(estimate.x + scanMatchCorrection[0], estimate.y + scanMatchCorrection[1], 
+				estimate.theta + scanMatchCorrection[2], estimate.covariance, estimate.confidence);
+	}
+	
+	
+	/**
+	 * Store the path of the estimated poses with timestamps.
+	 */
+	private void recordRobotPath(PoseEstimate estimate, Observation observation) {
 		double t = observation.timeStamp;
-		double[] pose = p.getPose();
-		double[] trace = new double[] {t, pose[0], pose[1]};
+		double[] trace = new double[] {t, estimate.x, estimate.y};
 		trackedPosition.add(trace);
 	}
 	
 	
+	/**
+	 * Takes a snapshot of the complete filter state between two time steps. Only primitive copies are made,
+	 * so the snapshot can be saved by another thread while the filter runs on.
+	 */
+	public FilterCheckpoint checkpoint() {
+		ParticleColumns snapshot = new ParticleColumns(particles == null ? 0 : particles.size());
+		if (particles != null) {
+			snapshot.load(particles);
+		}
+		RestorableRandom random = (RestorableRandom) RANDOM;
+		
+		List<double[]> trace = new ArrayList<>(trackedPosition.size());
+		for (double[] position : trackedPosition) {
+			trace.add(position.clone());
+		}
+		double[] ess = new double[effectiveSampleSizes.size()];
+		for (int i = 0; i < ess.length; i++) {
+			ess[i] = effectiveSampleSizes.get(i);
+		}
+		
+		return new FilterCheckpoint(numParticle, obsList.size(), timeIndex, resolutionLevel,
+				prevLoggedRobotPose == null ? null : prevLoggedRobotPose.clone(), snapshot, random.getState(),
+				random.getNextNextGaussian(), motionNoise.getSeed(), motionNoise.getGamma(), currentEss,
+				numResamplings, numScheduledResamplings, trace, ess, motionGate == null ? null : motionGate.getState(),
+				augmentedMcl == null ? null : augmentedMcl.getState(), scanMatcher == null ? null : scanMatchCorrection.clone());
+	}
+	
+	
+	/**
+	 * Restores the filter state from a checkpoint; runMonteCarloLocalization() then continues from the step after it
+	 * and produces the same results as the run which took the checkpoint. 
+	 * The checkpoint must come from a run with the same number of particles on the same log.
+	 * In the coarse-to-fine mode, setMultiResolution() has to be called before restoring, with motion gating
+	 * setMotionGate(), with augmented MCL setAugmentedMcl(), and with scan matching setScanMatching().
+	 */
+	public void restore(FilterCheckpoint checkpoint) {
+		if (checkpoint.numParticle != numParticle || checkpoint.numObservations != obsList.size()) {
+			throw new IllegalArgumentException(String.format("The %s was taken with %d particles on %d observations, not %d on %d",
+					checkpoint, checkpoint.numParticle, checkpoint.numObservations, numParticle, obsList.size()));
+		}
+		if (checkpoint.resolutionLevel > 0 && readingPyramid == null) {
+			throw new IllegalStateException("Restoring a coarse-to-fine run requires setMultiResolution() first");
+		}
+		if ((checkpoint.gateState != null) != (motionGate != null)) {
+			throw new IllegalStateException(String.format("The %s was taken %s a motion gate", checkpoint,
+					checkpoint.gateState != null ? "with" : "without"));
+		}
+		if ((checkpoint.recoveryState != null) != (augmentedMcl != null)) {
+			throw new IllegalStateException(String.format("The %s was taken %s augmented MCL", checkpoint,
+					checkpoint.recoveryState != null ? "with" : "without"));
+		}
+		if ((checkpoint.scanMatchCorrection != null) != (scanMatcher != null)) {
+			throw new IllegalStateException(String.format("The %s was taken %s scan matching", checkpoint,
+					checkpoint.scanMatchCorrection != null ? "with" : "without"));
+		}
+		
+		particles = checkpoint.createParticles();
+		timeIndex = checkpoint.timeIndex;
+		resolutionLevel = checkpoint.resolutionLevel;
+		prevLoggedRobotPose = checkpoint.prevLoggedRobotPose == null ? null : checkpoint.prevLoggedRobotPose.clone();
+		((RestorableRandom) RANDOM).restore(checkpoint.randomState, checkpoint.randomNextGaussian);
+		motionNoise = NoiseStream.fromState(checkpoint.noiseSeed, checkpoint.noiseGamma);
+		currentEss = checkpoint.currentEss;
+		numResamplings = checkpoint.numResamplings;
+		numScheduledResamplings = checkpoint.numScheduledResamplings;
+		if (motionGate != null) {
+			motionGate.restore(checkpoint.gateState);
+		}
+		if (augmentedMcl != null) {
+			augmentedMcl.restore(checkpoint.recoveryState);
+		}
+		if (scanMatcher != null) {
+			scanMatchCorrection = checkpoint.scanMatchCorrection.clone();
+		}
+		
+		trackedPosition = new ArrayList<>();
+		for (double[] position : checkpoint.trackedPosition) {
+			trackedPosition.add(position.clone());
+		}
+		effectiveSampleSizes = new ArrayList<>();
+		for (double ess : checkpoint.effectiveSampleSizes) {
+			effectiveSampleSizes.add(ess);
+		}
+		System.out.println("Restored the " + checkpoint);
+	}
+	
+	
+	/**
+	 * Attaches an evaluator which receives the estimate of every time step; the run stops early when it asks to abort.
+	 * 
+	 * @param evaluator		the evaluator, or null to detach it
+	 */
+	public void setTrajectoryEvaluator(TrajectoryEvaluator evaluator) {
+		this.trajectoryEvaluator = evaluator;
+	}
+	
+	
+	/**
+	 * Saves a checkpoint in the background every given number of time steps (and waits for it at the end of the run).
+	 * 
+	 * @param writer	the writer which saves the checkpoints, or null to stop checkpointing
+	 * @param period	the number of time steps between two checkpoints
+	 */
+	public void setCheckpointing(CheckpointWriter writer, int period) {
+		if (writer != null && period <= 0) {
+			throw new IllegalArgumentException("The checkpoint period must be positive");
+		}
+		this.checkpointWriter = writer;
+		this.checkpointPeriod = period;
+	}
+	
+	
+	/**
+	 * Returns the pose estimate of the latest time step (null before the first step), 
+	 * whose confidence and covariance can be used to gate consumers of the pose
+	 */
+	public PoseEstimate getPoseEstimate() {
+		return poseEstimate;
+	}
+	
+	
+	/**
+	 * Enables coarse-to-fine global localization. The filter starts at the coarsest level of the pyramid with
+	 * COARSE_PARTICLE_FACTOR times more particles per level, weighting them against the coarse expected readings,
+	 * and moves one level finer (with fewer particles) whenever the belief has concentrated.
+	 * 
+	 * @param pyramid	the expected reading pyramid built from the cached expected readings
+	 */
+	public void setMultiResolution(ExpectedReadingPyramid pyramid) {
+		this.readingPyramid = pyramid;
+		this.resolutionLevel = pyramid.getNumLevels() - 1;
+	}
+	
+	
+	/**
+	 * Returns the current level of the coarse-to-fine mode (0 is full resolution)
+	 */
+	public int getResolutionLevel() {
+		return resolutionLevel;
+	}
+	
+	
+	/**
+	 * Chooses between resampling whenever ESS / N drops below RESAMPLE_ESS_RATIO (true, the default)
+	 * and resampling on every RESAMPLE_PERIOD-th laser step (false).
+	 */
+	public void setAdaptiveResampling(boolean adaptiveResampling) {
+		this.adaptiveResampling = adaptiveResampling;
+	}
+	
+	
+	/**
+	 * When true, particles are weighted in the Z-order of their map cells rather than in list order (which is
+	 * shuffled every step), so that consecutive lookups of expected readings hit nearby memory.
+	 * The weights are the same either way.
+	 */
+	public void setSpatialOrdering(boolean spatialOrdering) {
+		this.spatialOrdering = spatialOrdering;
+	}
+	
+	
+	/**
+	 * Enables the deterministic parallel mode: each time step moves, weights and resamples the particles on numThreads
+	 * worker threads, drawing its random numbers from counter-based streams keyed by (seed, step, particle index).
+	 * The particles are then bit-identical for any number of threads (but not equal to the sequential mode, which keeps
+	 * drawing from RANDOM and motionNoise). The remaining sequential stages still use RANDOM as before.
+	 * The odometry model's MotionUpdate must be thread-safe (it is for the models overriding prepareMotion()).
+	 * 
+	 * @param numThreads	the number of worker threads, or 0 to go back to the sequential mode
+	 * @param seed			the seed of the counter-based streams
+	 */
+	public void setParallelism(int numThreads, long seed) {
+		if (parallelRunner != null) {
+			parallelRunner.shutdown();
+			parallelResampler.shutdown();
+			parallelRunner = null;
+			parallelResampler = null;
+		}
+		if (numThreads > 0) {
+			parallelRunner = new ParallelRunner(numThreads);
+			parallelResampler = new ParallelResampler(numThreads);
+			parallelSeed = seed;
+			workerStreams = ThreadLocal.withInitial(() -> new CounterStream(seed));
+			workerSensors = ThreadLocal.withInitial(() -> sensorModel.fork());
+		}
+	}
+	
+	
+	/**
+	 * Makes the parallel mode resample with Metropolis resampling, which needs no sum over all weights
+	 * (see ParallelResampler). It is slightly biased towards light particles unless numIterations is large
+	 * compared with the ratio of the largest to the mean weight.
+	 * 
+	 * @param numIterations	the number of Metropolis steps per particle, or 0 for systematic resampling
+	 */
+	public void setMetropolisResampling(int numIterations) {
+		this.metropolisIterations = numIterations;
+	}
+	
+	
+	/**
+	 * Enables odometry pre-integration: consecutive "O" steps no longer move the particles one by one but are composed
+	 * (see Odometry.prepareMotion(List)) and applied with the next "L" step, or as soon as the robot has logged
+	 * maxDistance cm of travel or maxTime seconds after the first deferred step. Deferred steps are not estimated,
+	 * printed, plotted or recorded, so the recorded track and effectiveSampleSizes only cover the processed steps
+	 * (compare them with the ground truth through a TrajectoryEvaluator, which interpolates). 
+	 * It applies to the sequential and the parallel mode.
+	 * 
+	 * @param maxDistance	the distance in cm after which pending odometry is applied
+	 * @param maxTime		the time in seconds after which pending odometry is applied
+	 */
+	public void setPreintegration(double maxDistance, double maxTime) {
+		this.preintegration = true;
+		this.preintegrationMaxDistance = maxDistance;
+		this.preintegrationMaxTime = maxTime;
+	}
+	
+	
+	/**
+	 * Enables motion gating: a scan is only used to weight and resample the particles once the robot has moved
+	 * far enough since the last scan that was used (see MotionGate). Every decision is printed, and the share of
+	 * skipped scans at the end of the run. It applies to the sequential and the parallel mode.
+	 * 
+	 * @param gate	the motion gate, or null to use every scan
+	 */
+	public void setMotionGate(MotionGate gate) {
+		this.motionGate = gate;
+	}
+	
+	
+	/**
+	 * Enables the off-heap mode: the particles are kept in two generations of OffHeapParticleColumns outside of the
+	 * Java heap, which resampling swaps rather than reallocates, so that garbage collection no longer depends on the
+	 * number of particles (see runOffHeap()). The run then always starts from the first observation;
+	 * runMonteCarloLocalization() refuses to run it with the coarse-to-fine mode, checkpoints, setParallelism() or
+	 * the other options of the list-based filter.
+	 * 
+	 * @param offHeapParticles	whether to keep the particles off the heap
+	 */
+	public void setOffHeapParticles(boolean offHeapParticles) {
+		this.offHeapParticles = offHeapParticles;
+	}
+	
+	
+	/**
+	 * Enables the island mode: the particles are split into numIslands sub-filters which run on their own threads
+	 * with local resampling, exchange a fraction of their particles every exchangePeriod steps, and only meet in the
+	 * merged estimate of every step (see IslandFilter). The run then always starts from the first observation;
+	 * runMonteCarloLocalization() refuses to run it with the coarse-to-fine mode, checkpoints, setParallelism() or
+	 * the other options of the list-based filter.
+	 * 
+	 * @param numIslands		the number of islands, or 0 to go back to the single filter
+	 * @param exchangePeriod	the number of steps between two exchanges
+	 * @param exchangeFraction	the fraction of its particles an island sends to the next one at every exchange
+	 * @param seed				the seed of the islands' random number streams
+	 */
+	public void setIslands(int numIslands, int exchangePeriod, double exchangeFraction, long seed) {
+		islandFilter = numIslands > 0 ? new IslandFilter(this, numParticle, numIslands, exchangePeriod, exchangeFraction, seed) : null;
+	}
+	
+	
+	/**
+	 * Enables the distributed mode: the particles live in worker processes started by the coordinator,
+	 * which only gathers per-shard summaries (see ShardCoordinator). The run then always starts from the first
+	 * observation and stops the workers at its end; runMonteCarloLocalization() refuses to run it with the
+	 * other modes and options (and stops the workers).
+	 * 
+	 * @param coordinator	a coordinator whose workers have been started, or null to go back to the single filter
+	 */
+	public void setSharding(ShardCoordinator coordinator) {
+		this.shardCoordinator = coordinator;
+	}
+	
+	
+	/**
+	 * Enables the random particle injection of augmented MCL, which lets the filter recover from a wrong convergence
+	 * without the safety margin of a large particle set. It applies to the list-based filter (sequential or parallel).
+	 */
+	public void setAugmentedMcl(AugmentedMcl augmentedMcl) {
+		this.augmentedMcl = augmentedMcl;
+	}
+	
+	
+	/**
+	 * Enables the dual proposal of Mixture-MCL: at every resampling, a share of the particles is drawn from the 
+	 * scan and the predicted belief (see DualProposal). It applies to the list-based filter (sequential or parallel).
+	 */
+	public void setDualProposal(DualProposal dualProposal) {
+		this.dualProposal = dualProposal;
+	}
+	
+	
+	/**
+	 * Enables global initialization from a scan signature index: on the first scan, the particles are seeded around
+	 * the places of the index which match it best instead of all over the map, and so they are again whenever the 
+	 * filter looks kidnapped (which takes the averages of augmented MCL, see setAugmentedMcl()). 
+	 * It applies to the list-based filter (sequential or parallel), unless it resumes from a checkpoint.
+	 * 
+	 * @param index				the signature index of the map
+	 * @param numCandidates		the number of places to seed the particles around
+	 */
+	public void setGlobalInitialization(ScanSignatureIndex index, int numCandidates) {
+		this.signatureIndex = index;
+		this.numSeedCandidates = numCandidates;
+	}
+	
+	
+	/**
+	 * Enables correlative scan matching: the estimate of every scan is corrected towards the pose nearby which fits 
+	 * the scan to the map best, before it is printed, recorded, plotted and evaluated. The particles are left alone,
+	 * so a few hundred of them can track the robot while the matcher keeps the estimate accurate. 
+	 * It applies to the list-based filter (sequential or parallel).
+	 */
+	public void setScanMatching(CorrelativeScanMatcher matcher) {
+		this.scanMatcher = matcher;
+	}
+	
+	
+	/**
+	 * Prints what the recovery of augmented MCL, the dual proposal and the scan matcher have done, if enabled
+	 */
+	private void printRecovery() {
+		if (augmentedMcl != null) {
+			System.out.println("Augmented MCL: " + augmentedMcl);
+		}
+		if (dualProposal != null) {
+			System.out.println("Mixture MCL: " + dualProposal);
+		}
+		if (scanMatcher != null) {
+			System.out.println("Scan matching: " + scanMatcher);
+		}
+	}
+	
+	
+	/**
+	 * Replays the log in real time: the observations are taken from a ReplayScheduler, which releases them at their
+	 * logged timestamps, measures the lag of every step and skips observations by its policy when the filter falls
+	 * behind. The deadline statistics are printed at the end of the run. Only the list-based filter (sequential or 
+	 * parallel) replays in real time; the off-heap, island and distributed modes refuse to run with a scheduler.
+	 */
+	public void setRealTimeReplay(ReplayScheduler scheduler) {
+		this.replay = scheduler;
+	}
+	
+	
+	/**
+	 * Publishes the pose estimate, particle count, ESS and stage latencies of every step to a FilterTelemetry,
+	 * e.g. for a TelemetryServer. The filter thread only pays for a few clock reads per step, and for a snapshot
+	 * once per publish period.
+	 */
+	public void setTelemetry(FilterTelemetry telemetry) {
+		this.telemetry = telemetry;
+	}
+	
+	
+	/**
+	 * Returns how many times particles have been resampled so far
+	 */
+	public int getNumResamplings() {
+		return numResamplings;
+	}
+	
+	
 	/**
 	 * Sets the sensor model -- THIS IS USED ONLY TO AID TESTING; DO NOT USE YOURSELF
 	 */
@@ -491,6 +2081,18 @@ public class MonteCarloLocalization {
 	 * Loads robot data and processes them
 	 */
 	private void loadLoggedData(int logNum) {
-		obsList = Observation.loadRobotLogData(String.format("data/robotdata%d.log", logNum));
+		obsList = Observation.loadRobotLogData(getLogFilePath(logNum));
+	}
+	
+	
+	/**
+	 * Returns the path to the log file which the filter replays (e.g. for an ObservationSource)
+	 */
+	public static String getLogFilePath() {
+		return getLogFilePath(LOGNUM);
+	}
+	
+	private static String getLogFilePath(int logNum) {
+		return String.format("data/robotdata%d.log", logNum);
 	}
 }
@@ -0,0 +1,114 @@
+package mcl;
+
+import util.Util;
+
+/**
+ * Decides whether a laser scan is worth a sensor update, based on how far the robot has moved since the last one.
+ * <p>
+ * A robot standing still sees nearly the same scan over and over: weighting the particles with it again only
+ * sharpens the weights on the same evidence, and the resampling that follows keeps diffusing the cloud.
+ * The gate accumulates the translation and rotation of every control signal, and lets a scan through once either
+ * exceeds its threshold, or once maxSkipped scans in a row have been skipped (so that a long idle period still
+ * gets an update now and then). The very first scan is always used.
+ * The accumulated motion is reset with every update.
+ */
+public class MotionGate {
+	private final double minTranslation;
+	private final double minRotation;
+	private final int maxSkipped;
+
+	private double translation;
+	private double rotation;
+	private int skipped;
+	private int numUpdates;
+	private int numSkipped;
+
+	/**
+	 * @param minTranslation	the translation in cm since the last update which lets a scan through
+	 * @param minRotation		the rotation in radians since the last update which lets a scan through
+	 * @param maxSkipped		the number of scans skipped in a row after which the next one is let through anyway
+	 */
+	public MotionGate(double minTranslation, double minRotation, int maxSkipped) {
+		this.minTranslation = minTranslation;
+		this.minRotation = minRotation;
+		this.maxSkipped = maxSkipped;
+	}
+
+	/**
+	 * Adds the motion of a control signal {deltaX, deltaY, deltaTheta} to the motion since the last update.
+	 */
+	public void addMotion(double[] control) {
+		translation += Math.hypot(control[0], control[1]);
+		rotation += Math.abs(Util.normalizeAngle(control[2]));
+	}
+
+	/**
+	 * Decides whether the current scan gets a sensor update; if so, the accumulated motion is reset.
+	 */
+	public boolean shouldUpdate() {
+		if (numUpdates == 0 || translation >= minTranslation || rotation >= minRotation || skipped >= maxSkipped) {
+			translation = 0;
+			rotation = 0;
+			skipped = 0;
+			numUpdates++;
+			return true;
+		}
+		skipped++;
+		numSkipped++;
+		return false;
+	}
+
+	/**
+	 * Returns the accumulators and counters, {translation, rotation, skipped, numUpdates, numSkipped}, for a checkpoint
+	 */
+	double[] getState() {
+		return new double[] {translation, rotation, skipped, numUpdates, numSkipped};
+	}
+
+	/**
+	 * Restores the accumulators and counters returned by getState()
+	 */
+	void restore(double[] state) {
+		translation = state[0];
+		rotation = state[1];
+		skipped = (int) state[2];
+		numUpdates = (int) state[3];
+		numSkipped = (int) state[4];
+	}
+
+	/**
+	 * Returns the translation in cm accumulated since the last update
+	 */
+	public double getTranslation() {
+		return translation;
+	}
+
+	/**
+	 * Returns the rotation in radians accumulated since the last update
+	 */
+	public double getRotation() {
+		return rotation;
+	}
+
+	/**
+	 * Returns the number of scans let through so far
+	 */
+	public int getNumUpdates() {
+		return numUpdates;
+	}
+
+	/**
+	 * Returns the number of scans skipped so far
+	 */
+	public int getNumSkipped() {
+		return numSkipped;
+	}
+
+	/**
+	 * Defines the format of string to be printed out
+	 */
+	public String toString() {
+		int total = numUpdates + numSkipped;
+		return String.format("%d of %d scans skipped (%.1f%%)", numSkipped, total, total == 0 ? 0 : 100.0 * numSkipped / total);
+	}
+}
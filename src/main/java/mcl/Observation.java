@@ -44,6 +44,18 @@ public class Observation {
 		processSingleObservation(rawObservation);
 	}
 	
+	/**
+	 * Creates an observation from its values (e.g. read from a binary log); laserPose and laserReadings are null
+	 * for type "O".
+	 */
+	public Observation(String dataType, double timeStamp, double[] robotPose, double[] laserPose, double[] laserReadings) {
+		this.dataType = dataType;
+		this.timeStamp = timeStamp;
+		this.robotPose = robotPose;
+		this.laserPose = laserPose;
+		this.laserReadings = laserReadings;
+	}
+	
 	/**
 	 * Parses a raw array of Strings containing odometry and/or laser readings and stores them into Observation object.
      * Type L ['type', 'x', 'y', 'theta', 'xl', 'yl', 'thetal', r1 ~r180, 'ts']
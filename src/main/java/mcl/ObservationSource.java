@@ -0,0 +1,68 @@
+package mcl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+
+/**
+ * The start of the pipeline (see MonteCarloLocalization.runPipeline()): publishes observations to the filter.
+ * <p>
+ * A source produces its observations on its own thread, ahead of the filter by at most BUFFER_SIZE observations:
+ * emit() blocks while the buffer is full, so a source never runs away from a slow filter. The filter runs on the
+ * thread which delivers the observations, and asks for the next one when it is done with a step.
+ */
+public abstract class ObservationSource implements Flow.Publisher<Observation> {
+	public static final int BUFFER_SIZE = 64;
+
+	private final ExecutorService executor;
+	private final SubmissionPublisher<Observation> publisher;
+
+	protected ObservationSource() {
+		executor = Executors.newFixedThreadPool(2, runnable -> {
+			Thread thread = new Thread(runnable, "pipeline-source");
+			thread.setDaemon(true);
+			return thread;
+		});
+		publisher = new SubmissionPublisher<>(executor, BUFFER_SIZE);
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super Observation> subscriber) {
+		publisher.subscribe(subscriber);
+	}
+
+	/**
+	 * Starts producing the observations in the background; the subscribers should be subscribed first.
+	 */
+	public void start() {
+		executor.execute(() -> {
+			try {
+				produce();
+				publisher.close();
+			} catch (Exception e) {
+				publisher.closeExceptionally(e);
+			}
+		});
+	}
+
+	/**
+	 * Produces all the observations with emit(); the source is closed when it returns.
+	 */
+	protected abstract void produce() throws Exception;
+
+	/**
+	 * Publishes an observation, waiting while the buffer of a subscriber is full.
+	 */
+	protected void emit(Observation observation) {
+		publisher.submit(observation);
+	}
+
+	/**
+	 * Stops producing and delivering observations
+	 */
+	public void close() {
+		publisher.close();
+		executor.shutdownNow();
+	}
+}
@@ -0,0 +1,154 @@
+package mcl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.List;
+
+/**
+ * Particle columns stored outside of the Java heap, in one direct buffer per set.
+ * <p>
+ * The garbage collector only sees a handful of small buffer objects, however many particles there are, so the work
+ * of a collection no longer grows with the number of particles. The buffer is aligned to ALIGNMENT bytes and every
+ * column starts on such a boundary (the capacity is rounded up to whole lines), so that batches of a column load as
+ * aligned vectors. Values are in native byte order.
+ * <p>
+ * The memory is only given back when the buffer itself is collected, so sets should be kept and reused (see
+ * MonteCarloLocalization.setOffHeapParticles(), which swaps two generations) rather than created every step.
+ * Direct buffers count against -XX:MaxDirectMemorySize, which defaults to the maximum heap size.
+ */
+public class OffHeapParticleColumns extends ParticleColumns {
+	public static final int ALIGNMENT = 64;							// bytes, a cache line and the widest vector
+	private static final int NUM_COLUMNS = 5;
+	private static final int DOUBLES_PER_LINE = ALIGNMENT / Double.BYTES;
+
+	private DoubleBuffer x;
+	private DoubleBuffer y;
+	private DoubleBuffer theta;
+	private DoubleBuffer logWeight;
+	private DoubleBuffer weight;
+	private int capacity;
+	private int size;
+
+	/**
+	 * Creates empty off-heap columns which can hold up to capacity particles without growing.
+	 *
+	 * @param capacity	the initial capacity
+	 */
+	public OffHeapParticleColumns(int capacity) {
+		super(0);
+		allocate(capacity);
+	}
+
+	/**
+	 * Points the columns at a new aligned buffer of (at least) the given capacity; the content is not kept.
+	 */
+	private void allocate(int minCapacity) {
+		int columnDoubles = (minCapacity + DOUBLES_PER_LINE - 1) / DOUBLES_PER_LINE * DOUBLES_PER_LINE;
+		int columnBytes = columnDoubles * Double.BYTES;
+		ByteBuffer buffer = ByteBuffer.allocateDirect(NUM_COLUMNS * columnBytes + ALIGNMENT).alignedSlice(ALIGNMENT);
+		x = column(buffer, 0, columnBytes);
+		y = column(buffer, 1, columnBytes);
+		theta = column(buffer, 2, columnBytes);
+		logWeight = column(buffer, 3, columnBytes);
+		weight = column(buffer, 4, columnBytes);
+		capacity = columnDoubles;
+	}
+
+	private static DoubleBuffer column(ByteBuffer buffer, int index, int columnBytes) {
+		return buffer.slice(index * columnBytes, columnBytes).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public int capacity() {
+		return capacity;
+	}
+
+	@Override
+	public void setSize(int newSize) {
+		ensureCapacity(newSize);
+		size = newSize;
+	}
+
+	/**
+	 * Grows the columns so that they can hold at least minCapacity particles, copying the particles into a new buffer.
+	 */
+	@Override
+	public void ensureCapacity(int minCapacity) {
+		if (minCapacity <= capacity) {
+			return;
+		}
+		DoubleBuffer[] old = {x, y, theta, logWeight, weight};
+		allocate(Math.max(minCapacity, capacity + (capacity >> 1)));
+		DoubleBuffer[] grown = {x, y, theta, logWeight, weight};
+		for (int c = 0; c < NUM_COLUMNS; c++) {
+			grown[c].put(0, old[c], 0, size);
+		}
+	}
+
+	@Override
+	public double getX(int i) {
+		return x.get(i);
+	}
+
+	@Override
+	public double getY(int i) {
+		return y.get(i);
+	}
+
+	@Override
+	public double getTheta(int i) {
+		return theta.get(i);
+	}
+
+	@Override
+	public void setPose(int i, double newX, double newY, double newTheta) {
+		x.put(i, newX);
+		y.put(i, newY);
+		theta.put(i, newTheta);
+	}
+
+	@Override
+	public double getLogWeight(int i) {
+		return logWeight.get(i);
+	}
+
+	@Override
+	public void setLogWeight(int i, double logw) {
+		logWeight.put(i, logw);
+	}
+
+	@Override
+	public double getWeight(int i) {
+		return weight.get(i);
+	}
+
+	@Override
+	public void setWeight(int i, double w) {
+		weight.put(i, w);
+	}
+
+	@Override
+	public void load(List<Particle> particles) {
+		setSize(particles.size());
+		for (int i = 0; i < size; i++) {
+			Particle p = particles.get(i);
+			double[] pose = p.getPose();
+			setPose(i, pose[0], pose[1], pose[2]);
+			logWeight.put(i, p.getLogWeight());
+			weight.put(i, p.getWeight());
+		}
+	}
+
+	@Override
+	public void storePoses(List<Particle> particles) {
+		for (int i = 0; i < size; i++) {
+			particles.get(i).setPose(x.get(i), y.get(i), theta.get(i));
+		}
+	}
+}
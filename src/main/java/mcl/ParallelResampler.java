@@ -0,0 +1,164 @@
+package mcl;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+import noise.CounterStream;
+
+/**
+ * Resampling schemes for large particle sets which run on a fork-join pool over primitive weight arrays.
+ * Both fill an array of ancestors: slot i of the new particle set is a copy of particle ancestors[i].
+ * <p>
+ * systematic() is systematic resampling whose cumulative weights come from a parallel prefix sum: every chunk of
+ * CHUNK_SIZE weights is summed in parallel, the few chunk totals are scanned sequentially, and then every chunk
+ * assigns the systematic pointers u + k (scaled to the total weight) which fall into its own range of the cumulative
+ * weights. Since the chunks do not depend on the number of threads and are combined in a fixed order, the ancestors
+ * are the same for any pool. Offspring counts differ from N w_i / sum(w) by less than one, as in the serial walk.
+ * <p>
+ * metropolis() is Metropolis resampling (Murray, Lee and Jacob, 2016), which needs no sum over the weights at all:
+ * every slot starts at its own index and, for numIterations rounds, moves to a uniformly drawn index j with
+ * probability min(1, w_j / w_k). Slots are fully independent, and their random numbers come from a CounterStream
+ * keyed by the slot, so the result does not depend on the pool either. It is biased for a small numIterations;
+ * the bias fades once numIterations is well above the ratio of the largest weight to the mean weight.
+ */
+public class ParallelResampler {
+	public static final int CHUNK_SIZE = 4096;
+
+	private final ForkJoinPool pool;
+
+	/**
+	 * @param numThreads	the parallelism of the fork-join pool which runs the chunks
+	 */
+	public ParallelResampler(int numThreads) {
+		if (numThreads < 1) {
+			throw new IllegalArgumentException("A ParallelResampler needs at least one thread");
+		}
+		this.pool = new ForkJoinPool(numThreads);
+	}
+
+	/**
+	 * Systematic resampling of n slots from the first n weights.
+	 *
+	 * @param weights	the (not necessarily normalized) weights; the sum must be positive
+	 * @param n			the number of particles, and of slots
+	 * @param u			the offset of the pointers in [0, 1)
+	 * @param ancestors	receives the ancestor of every slot (length >= n)
+	 */
+	public void systematic(double[] weights, int n, double u, int[] ancestors) {
+		int numChunks = (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		if (numChunks == 0) {
+			return;
+		}
+
+		// Sum every chunk in parallel, then scan the chunk sums
+		double[] chunkStart = new double[numChunks + 1];
+		forEachChunk(numChunks, c -> {
+			double sum = 0;
+			for (int i = c * CHUNK_SIZE, end = Math.min(n, i + CHUNK_SIZE); i < end; i++) {
+				sum += weights[i];
+			}
+			chunkStart[c + 1] = sum;
+		});
+		for (int c = 0; c < numChunks; c++) {
+			chunkStart[c + 1] += chunkStart[c];
+		}
+		double total = chunkStart[numChunks];
+		double scale = n / total;						// pointer k sits at (u + k) / scale on the cumulative weights
+
+		// Every chunk takes the pointers which fall into its range [chunkStart[c], chunkStart[c + 1])
+		forEachChunk(numChunks, c -> {
+			int from = c * CHUNK_SIZE;
+			int to = Math.min(n, from + CHUNK_SIZE);
+			int k = firstPointerAtOrAbove(chunkStart[c] * scale, u);
+			int kEnd = c == numChunks - 1 ? n : Math.min(n, firstPointerAtOrAbove(chunkStart[c + 1] * scale, u));
+			double cumulative = chunkStart[c] * scale;
+			int i = from;
+			double next = cumulative + weights[i] * scale;
+			for (; k < kEnd; k++) {
+				while (u + k >= next && i < to - 1) {
+					i++;
+					next += weights[i] * scale;
+				}
+				ancestors[k] = i;
+			}
+		});
+	}
+
+	/**
+	 * Returns the smallest k >= 0 with u + k >= position
+	 */
+	private static int firstPointerAtOrAbove(double position, double u) {
+		return (int) Math.max(0, Math.ceil(position - u));
+	}
+
+	/**
+	 * Metropolis resampling of n slots from the first n weights.
+	 *
+	 * @param weights		the (not necessarily normalized) weights
+	 * @param n				the number of particles, and of slots
+	 * @param numIterations	the number of Metropolis steps per slot
+	 * @param seed			the seed of the counter-based random numbers
+	 * @param step			the time step, which positions the random numbers together with domain and slot
+	 * @param domain		the domain of the random numbers (see CounterStream.at())
+	 * @param ancestors		receives the ancestor of every slot (length >= n)
+	 */
+	public void metropolis(double[] weights, int n, int numIterations, long seed, long step, int domain, int[] ancestors) {
+		int numChunks = (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		forEachChunk(numChunks, c -> {
+			CounterStream stream = new CounterStream(seed);
+			for (int slot = c * CHUNK_SIZE, end = Math.min(n, slot + CHUNK_SIZE); slot < end; slot++) {
+				stream.at(step, domain, slot);
+				int k = slot;
+				for (int b = 0; b < numIterations; b++) {
+					int j = stream.nextInt(n);
+					if (stream.nextDouble() * weights[k] <= weights[j]) {
+						k = j;
+					}
+				}
+				ancestors[slot] = k;
+			}
+		});
+	}
+
+	/**
+	 * Stops the pool once the running resampling is done.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	private void forEachChunk(int numChunks, IntConsumer body) {
+		if (numChunks == 1) {
+			body.accept(0);
+		} else if (numChunks > 1) {
+			pool.invoke(new ChunkAction(0, numChunks, body));
+		}
+	}
+
+	/**
+	 * Runs the body for the chunks [from, to), splitting the range in halves down to single chunks.
+	 */
+	private static final class ChunkAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int from;
+		private final int to;
+		private final IntConsumer body;
+
+		ChunkAction(int from, int to, IntConsumer body) {
+			this.from = from;
+			this.to = to;
+			this.body = body;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				body.accept(from);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new ChunkAction(from, mid, body), new ChunkAction(mid, to, body));
+		}
+	}
+}
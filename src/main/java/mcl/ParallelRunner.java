@@ -0,0 +1,94 @@
+package mcl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs loops over particle indices on a fixed pool of worker threads.
+ * <p>
+ * The index range is cut into chunks of CHUNK_SIZE indices regardless of the number of threads, and forEachChunk()
+ * returns once all chunks are done. The loop body must only write state that belongs to its own indices (or to
+ * its own thread); then the result does not depend on how the chunks are spread over the threads.
+ */
+public class ParallelRunner {
+	public static final int CHUNK_SIZE = 256;
+
+	private final int numThreads;
+	private final ExecutorService pool;
+
+	/**
+	 * A loop body over the indices [from, to).
+	 */
+	public interface RangeTask {
+		void run(int from, int to);
+	}
+
+	/**
+	 * @param numThreads	the number of worker threads
+	 */
+	public ParallelRunner(int numThreads) {
+		if (numThreads < 1) {
+			throw new IllegalArgumentException("A ParallelRunner needs at least one thread");
+		}
+		this.numThreads = numThreads;
+		this.pool = Executors.newFixedThreadPool(numThreads, runnable -> {
+			Thread thread = new Thread(runnable, "mcl-worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Runs the task over [0, n) in chunks and waits for all of them. An exception thrown by the task is rethrown.
+	 */
+	public void forEachChunk(int n, RangeTask task) {
+		if (n <= CHUNK_SIZE || numThreads == 1) {
+			for (int from = 0; from < n; from += CHUNK_SIZE) {
+				task.run(from, Math.min(n, from + CHUNK_SIZE));
+			}
+			return;
+		}
+
+		List<Callable<Void>> chunks = new ArrayList<>((n + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		for (int from = 0; from < n; from += CHUNK_SIZE) {
+			int start = from;
+			int end = Math.min(n, from + CHUNK_SIZE);
+			chunks.add(() -> {
+				task.run(start, end);
+				return null;
+			});
+		}
+		try {
+			for (Future<Void> future : pool.invokeAll(chunks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the workers", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Returns the number of worker threads
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * Stops the worker threads.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+}
@@ -1,6 +1,7 @@
 package mcl;
 
 import java.util.*;
+import java.util.random.RandomGenerator;
 
 import map.GlobalMap;
 
@@ -21,7 +22,24 @@ public class Particle implements Comparable<Particle>{
 	 * Instantiates a Particle object with an initial random pose.
 	 */
 	public Particle() {
-		this.initPose();
+		this.initPose(MonteCarloLocalization.RANDOM);
+	}
+	
+	/**
+	 * Instantiates a Particle object with an initial random pose drawn from the given generator.
+	 */
+	Particle(RandomGenerator random) {
+		this.initPose(random);
+	}
+	
+	/**
+	 * Instantiates a Particle object with a given pose and weights (e.g. when restoring a checkpoint).
+	 * Unlike Particle(), this does not draw from MonteCarloLocalization.RANDOM.
+	 */
+	Particle(double x, double y, double theta, double logWeight, double weight) {
+		this.pose = new double[] {x, y, theta};
+		this.logWeight = logWeight;
+		this.weight = weight;
 	}
 	
 	/**
@@ -35,15 +53,15 @@ public class Particle implements Comparable<Particle>{
 	/**
 	 * Initializes the pose of a particle.
 	 */
-	private void initPose() {		
-		double theta = MonteCarloLocalization.RANDOM.nextDouble() * (4 * Math.PI) - 2 * Math.PI;
+	private void initPose(RandomGenerator random) {		
+		double theta = random.nextDouble() * (4 * Math.PI) - 2 * Math.PI;
 		double ub = 8000; 
 		boolean validPose = false;
 		
 		// Particle should have a valid position defined by the map
 		while (!validPose) {
-			double x = MonteCarloLocalization.RANDOM.nextDouble() * (ub + 1);
-			double y = MonteCarloLocalization.RANDOM.nextDouble() * (ub + 1);
+			double x = random.nextDouble() * (ub + 1);
+			double y = random.nextDouble() * (ub + 1);
 			pose = new double[] {x, y, theta};
 			validPose = isValidPosition();
 		}
@@ -54,8 +72,15 @@ public class Particle implements Comparable<Particle>{
 	 * A position is valid if it can be occupied with probability > 0.8. 
 	 */
 	public boolean isValidPosition() {
-		int x = (int) pose[0] / 10;
-		int y = (int) pose[1] / 10;
+		return isValidPosition(pose[0], pose[1]);
+	}
+	
+	/**
+	 * Checks if a position (in cm) is valid on the map, as isValidPosition() does for the position of a particle.
+	 */
+	static boolean isValidPosition(double xPosition, double yPosition) {
+		int x = (int) xPosition / 10;
+		int y = (int) yPosition / 10;
 		
 		if (x < 0 || y < 0) {
 			System.out.println(String.format("Unexpected initial position! (x, y): (%d, %d)", x, y));
@@ -63,7 +88,7 @@ public class Particle implements Comparable<Particle>{
 		}
 		
 		try {
-			if (Double.parseDouble(globalMap.globalMapValues[x][y]) > 0.8) {
+			if (globalMap.globalMapValues[x][y] > 0.8) {
 				return true;
 			} else {
 				return false;
@@ -126,25 +151,45 @@ public class Particle implements Comparable<Particle>{
 		return clone;
 	}
 	
+	/**
+	 * Returns a copy of this Particle with the same pose and weights. Unlike clone(), this does not draw from
+	 * MonteCarloLocalization.RANDOM, so it may be called from any thread.
+	 */
+	Particle copy() {
+		return new Particle(pose[0], pose[1], pose[2], logWeight, weight);
+	}
+	
 	/**
 	 * Stochastically perturbs the pose of this particle 
 	 */
 	protected void perturb() {
+		perturb(MonteCarloLocalization.RANDOM);
+	}
+	
+	/**
+	 * Stochastically perturbs the pose of this particle, drawing the noise from the given generator
+	 */
+	void perturb(RandomGenerator random) {
+		double[] newPose = new double[3];
+		perturb(pose[0], pose[1], pose[2], random, newPose);
+		pose = newPose;
+	}
+	
+	/**
+	 * Writes a stochastic perturbation of the given pose into newPose, drawing the noise from the given generator
+	 * until the position is valid. This is perturb() for poses that do not live in a Particle object.
+	 */
+	static void perturb(double x, double y, double theta, RandomGenerator random, double[] newPose) {
 		boolean newValidPose = false;
-		double newCurrentX, newCurrentY, newCurrentTheta;
-		double[] currentPose = Arrays.copyOf(pose, 3);
 		
 		while (!newValidPose) {
 			// Perturb theta
-			pose = currentPose;
-			newCurrentTheta = pose[2] + SIGMA_THETA_PERTURB * MonteCarloLocalization.RANDOM.nextGaussian();
-			newCurrentTheta = newCurrentTheta % (2 * Math.PI);
+			newPose[2] = (theta + SIGMA_THETA_PERTURB * random.nextGaussian()) % (2 * Math.PI);
 			
 			// Perturb position
-			newCurrentX = pose[0] + SIGMA_POSITION_PERTURB * MonteCarloLocalization.RANDOM.nextGaussian();
-			newCurrentY = pose[1] + SIGMA_POSITION_PERTURB * MonteCarloLocalization.RANDOM.nextGaussian();
-			pose = new double[] {newCurrentX, newCurrentY, newCurrentTheta};
-			newValidPose = isValidPosition();
+			newPose[0] = x + SIGMA_POSITION_PERTURB * random.nextGaussian();
+			newPose[1] = y + SIGMA_POSITION_PERTURB * random.nextGaussian();
+			newValidPose = isValidPosition(newPose[0], newPose[1]);
 		}
 	}
 	
@@ -159,7 +204,9 @@ public class Particle implements Comparable<Particle>{
 	 * Sets the pose of this particle
 	 */
 	public void setPose(double x, double y, double theta) {
-		pose = new double[] {x, y, theta};
+		pose[0] = x;
+		pose[1] = y;
+		pose[2] = theta;
 	}
 	
 	public void setPose(double[] newPose) {
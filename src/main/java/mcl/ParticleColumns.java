@@ -0,0 +1,159 @@
+package mcl;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A struct-of-arrays representation of a set of particles.
+ * <p>
+ * Instead of one object per particle, poses and weights are kept in primitive columns (x, y, theta, logWeight, weight)
+ * so that batch stages such as the odometry update can sweep over the whole set without allocating per particle.
+ * Disjoint index ranges may be processed by different threads at the same time.
+ * OffHeapParticleColumns keeps the same columns outside of the Java heap.
+ */
+public class ParticleColumns {
+	private double[] x;
+	private double[] y;
+	private double[] theta;
+	private double[] logWeight;
+	private double[] weight;
+	private int size;
+
+	/**
+	 * Creates empty columns which can hold up to capacity particles without growing.
+	 *
+	 * @param capacity	the initial capacity
+	 */
+	public ParticleColumns(int capacity) {
+		x = new double[capacity];
+		y = new double[capacity];
+		theta = new double[capacity];
+		logWeight = new double[capacity];
+		weight = new double[capacity];
+	}
+
+	/**
+	 * Returns the number of particles stored in the columns
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of particles the columns can hold without growing
+	 */
+	public int capacity() {
+		return x.length;
+	}
+
+	/**
+	 * Sets the number of particles, growing the columns if necessary. Newly exposed entries are not cleared.
+	 *
+	 * @param newSize	the new number of particles
+	 */
+	public void setSize(int newSize) {
+		ensureCapacity(newSize);
+		size = newSize;
+	}
+
+	/**
+	 * Grows the columns so that they can hold at least minCapacity particles.
+	 */
+	public void ensureCapacity(int minCapacity) {
+		if (minCapacity <= x.length) {
+			return;
+		}
+		int newCapacity = Math.max(minCapacity, x.length + (x.length >> 1));
+		x = Arrays.copyOf(x, newCapacity);
+		y = Arrays.copyOf(y, newCapacity);
+		theta = Arrays.copyOf(theta, newCapacity);
+		logWeight = Arrays.copyOf(logWeight, newCapacity);
+		weight = Arrays.copyOf(weight, newCapacity);
+	}
+
+	public double getX(int i) {
+		return x[i];
+	}
+
+	public double getY(int i) {
+		return y[i];
+	}
+
+	public double getTheta(int i) {
+		return theta[i];
+	}
+
+	/**
+	 * Sets the pose of the ith particle
+	 */
+	public void setPose(int i, double newX, double newY, double newTheta) {
+		x[i] = newX;
+		y[i] = newY;
+		theta[i] = newTheta;
+	}
+
+	public double getLogWeight(int i) {
+		return logWeight[i];
+	}
+
+	public void setLogWeight(int i, double logw) {
+		logWeight[i] = logw;
+	}
+
+	public double getWeight(int i) {
+		return weight[i];
+	}
+
+	public void setWeight(int i, double w) {
+		weight[i] = w;
+	}
+
+	/**
+	 * Replaces the content of the columns with the poses and weights of the given particles.
+	 *
+	 * @param particles		the particles to copy from
+	 */
+	public void load(List<Particle> particles) {
+		setSize(particles.size());
+		for (int i = 0; i < size; i++) {
+			Particle p = particles.get(i);
+			double[] pose = p.getPose();
+			x[i] = pose[0];
+			y[i] = pose[1];
+			theta[i] = pose[2];
+			logWeight[i] = p.getLogWeight();
+			weight[i] = p.getWeight();
+		}
+	}
+
+	/**
+	 * Drops the particles whose positions are not valid on the map (see Particle.isValidPosition()), moving the
+	 * poses and both weights of the remaining ones down in order.
+	 *
+	 * @return	the number of particles left
+	 */
+	public int removeInvalidPositions() {
+		int n = 0;
+		for (int i = 0; i < size(); i++) {
+			if (Particle.isValidPosition(getX(i), getY(i))) {
+				setPose(n, getX(i), getY(i), getTheta(i));
+				setLogWeight(n, getLogWeight(i));
+				setWeight(n, getWeight(i));
+				n++;
+			}
+		}
+		setSize(n);
+		return n;
+	}
+
+	/**
+	 * Writes the poses stored in the columns back to the given particles (which must be in the same order as in load()).
+	 *
+	 * @param particles		the particles to copy to
+	 */
+	public void storePoses(List<Particle> particles) {
+		for (int i = 0; i < size; i++) {
+			particles.get(i).setPose(x[i], y[i], theta[i]);
+		}
+	}
+}
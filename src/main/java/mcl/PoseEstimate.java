@@ -0,0 +1,45 @@
+package mcl;
+
+/**
+ * A pose estimate of the robot together with its uncertainty.
+ * <p>
+ * The pose is the weighted mean of the heaviest cluster of particles (with the circular mean for theta),
+ * the covariance is computed over the same cluster, and the confidence is the fraction of the total particle
+ * weight which falls into the cluster. Consumers can use the confidence to ignore estimates of a spread-out belief.
+ */
+public class PoseEstimate {
+	public final double x;
+	public final double y;
+	public final double theta;
+	public final double[][] covariance;			// 3 x 3 covariance of (x, y, theta)
+	public final double confidence;				// cluster weight / total weight, in [0, 1]
+	
+	public PoseEstimate(double x, double y, double theta, double[][] covariance, double confidence) {
+		this.x = x;
+		this.y = y;
+		this.theta = theta;
+		this.covariance = covariance;
+		this.confidence = confidence;
+	}
+	
+	/**
+	 * Returns the estimated pose as {x, y, theta}
+	 */
+	public double[] getPose() {
+		return new double[] {x, y, theta};
+	}
+	
+	/**
+	 * Returns the standard deviation of the position, sqrt(var(x) + var(y)), in cm
+	 */
+	public double getPositionStdDev() {
+		return Math.sqrt(covariance[0][0] + covariance[1][1]);
+	}
+	
+	/**
+	 * Defines the format of string to be printed out
+	 */
+	public String toString() {
+		return String.format("x=%s y=%s theta=%s -- confidence=%.3f std=%.1f", x, y, theta, confidence, getPositionStdDev());
+	}
+}
@@ -0,0 +1,332 @@
+package mcl;
+
+import java.util.List;
+
+import util.Util;
+
+/**
+ * Estimates the pose of the robot from a weighted particle set in O(N), without sorting.
+ * <p>
+ * In a first pass, particles are binned into a coarse spatial hash grid (CELL_SIZE x CELL_SIZE cm cells)
+ * which accumulates the weight, the weighted position and the weighted heading vector of every occupied cell.
+ * The heaviest cluster is the 3 x 3 block of cells with the largest total weight; its weighted mean pose
+ * follows directly from the cell sums. A second pass over the particles of that cluster gives the covariance.
+ * <p>
+ * The hash grid is kept between calls, so an estimator should be used by a single thread.
+ */
+public class PoseEstimator {
+	private static final double CELL_SIZE = 50;				// Size of a grid cell in cm
+	private static final int CELL_OFFSET = 1 << 15;			// Shifts cell coordinates to be non-negative
+
+	// Open-addressing hash table of grid cells; a slot is occupied when its stamp equals the current generation
+	private int[] stamps = new int[0];
+	private int[] cellKeys;
+	private double[] cellWeight;
+	private double[] cellX;
+	private double[] cellY;
+	private double[] cellCos;
+	private double[] cellSin;
+	private int[] occupiedSlots;
+	private int numOccupied;
+	private int generation;
+	private int mask;
+
+	// Cell of every particle, kept for the covariance pass
+	private int[] particleCells = new int[0];
+
+	/**
+	 * Estimates the pose from a list of particles, using their (normalized or not) weights.
+	 */
+	public PoseEstimate estimate(List<Particle> particles) {
+		int n = particles.size();
+		begin(n);
+		for (int i = 0; i < n; i++) {
+			Particle p = particles.get(i);
+			double[] pose = p.getPose();
+			accumulate(i, pose[0], pose[1], pose[2], p.getWeight());
+		}
+
+		Cluster cluster = findHeaviestCluster();
+		for (int i = 0; i < n; i++) {
+			Particle p = particles.get(i);
+			double[] pose = p.getPose();
+			cluster.accumulateCovariance(particleCells[i], pose[0], pose[1], pose[2], p.getWeight());
+		}
+		return cluster.toEstimate();
+	}
+
+	/**
+	 * Estimates the pose from particle columns, using their (normalized or not) weights.
+	 */
+	public PoseEstimate estimate(ParticleColumns particles) {
+		int n = particles.size();
+		begin(n);
+		for (int i = 0; i < n; i++) {
+			accumulate(i, particles.getX(i), particles.getY(i), particles.getTheta(i), particles.getWeight(i));
+		}
+
+		Cluster cluster = findHeaviestCluster();
+		for (int i = 0; i < n; i++) {
+			cluster.accumulateCovariance(particleCells[i], particles.getX(i), particles.getY(i), particles.getTheta(i), particles.getWeight(i));
+		}
+		return cluster.toEstimate();
+	}
+
+	/**
+	 * Merges the estimates of several particle sets (e.g. islands or shards) into one. Each set counts with its
+	 * weight times the confidence of its estimate. The estimates within mergeDistance of the heaviest one are
+	 * averaged into the merged pose, and their covariance is that of the mixture. The confidence is the merged
+	 * share of the total weight.
+	 *
+	 * @param estimates		the estimate of every set
+	 * @param logWeights	the log of the (unnormalized) weight of every set
+	 * @param mergeDistance	the distance in cm up to which estimates are merged with the heaviest one
+	 * @return				the merged estimate
+	 */
+	public static PoseEstimate merge(PoseEstimate[] estimates, double[] logWeights, double mergeDistance) {
+		double maxLogWeight = Double.NEGATIVE_INFINITY;
+		for (double logWeight : logWeights) {
+			maxLogWeight = Math.max(maxLogWeight, logWeight);
+		}
+
+		double[] setWeight = new double[estimates.length];
+		double totalWeight = 0;
+		int best = 0;
+		for (int i = 0; i < estimates.length; i++) {
+			// When every set has lost track, they all count the same
+			setWeight[i] = maxLogWeight == Double.NEGATIVE_INFINITY ? 1 : Math.exp(logWeights[i] - maxLogWeight);
+			totalWeight += setWeight[i];
+			if (setWeight[i] * estimates[i].confidence > setWeight[best] * estimates[best].confidence) {
+				best = i;
+			}
+		}
+
+		PoseEstimate bestEstimate = estimates[best];
+		boolean[] merged = new boolean[estimates.length];
+		double sumWeight = 0, sumX = 0, sumY = 0, sumCos = 0, sumSin = 0;
+		for (int i = 0; i < estimates.length; i++) {
+			PoseEstimate estimate = estimates[i];
+			double w = setWeight[i] * estimate.confidence;
+			if (w > 0 && Math.hypot(estimate.x - bestEstimate.x, estimate.y - bestEstimate.y) <= mergeDistance) {
+				merged[i] = true;
+				sumWeight += w;
+				sumX += w * estimate.x;
+				sumY += w * estimate.y;
+				sumCos += w * Math.cos(estimate.theta);
+				sumSin += w * Math.sin(estimate.theta);
+			}
+		}
+		if (sumWeight == 0) {
+			return bestEstimate;
+		}
+		double x = sumX / sumWeight;
+		double y = sumY / sumWeight;
+		double theta = Math.atan2(sumSin, sumCos);
+
+		double[][] covariance = new double[3][3];
+		for (int i = 0; i < estimates.length; i++) {
+			if (!merged[i]) {
+				continue;
+			}
+			PoseEstimate estimate = estimates[i];
+			double w = setWeight[i] * estimate.confidence / sumWeight;
+			double[] d = {estimate.x - x, estimate.y - y, Util.normalizeAngle(estimate.theta - theta)};
+			for (int r = 0; r < 3; r++) {
+				for (int c = 0; c < 3; c++) {
+					covariance[r][c] += w * (estimate.covariance[r][c] + d[r] * d[c]);
+				}
+			}
+		}
+		return new PoseEstimate(x, y, theta, covariance, sumWeight / totalWeight);
+	}
+
+	/**
+	 * Clears the hash grid (by moving on to a new generation) and makes sure it can hold n particles.
+	 */
+	private void begin(int n) {
+		if (stamps.length < 2 * n || stamps.length == 0) {
+			int capacity = Integer.highestOneBit(Math.max(2 * n, 16) - 1) << 1;
+			stamps = new int[capacity];
+			cellKeys = new int[capacity];
+			cellWeight = new double[capacity];
+			cellX = new double[capacity];
+			cellY = new double[capacity];
+			cellCos = new double[capacity];
+			cellSin = new double[capacity];
+			occupiedSlots = new int[capacity];
+			mask = capacity - 1;
+			generation = 0;
+		}
+		if (particleCells.length < n) {
+			particleCells = new int[n];
+		}
+		generation++;
+		numOccupied = 0;
+	}
+
+	/**
+	 * Adds a particle to the sums of its grid cell.
+	 */
+	private void accumulate(int i, double x, double y, double theta, double w) {
+		int cx = (int) Math.floor(x / CELL_SIZE) + CELL_OFFSET;
+		int cy = (int) Math.floor(y / CELL_SIZE) + CELL_OFFSET;
+		int key = (cx << 16) | (cy & 0xFFFF);
+		int slot = findOrInsert(key);
+
+		cellWeight[slot] += w;
+		cellX[slot] += w * x;
+		cellY[slot] += w * y;
+		cellCos[slot] += w * Math.cos(theta);
+		cellSin[slot] += w * Math.sin(theta);
+		particleCells[i] = key;
+	}
+
+	/**
+	 * Returns the slot of a cell in the hash table, inserting an empty cell if it is not there yet.
+	 */
+	private int findOrInsert(int key) {
+		int slot = hash(key) & mask;
+		while (stamps[slot] == generation) {
+			if (cellKeys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		stamps[slot] = generation;
+		cellKeys[slot] = key;
+		cellWeight[slot] = 0;
+		cellX[slot] = 0;
+		cellY[slot] = 0;
+		cellCos[slot] = 0;
+		cellSin[slot] = 0;
+		occupiedSlots[numOccupied++] = slot;
+		return slot;
+	}
+
+	/**
+	 * Returns the slot of a cell in the hash table, or -1 if no particle fell into it.
+	 */
+	private int find(int key) {
+		int slot = hash(key) & mask;
+		while (stamps[slot] == generation) {
+			if (cellKeys[slot] == key) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Finds the 3 x 3 block of cells with the largest total weight and sums up its cells.
+	 */
+	private Cluster findHeaviestCluster() {
+		double totalWeight = 0;
+		double bestWeight = -1;
+		int bestKey = 0;
+		for (int k = 0; k < numOccupied; k++) {
+			int slot = occupiedSlots[k];
+			totalWeight += cellWeight[slot];
+
+			double blockWeight = 0;
+			for (int dx = -1; dx <= 1; dx++) {
+				for (int dy = -1; dy <= 1; dy++) {
+					int neighborSlot = find(neighborKey(cellKeys[slot], dx, dy));
+					if (neighborSlot >= 0) {
+						blockWeight += cellWeight[neighborSlot];
+					}
+				}
+			}
+			if (blockWeight > bestWeight) {
+				bestWeight = blockWeight;
+				bestKey = cellKeys[slot];
+			}
+		}
+
+		Cluster cluster = new Cluster(bestKey, totalWeight);
+		for (int dx = -1; dx <= 1; dx++) {
+			for (int dy = -1; dy <= 1; dy++) {
+				int neighborSlot = find(neighborKey(bestKey, dx, dy));
+				if (neighborSlot >= 0) {
+					cluster.add(neighborSlot);
+				}
+			}
+		}
+		cluster.computeMean();
+		return cluster;
+	}
+
+	/**
+	 * Returns the key of the cell which is (dx, dy) cells away from the given cell.
+	 */
+	private static int neighborKey(int key, int dx, int dy) {
+		int cx = (key >>> 16) + dx;
+		int cy = (key & 0xFFFF) + dy;
+		return (cx << 16) | (cy & 0xFFFF);
+	}
+
+	/**
+	 * The sums of the heaviest cluster, from which its mean and covariance are computed.
+	 */
+	private class Cluster {
+		private final int centerX;
+		private final int centerY;
+		private final double totalWeight;
+		private double weight, sumX, sumY, sumCos, sumSin;
+		private double meanX, meanY, meanTheta;
+		private final double[][] covariance = new double[3][3];
+		private double covarianceWeight;
+
+		Cluster(int centerKey, double totalWeight) {
+			this.centerX = centerKey >>> 16;
+			this.centerY = centerKey & 0xFFFF;
+			this.totalWeight = totalWeight;
+		}
+
+		void add(int slot) {
+			weight += cellWeight[slot];
+			sumX += cellX[slot];
+			sumY += cellY[slot];
+			sumCos += cellCos[slot];
+			sumSin += cellSin[slot];
+		}
+
+		void computeMean() {
+			meanX = sumX / weight;
+			meanY = sumY / weight;
+			meanTheta = Math.atan2(sumSin, sumCos);
+		}
+
+		/**
+		 * Adds a particle to the covariance if it lies inside the cluster.
+		 */
+		void accumulateCovariance(int cellKey, double x, double y, double theta, double w) {
+			if (Math.abs((cellKey >>> 16) - centerX) > 1 || Math.abs((cellKey & 0xFFFF) - centerY) > 1) {
+				return;
+			}
+			double[] d = {x - meanX, y - meanY, Util.normalizeAngle(theta - meanTheta)};
+			for (int r = 0; r < 3; r++) {
+				for (int c = r; c < 3; c++) {
+					covariance[r][c] += w * d[r] * d[c];
+				}
+			}
+			covarianceWeight += w;
+		}
+
+		PoseEstimate toEstimate() {
+			for (int r = 0; r < 3; r++) {
+				for (int c = r; c < 3; c++) {
+					covariance[r][c] /= covarianceWeight;
+					covariance[c][r] = covariance[r][c];
+				}
+			}
+			double confidence = totalWeight > 0 ? weight / totalWeight : 0;
+			return new PoseEstimate(meanX, meanY, meanTheta, covariance, confidence);
+		}
+	}
+}
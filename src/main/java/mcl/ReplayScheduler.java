@@ -0,0 +1,215 @@
+package mcl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds the observations of a log to the filter at their logged timestamps (or speedup times faster), as the robot
+ * would deliver them, to tell whether the filter keeps up in real time.
+ * <p>
+ * A feeder thread releases every observation at its time into a bounded queue; when the queue is full the observation
+ * is lost, as a sensor driver would drop it. The filter thread takes the observations with next(), and reports the end
+ * of every step with stepDone(). The lag of a step is the time from the release of its observation until the step is
+ * done, and its deadline is the release of the next observation of the log: a step which ends later has kept the
+ * filter from taking that observation on time.
+ * <p>
+ * Once the filter falls behind, the queue holds a backlog, and the policy decides which observations are skipped
+ * (shouldSkip()). A skipped observation is not processed, but its logged pose is composed into the motion of the next
+ * processed step, so no odometry is lost:
+ * <ul>
+ * <li>NONE processes every observation, however late;</li>
+ * <li>DROP_SCANS skips every observation (scan or odometry) which has a newer scan queued behind it, so that the
+ * filter jumps to the latest scan;</li>
+ * <li>COALESCE_ODOMETRY skips odometry-only observations while anything newer is queued, but processes every scan.</li>
+ * </ul>
+ */
+public class ReplayScheduler {
+	public enum Policy { NONE, DROP_SCANS, COALESCE_ODOMETRY }
+
+	private static final int END = -1;
+
+	private final double speedup;
+	private final Policy policy;
+	private final BlockingQueue<Integer> queue;
+	private final ArrayDeque<Integer> backlog = new ArrayDeque<>();	// taken from the queue, not handed out yet
+	private List<Observation> observations;
+	private long startNanos;
+	private double startTimeStamp;
+	private Thread feeder;
+
+	// Statistics, only touched by the filter thread except numOverflowed
+	private final List<Double> lags = new ArrayList<>();			// ms
+	private int numSkipped;
+	private int numMissedDeadlines;
+	private int numDeadlines;
+	private volatile int numOverflowed;
+
+	/**
+	 * @param speedup		how many times faster than logged the observations are released (1 for real time)
+	 * @param queueCapacity	the number of observations which can wait for the filter
+	 * @param policy		which observations are skipped when the filter falls behind
+	 */
+	public ReplayScheduler(double speedup, int queueCapacity, Policy policy) {
+		this.speedup = speedup;
+		this.policy = policy;
+		this.queue = new ArrayBlockingQueue<>(queueCapacity);
+	}
+
+	/**
+	 * Starts releasing the observations from fromIndex on; the first one is released right away.
+	 */
+	public void start(List<Observation> observations, int fromIndex) {
+		this.observations = observations;
+		this.startNanos = System.nanoTime();
+		this.startTimeStamp = fromIndex < observations.size() ? observations.get(fromIndex).timeStamp : 0;
+		feeder = new Thread(() -> feed(fromIndex), "replay-feeder");
+		feeder.setDaemon(true);
+		feeder.start();
+	}
+
+	private void feed(int fromIndex) {
+		try {
+			for (int i = fromIndex; i < observations.size(); i++) {
+				long delay;
+				while ((delay = releaseNanos(i) - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(delay);
+					if (Thread.interrupted()) {
+						return;
+					}
+				}
+				if (!queue.offer(i)) {
+					numOverflowed++;
+				}
+			}
+			queue.put(END);
+		} catch (InterruptedException e) {
+			// Stopped
+		}
+	}
+
+	/**
+	 * Returns the time at which an observation is released, on the System.nanoTime() clock
+	 */
+	private long releaseNanos(int index) {
+		return startNanos + (long) ((observations.get(index).timeStamp - startTimeStamp) / speedup * 1e9);
+	}
+
+	/**
+	 * Waits for the next observation and returns its index, or -1 at the end of the log.
+	 */
+	public int next() {
+		try {
+			if (backlog.isEmpty()) {
+				backlog.add(queue.take());
+			}
+			queue.drainTo(backlog);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return END;
+		}
+		int index = backlog.peek();
+		if (index != END) {
+			backlog.poll();
+		}
+		return index;
+	}
+
+	/**
+	 * Decides by the policy whether the observation just returned by next() is skipped because of the backlog.
+	 */
+	public boolean shouldSkip(int index) {
+		boolean skip = false;
+		if (policy == Policy.COALESCE_ODOMETRY) {
+			skip = observations.get(index).dataType.equals("O") && !backlog.isEmpty() && backlog.peek() != END;
+		} else if (policy == Policy.DROP_SCANS) {
+			for (int queued : backlog) {
+				if (queued != END && observations.get(queued).dataType.equals("L")) {
+					skip = true;
+					break;
+				}
+			}
+		}
+		if (skip) {
+			numSkipped++;
+		}
+		return skip;
+	}
+
+	/**
+	 * Records the lag of a processed step, and whether it missed its deadline.
+	 */
+	public void stepDone(int index) {
+		long now = System.nanoTime();
+		lags.add((now - releaseNanos(index)) / 1e6);
+		if (index + 1 < observations.size()) {
+			numDeadlines++;
+			if (now > releaseNanos(index + 1)) {
+				numMissedDeadlines++;
+			}
+		}
+	}
+
+	/**
+	 * Stops releasing observations
+	 */
+	public void stop() {
+		if (feeder != null) {
+			feeder.interrupt();
+		}
+	}
+
+	/**
+	 * Returns the number of steps whose deadline was missed
+	 */
+	public int getNumMissedDeadlines() {
+		return numMissedDeadlines;
+	}
+
+	/**
+	 * Returns the number of processed steps which had a deadline
+	 */
+	public int getNumDeadlines() {
+		return numDeadlines;
+	}
+
+	/**
+	 * Returns the number of observations skipped by the policy
+	 */
+	public int getNumSkipped() {
+		return numSkipped;
+	}
+
+	/**
+	 * Returns the number of observations lost because the queue was full
+	 */
+	public int getNumOverflowed() {
+		return numOverflowed;
+	}
+
+	/**
+	 * Returns the given percentile of the lags in ms
+	 */
+	public double getLagPercentile(double percentile) {
+		if (lags.isEmpty()) {
+			return 0;
+		}
+		List<Double> sorted = new ArrayList<>(lags);
+		Collections.sort(sorted);
+		int rank = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+		return sorted.get(Math.max(rank, 0));
+	}
+
+	/**
+	 * Defines the format of string to be printed out
+	 */
+	public String toString() {
+		return String.format("%.1fx speed, %s: %d steps, %d of %d deadlines missed (%.1f%%), lag p50=%.1f ms p99=%.1f ms max=%.1f ms, %d skipped, %d lost to a full queue",
+				speedup, policy, lags.size(), numMissedDeadlines, numDeadlines, numDeadlines == 0 ? 0 : 100.0 * numMissedDeadlines / numDeadlines,
+				getLagPercentile(50), getLagPercentile(99), getLagPercentile(100), numSkipped, numOverflowed);
+	}
+}
@@ -0,0 +1,204 @@
+package mcl;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A channel of framed messages between the shard coordinator and a shard worker, over a local TCP or Unix domain socket.
+ * <p>
+ * Every message is an int length followed by that many bytes, which start with the int message type.
+ * Addresses are written as "tcp:host:port" (port 0 picks a free port) or "unix:/path/of/socket".
+ * The buffers are reused between messages, so a channel must only be used by one thread.
+ */
+public final class ShardChannel implements Closeable {
+	static final int INIT = 1;					// coordinator -> worker: shard index, number of particles, seed, readings file
+	static final int OBSERVATION = 2;			// coordinator -> worker: time step, logged pose, laser readings (if any)
+	static final int SUMMARY = 3;				// worker -> coordinator: shard size, log-weight sums, estimate, best pose
+	static final int RESAMPLE = 4;				// coordinator -> worker: new shard size, number of particles to hand over
+	static final int PARTICLES = 5;				// both ways: the poses of particles handed over
+	static final int SHUTDOWN = 6;				// coordinator -> worker
+
+	private final SocketChannel channel;
+	private ByteBuffer out = ByteBuffer.allocate(1 << 16);
+	private ByteBuffer in = ByteBuffer.allocate(1 << 16);
+	private final ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+
+	private ShardChannel(SocketChannel channel) throws IOException {
+		this.channel = channel;
+		channel.configureBlocking(true);
+		if (channel.getLocalAddress() instanceof InetSocketAddress) {
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		}
+	}
+
+	/**
+	 * Parses an address of the form "tcp:host:port" or "unix:/path/of/socket".
+	 */
+	static SocketAddress parseAddress(String address) {
+		if (address.startsWith("unix:")) {
+			return UnixDomainSocketAddress.of(address.substring("unix:".length()));
+		}
+		if (address.startsWith("tcp:")) {
+			int colon = address.lastIndexOf(':');
+			return new InetSocketAddress(address.substring("tcp:".length(), colon), Integer.parseInt(address.substring(colon + 1)));
+		}
+		throw new IllegalArgumentException("Unknown address (use tcp:host:port or unix:/path): " + address);
+	}
+
+	/**
+	 * Formats a bound socket address in the form parseAddress() reads.
+	 */
+	static String formatAddress(SocketAddress address) {
+		if (address instanceof UnixDomainSocketAddress) {
+			return "unix:" + ((UnixDomainSocketAddress) address).getPath();
+		}
+		InetSocketAddress inet = (InetSocketAddress) address;
+		return "tcp:" + inet.getAddress().getHostAddress() + ":" + inet.getPort();
+	}
+
+	/**
+	 * Opens a server socket on the address; a stale Unix socket file left behind by an earlier run is removed first.
+	 */
+	static ServerSocketChannel listen(String address) throws IOException {
+		SocketAddress socketAddress = parseAddress(address);
+		ServerSocketChannel server;
+		if (socketAddress instanceof UnixDomainSocketAddress) {
+			Files.deleteIfExists(((UnixDomainSocketAddress) socketAddress).getPath());
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		} else {
+			server = ServerSocketChannel.open(StandardProtocolFamily.INET);
+		}
+		server.bind(socketAddress);
+		return server;
+	}
+
+	/**
+	 * Wraps a connection accepted by a server socket.
+	 */
+	static ShardChannel accept(SocketChannel channel) throws IOException {
+		return new ShardChannel(channel);
+	}
+
+	/**
+	 * Connects to a coordinator listening on the address.
+	 */
+	public static ShardChannel connect(String address) throws IOException {
+		SocketAddress socketAddress = parseAddress(address);
+		boolean unix = socketAddress instanceof UnixDomainSocketAddress;
+		SocketChannel channel = SocketChannel.open(unix ? StandardProtocolFamily.UNIX : StandardProtocolFamily.INET);
+		channel.connect(socketAddress);
+		return new ShardChannel(channel);
+	}
+
+	/**
+	 * Starts a new message and returns the buffer to put its content into, with room for at least payloadBytes.
+	 */
+	ByteBuffer begin(int type, int payloadBytes) {
+		int capacity = 2 * Integer.BYTES + payloadBytes;
+		if (out.capacity() < capacity) {
+			out = ByteBuffer.allocate(Math.max(capacity, 2 * out.capacity()));
+		}
+		out.clear();
+		out.putInt(0);							// the length, filled in by send()
+		out.putInt(type);
+		return out;
+	}
+
+	/**
+	 * Sends the message started by begin().
+	 */
+	void send() throws IOException {
+		out.putInt(0, out.position() - Integer.BYTES);
+		out.flip();
+		while (out.hasRemaining()) {
+			channel.write(out);
+		}
+	}
+
+	/**
+	 * Sends a message without content.
+	 */
+	void send(int type) throws IOException {
+		begin(type, 0);
+		send();
+	}
+
+	/**
+	 * Receives the next message and returns its content, positioned after the message type.
+	 *
+	 * @param expectedType	the type the message must have
+	 */
+	ByteBuffer receive(int expectedType) throws IOException {
+		ByteBuffer message = receive();
+		int type = message.getInt();
+		if (type != expectedType) {
+			throw new IOException(String.format("Expected a message of type %d, got %d", expectedType, type));
+		}
+		return message;
+	}
+
+	/**
+	 * Receives the next message and returns its content, positioned at the message type.
+	 */
+	ByteBuffer receive() throws IOException {
+		lengthBuffer.clear();
+		readFully(lengthBuffer);
+		int length = lengthBuffer.getInt(0);
+		if (in.capacity() < length) {
+			in = ByteBuffer.allocate(Math.max(length, 2 * in.capacity()));
+		}
+		in.clear();
+		in.limit(length);
+		readFully(in);
+		in.flip();
+		return in;
+	}
+
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("The other side closed the connection");
+			}
+		}
+	}
+
+	static void putString(ByteBuffer buffer, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+	static String getString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Removes the socket file of a Unix domain address (nothing to do for TCP).
+	 */
+	static void deleteSocketFile(String address) throws IOException {
+		SocketAddress socketAddress = parseAddress(address);
+		if (socketAddress instanceof UnixDomainSocketAddress) {
+			Path path = ((UnixDomainSocketAddress) socketAddress).getPath();
+			Files.deleteIfExists(path);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,365 @@
+package mcl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import noise.NoiseStream;
+
+/**
+ * The coordinator side of the distributed mode: the particles are split into shards owned by worker processes
+ * (see ShardWorker), and the coordinator only sees per-shard summaries.
+ * <p>
+ * Every observation is broadcast to all workers, which move and weight their particles at the same time.
+ * From their log-sum-exps of the log weights the coordinator gets the global normalizer and the global ESS. When the
+ * ESS drops below RESAMPLE_ESS_RATIO * N, it allocates the N new particles to the shards in proportion to their
+ * weight (systematically, so the counts add up to N) and each shard resamples locally. Shards which drew more
+ * particles than their share then hand the surplus over to the shards which drew fewer, so the load stays balanced.
+ * The global estimate merges the estimates of the shards' heaviest clusters.
+ * <p>
+ * Workers are started as separate JVMs by start() and connect back over a local TCP or Unix domain socket.
+ */
+public class ShardCoordinator implements Closeable {
+	private static final double RESAMPLE_ESS_RATIO = 0.5;
+	private static final double MERGE_DISTANCE = 100;			// shard estimates this close (cm) to the best one are merged
+	private static final long CONNECT_TIMEOUT_MILLIS = 60_000;
+	private static final int POSE_BYTES = 3 * Double.BYTES;
+
+	private final String address;
+	private final int numShards;
+	private final int numParticle;
+	private final long seed;
+	private final String readingsFile;
+	private final NoiseStream random;
+
+	private ServerSocketChannel server;
+	private String boundAddress;
+	private final List<Process> workers = new ArrayList<>();
+	private ShardChannel[] shards;
+
+	private final int[] shardSizes;
+	private final double[] logSumExps;
+	private final double[] logSumExpsSquared;
+	private final PoseEstimate[] estimates;
+	private final double[][] bestPoses;
+	private PoseEstimate lastEstimate = null;
+	private double effectiveSampleSize;
+	private int numResamplings;
+	private long numHandedOver;
+
+	/**
+	 * @param address		where the workers connect to: "tcp:host:port" (port 0 picks a free one) or "unix:/path"
+	 * @param numShards		the number of worker processes
+	 * @param numParticle	the total number of particles
+	 * @param seed			the seed of the random numbers of the coordinator and the workers
+	 * @param readingsFile	a file written by CompactExpectedReadings.save(), which every worker maps
+	 */
+	public ShardCoordinator(String address, int numShards, int numParticle, long seed, String readingsFile) {
+		if (numShards < 1 || numParticle < numShards) {
+			throw new IllegalArgumentException(String.format("Cannot split %d particles over %d shards", numParticle, numShards));
+		}
+		this.address = address;
+		this.numShards = numShards;
+		this.numParticle = numParticle;
+		this.seed = seed;
+		this.readingsFile = readingsFile;
+		this.random = new NoiseStream(seed).split();
+		this.shardSizes = new int[numShards];
+		this.logSumExps = new double[numShards];
+		this.logSumExpsSquared = new double[numShards];
+		this.estimates = new PoseEstimate[numShards];
+		this.bestPoses = new double[numShards][];
+	}
+
+	/**
+	 * Returns the command which starts a JVM with the classpath of this one running the given main class.
+	 *
+	 * @param mainClass		the main class of the worker, which gets the coordinator's address as its only argument
+	 * @param jvmOptions	options for the worker JVM, e.g. "-Xmx512m"
+	 */
+	public static List<String> javaCommand(String mainClass, String... jvmOptions) {
+		List<String> command = new ArrayList<>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.addAll(Arrays.asList(jvmOptions));
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(mainClass);
+		return command;
+	}
+
+	/**
+	 * Listens on the address, starts one worker process per shard with the given command (plus the address),
+	 * and sends every worker its shard once it has connected.
+	 */
+	public void start(List<String> workerCommand) throws IOException {
+		server = ShardChannel.listen(address);
+		boundAddress = ShardChannel.formatAddress(server.getLocalAddress());
+		for (int i = 0; i < numShards; i++) {
+			List<String> command = new ArrayList<>(workerCommand);
+			command.add(boundAddress);
+			workers.add(new ProcessBuilder(command).inheritIO().start());
+		}
+
+		// Accept the workers in the order they connect, checking that none has died meanwhile
+		server.configureBlocking(false);
+		shards = new ShardChannel[numShards];
+		long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+		for (int i = 0; i < numShards; i++) {
+			SocketChannel connection;
+			while ((connection = server.accept()) == null) {
+				for (Process worker : workers) {
+					if (!worker.isAlive()) {
+						throw new IOException("A shard worker exited with code " + worker.exitValue());
+					}
+				}
+				if (System.currentTimeMillis() > deadline) {
+					throw new IOException("Shard workers did not connect to " + boundAddress);
+				}
+				sleep(10);
+			}
+			shards[i] = ShardChannel.accept(connection);
+		}
+
+		for (int i = 0; i < numShards; i++) {
+			shardSizes[i] = shareOf(i);
+			ByteBuffer init = shards[i].begin(ShardChannel.INIT, 3 * Integer.BYTES + Long.BYTES + 4 * readingsFile.length() + Integer.BYTES);
+			init.putInt(i).putInt(numShards).putInt(shardSizes[i]).putLong(seed);
+			ShardChannel.putString(init, readingsFile);
+			shards[i].send();
+		}
+		System.out.println(String.format("Started %d shard workers on %s", numShards, boundAddress));
+	}
+
+	/**
+	 * Returns the number of particles shard i holds after balancing
+	 */
+	private int shareOf(int i) {
+		return numParticle / numShards + (i < numParticle % numShards ? 1 : 0);
+	}
+
+	/**
+	 * Runs one time step on all shards and returns the global pose estimate.
+	 */
+	PoseEstimate step(int t, Observation observation) throws IOException {
+		double[] laserObservations = observation.dataType.equals("L") ? observation.laserReadings : new double[0];
+
+		// Broadcast the observation, then gather the summaries while the other shards are still working
+		for (ShardChannel shard : shards) {
+			ByteBuffer message = shard.begin(ShardChannel.OBSERVATION, Integer.BYTES + 3 * Double.BYTES + Integer.BYTES + laserObservations.length * Double.BYTES);
+			message.putInt(t);
+			message.putDouble(observation.robotPose[0]).putDouble(observation.robotPose[1]).putDouble(observation.robotPose[2]);
+			message.putInt(laserObservations.length);
+			for (double reading : laserObservations) {
+				message.putDouble(reading);
+			}
+			shard.send();
+		}
+		int total = 0;
+		for (int i = 0; i < numShards; i++) {
+			readSummary(i, shards[i].receive(ShardChannel.SUMMARY));
+			total += shardSizes[i];
+		}
+
+		// Global normalization: the ESS follows from the log-sum-exps of the weights and of their squares
+		double logNormalizer = logSumExp(logSumExps);
+		effectiveSampleSize = logNormalizer == Double.NEGATIVE_INFINITY ? 0 : Math.exp(2 * logNormalizer - logSumExp(logSumExpsSquared));
+		PoseEstimate estimate = PoseEstimator.merge(estimates, logSumExps, MERGE_DISTANCE);
+		if (total == 0 && lastEstimate != null) {
+			estimate = lastEstimate;				// every particle has left the map; keep the last estimate while they start over
+		}
+		lastEstimate = estimate;
+
+		if (total == 0 || (laserObservations.length != 0 && effectiveSampleSize < RESAMPLE_ESS_RATIO * total)) {
+			resample(logNormalizer);
+			numResamplings++;
+			effectiveSampleSize = numParticle;
+		}
+		return estimate;
+	}
+
+	private void readSummary(int i, ByteBuffer summary) {
+		shardSizes[i] = summary.getInt();
+		logSumExps[i] = summary.getDouble();
+		logSumExpsSquared[i] = summary.getDouble();
+		if (summary.get() != 0) {
+			double x = summary.getDouble();
+			double y = summary.getDouble();
+			double theta = summary.getDouble();
+			double confidence = summary.getDouble();
+			double[][] covariance = new double[3][3];
+			for (int r = 0; r < 3; r++) {
+				for (int c = 0; c < 3; c++) {
+					covariance[r][c] = summary.getDouble();
+				}
+			}
+			estimates[i] = new PoseEstimate(x, y, theta, covariance, confidence);
+		} else {
+			estimates[i] = new PoseEstimate(Double.NaN, Double.NaN, 0, new double[3][3], 0);
+		}
+		bestPoses[i] = summary.hasRemaining() ? new double[] {summary.getDouble(), summary.getDouble(), summary.getDouble()} : null;
+	}
+
+	/**
+	 * Draws the new shard sizes in proportion to the shard weights, lets every shard resample locally, and moves
+	 * the surplus particles of the shards which drew more than their share to the others.
+	 */
+	private void resample(double logNormalizer) throws IOException {
+		int[] counts = new int[numShards];
+		if (logNormalizer == Double.NEGATIVE_INFINITY) {
+			// No shard has any weight left: all of them start over
+			for (int i = 0; i < numShards; i++) {
+				counts[i] = shareOf(i);
+			}
+		} else {
+			double u = random.nextDouble();
+			double cumulative = 0;
+			int previous = 0;
+			for (int i = 0; i < numShards; i++) {
+				cumulative += Math.exp(logSumExps[i] - logNormalizer);
+				int next = i == numShards - 1 ? numParticle : (int) Math.min(numParticle, Math.floor(cumulative * numParticle + u));
+				counts[i] = Math.max(0, next - previous);
+				previous = Math.max(previous, next);
+			}
+		}
+
+		for (int i = 0; i < numShards; i++) {
+			ByteBuffer message = shards[i].begin(ShardChannel.RESAMPLE, 2 * Integer.BYTES);
+			message.putInt(counts[i]).putInt(Math.max(0, counts[i] - shareOf(i)));
+			shards[i].send();
+		}
+
+		// Collect the surplus and hand it to the shards below their share
+		List<double[]> surplus = new ArrayList<>();
+		for (int i = 0; i < numShards; i++) {
+			ByteBuffer message = shards[i].receive(ShardChannel.PARTICLES);
+			int count = message.getInt();
+			for (int k = 0; k < count; k++) {
+				surplus.add(new double[] {message.getDouble(), message.getDouble(), message.getDouble()});
+			}
+		}
+		numHandedOver += surplus.size();
+		int next = 0;
+		for (int i = 0; i < numShards; i++) {
+			int missing = shareOf(i) - Math.min(counts[i], shareOf(i));
+			if (missing > 0) {
+				ByteBuffer message = shards[i].begin(ShardChannel.PARTICLES, Integer.BYTES + missing * POSE_BYTES);
+				message.putInt(missing);
+				for (int k = 0; k < missing; k++) {
+					double[] pose = surplus.get(next++);
+					message.putDouble(pose[0]).putDouble(pose[1]).putDouble(pose[2]);
+				}
+				shards[i].send();
+			}
+			shardSizes[i] = shareOf(i);
+		}
+	}
+
+	private static double logSumExp(double[] values) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (double value : values) {
+			max = Math.max(max, value);
+		}
+		if (max == Double.NEGATIVE_INFINITY) {
+			return max;
+		}
+		double sum = 0;
+		for (double value : values) {
+			sum += Math.exp(value - max);
+		}
+		return max + Math.log(sum);
+	}
+
+	/**
+	 * Returns the best particle of every non-empty shard at the latest step, e.g. for plotting
+	 */
+	List<Particle> getBestParticles() {
+		List<Particle> best = new ArrayList<>();
+		for (double[] pose : bestPoses) {
+			if (pose != null) {
+				best.add(new Particle(pose[0], pose[1], pose[2], 0, 1.0));
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns the global effective sample size at the latest step
+	 */
+	double getEffectiveSampleSize() {
+		return effectiveSampleSize;
+	}
+
+	/**
+	 * Returns the total number of particles at the latest step
+	 */
+	int getNumParticles() {
+		int total = 0;
+		for (int size : shardSizes) {
+			total += size;
+		}
+		return total;
+	}
+
+	/**
+	 * Returns how many times the particles have been resampled so far
+	 */
+	public int getNumResamplings() {
+		return numResamplings;
+	}
+
+	/**
+	 * Stops the workers and closes the connections.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (shards != null) {
+			for (ShardChannel shard : shards) {
+				if (shard != null) {
+					try {
+						shard.send(ShardChannel.SHUTDOWN);
+					} catch (IOException e) {
+						// the worker is gone already
+					}
+					shard.close();
+				}
+			}
+		}
+		for (Process worker : workers) {
+			try {
+				if (!worker.waitFor(10, TimeUnit.SECONDS)) {
+					worker.destroyForcibly();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				worker.destroyForcibly();
+			}
+		}
+		if (server != null) {
+			server.close();
+			ShardChannel.deleteSocketFile(boundAddress);
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Defines the format of string to be printed out
+	 */
+	public String toString() {
+		return String.format("%d shards on %s: %d resamplings, %d particles handed over", numShards, boundAddress,
+				numResamplings, numHandedOver);
+	}
+}
@@ -0,0 +1,243 @@
+package mcl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import noise.NoiseStream;
+import odometry.Odometry;
+import sensor.MappedExpectedReadings;
+import sensor.Sensor;
+
+/**
+ * The worker side of the distributed mode: owns one shard of the particles and runs the per-particle work of every
+ * step (motion, validity checks and weighting) as the coordinator broadcasts the observations.
+ * <p>
+ * The particles live in ParticleColumns only, so a shard of a million particles takes about 40 MB of heap.
+ * The expected readings are a MappedExpectedReadings view of a file shared by all workers on the machine.
+ * After every observation the worker reports its size, the log-sum-exp of its log weights (and of twice them, for the
+ * global ESS), the pose estimate of its heaviest cluster and its best particle. Resampling is decided globally:
+ * the coordinator tells every shard how many particles to draw, and moves particles between shards to balance them.
+ */
+public class ShardWorker {
+	private static final int POSE_BYTES = 3 * Double.BYTES;
+
+	private final ShardChannel channel;
+	private final Sensor sensorModel;
+	private final Odometry odometryModel;
+	private final PoseEstimator poseEstimator = new PoseEstimator();
+	private final double[] pose = new double[3];
+
+	private ParticleColumns particles = new ParticleColumns(0);
+	private NoiseStream random;
+	private double[] prevLoggedRobotPose = null;
+	private int shardIndex;
+	private double logSumExp;
+
+	/**
+	 * @param channel		the connection to the coordinator
+	 * @param sensorModel	the sensor model; its expected readings are set from the file named by the coordinator
+	 * @param odometryModel	the odometry model
+	 */
+	public ShardWorker(ShardChannel channel, Sensor sensorModel, Odometry odometryModel) {
+		this.channel = channel;
+		this.sensorModel = sensorModel;
+		this.odometryModel = odometryModel;
+	}
+
+	/**
+	 * Serves the coordinator until it sends SHUTDOWN.
+	 */
+	public void run() throws IOException {
+		while (true) {
+			ByteBuffer message = channel.receive();
+			switch (message.getInt()) {
+			case ShardChannel.INIT:
+				init(message);
+				break;
+			case ShardChannel.OBSERVATION:
+				step(message);
+				break;
+			case ShardChannel.RESAMPLE:
+				resample(message.getInt(), message.getInt());
+				break;
+			case ShardChannel.PARTICLES:
+				absorb(message);
+				break;
+			case ShardChannel.SHUTDOWN:
+				return;
+			default:
+				throw new IOException("Unexpected message from the coordinator");
+			}
+		}
+	}
+
+	private void init(ByteBuffer message) throws IOException {
+		shardIndex = message.getInt();
+		int numShards = message.getInt();
+		int count = message.getInt();
+		long seed = message.getLong();
+		String readingsFile = ShardChannel.getString(message);
+
+		sensorModel.setExpectedReadings(new MappedExpectedReadings(readingsFile));
+		random = new NoiseStream(seed).split(numShards)[shardIndex];
+		createParticles(count);
+		System.out.println(String.format("Shard %d: %d particles, readings %s", shardIndex, count, sensorModel.getExpectedReadings()));
+	}
+
+	/**
+	 * Moves and weights the particles for one observation and sends the summary of the shard.
+	 */
+	private void step(ByteBuffer message) throws IOException {
+		message.getInt();									// the time step, only for debugging
+		double[] robotPose = {message.getDouble(), message.getDouble(), message.getDouble()};
+		double[] laserObservations = new double[message.getInt()];
+		for (int i = 0; i < laserObservations.length; i++) {
+			laserObservations[i] = message.getDouble();
+		}
+
+		// Move the particles as MonteCarloLocalization does, with the control relative to the previous logged pose
+		if (prevLoggedRobotPose == null) {
+			prevLoggedRobotPose = robotPose;
+		}
+		double[] control = new double[3];
+		for (int i = 0; i < 3; i++) {
+			control[i] = robotPose[i] - prevLoggedRobotPose[i];
+		}
+		odometryModel.updatePoses(particles, prevLoggedRobotPose, control, random);
+		prevLoggedRobotPose = robotPose;
+
+		// Only keep particles with valid positions, and weight them
+		int n = particles.removeInvalidPositions();
+		if (laserObservations.length != 0) {
+			for (int i = 0; i < n; i++) {
+				pose[0] = particles.getX(i);
+				pose[1] = particles.getY(i);
+				pose[2] = particles.getTheta(i);
+				MonteCarloLocalization.setObsArrayOfSensor(sensorModel, null, 0, pose, laserObservations);
+				particles.setLogWeight(i, particles.getLogWeight(i) + sensorModel.sumOfLogLikelihood() * MonteCarloLocalization.LIKELIHOOD_SCALE);
+			}
+		}
+		sendSummary();
+	}
+
+	/**
+	 * Normalizes the weights within the shard and sends the summary of the shard.
+	 */
+	private void sendSummary() throws IOException {
+		int n = particles.size();
+		double max = Double.NEGATIVE_INFINITY;
+		int best = -1;
+		for (int i = 0; i < n; i++) {
+			if (particles.getLogWeight(i) > max) {
+				max = particles.getLogWeight(i);
+				best = i;
+			}
+		}
+		// When no particle explains the observation, the estimate treats them all alike
+		double sum = 0;
+		double sumSq = 0;
+		for (int i = 0; i < n; i++) {
+			double w = best < 0 ? 1.0 : Math.exp(particles.getLogWeight(i) - max);
+			particles.setWeight(i, w);
+			sum += w;
+			sumSq += w * w;
+		}
+		logSumExp = best < 0 ? Double.NEGATIVE_INFINITY : max + Math.log(sum);
+		double logSumExpSquared = best < 0 ? Double.NEGATIVE_INFINITY : 2 * max + Math.log(sumSq);
+		PoseEstimate estimate = n > 0 ? poseEstimator.estimate(particles) : null;
+
+		ByteBuffer summary = channel.begin(ShardChannel.SUMMARY, Integer.BYTES + 18 * Double.BYTES + 1);
+		summary.putInt(n);
+		summary.putDouble(logSumExp);
+		summary.putDouble(logSumExpSquared);
+		summary.put((byte) (estimate != null ? 1 : 0));
+		if (estimate != null) {
+			summary.putDouble(estimate.x).putDouble(estimate.y).putDouble(estimate.theta).putDouble(estimate.confidence);
+			for (int r = 0; r < 3; r++) {
+				for (int c = 0; c < 3; c++) {
+					summary.putDouble(estimate.covariance[r][c]);
+				}
+			}
+		}
+		if (best >= 0) {
+			summary.putDouble(particles.getX(best)).putDouble(particles.getY(best)).putDouble(particles.getTheta(best));
+		}
+		channel.send();
+	}
+
+	/**
+	 * Systematically resamples the shard to count particles (perturbing duplicates), resets the weights,
+	 * and hands the last handOver of them back to the coordinator. A shard with no weight left starts over
+	 * from uniformly spread particles.
+	 */
+	private void resample(int count, int handOver) throws IOException {
+		int n = particles.size();
+		if (n == 0 || logSumExp == Double.NEGATIVE_INFINITY) {
+			createParticles(count);
+		} else {
+			ParticleColumns resampled = new ParticleColumns(count);
+			resampled.setSize(count);
+			double totalWeight = 0;
+			for (int i = 0; i < n; i++) {
+				totalWeight += particles.getWeight(i);
+			}
+			double increment = totalWeight / count;
+			double u = random.nextDouble() * increment;
+			double cumulative = particles.getWeight(0);
+			int i = 0;
+			int lastIndex = -1;
+			for (int slot = 0; slot < count; slot++) {
+				while (u >= cumulative && i < n - 1) {
+					i++;
+					cumulative += particles.getWeight(i);
+				}
+				if (i == lastIndex) {
+					Particle p = new Particle(particles.getX(i), particles.getY(i), particles.getTheta(i), 0, 1.0);
+					p.perturb(random);
+					double[] perturbed = p.getPose();
+					resampled.setPose(slot, perturbed[0], perturbed[1], perturbed[2]);
+				} else {
+					resampled.setPose(slot, particles.getX(i), particles.getY(i), particles.getTheta(i));
+				}
+				resampled.setLogWeight(slot, 0);
+				resampled.setWeight(slot, 1.0);
+				lastIndex = i;
+				u += increment;
+			}
+			particles = resampled;
+		}
+
+		ByteBuffer reply = channel.begin(ShardChannel.PARTICLES, Integer.BYTES + handOver * POSE_BYTES);
+		reply.putInt(handOver);
+		for (int slot = count - handOver; slot < count; slot++) {
+			reply.putDouble(particles.getX(slot)).putDouble(particles.getY(slot)).putDouble(particles.getTheta(slot));
+		}
+		channel.send();
+		particles.setSize(count - handOver);
+	}
+
+	/**
+	 * Adds the particles handed over from other shards, with reset weights.
+	 */
+	private void absorb(ByteBuffer message) {
+		int count = message.getInt();
+		int n = particles.size();
+		particles.setSize(n + count);
+		for (int i = n; i < n + count; i++) {
+			particles.setPose(i, message.getDouble(), message.getDouble(), message.getDouble());
+			particles.setLogWeight(i, 0);
+			particles.setWeight(i, 1.0);
+		}
+	}
+
+	private void createParticles(int count) {
+		particles = new ParticleColumns(count);
+		particles.setSize(count);
+		for (int i = 0; i < count; i++) {
+			double[] initialPose = new Particle(random).getPose();
+			particles.setPose(i, initialPose[0], initialPose[1], initialPose[2]);
+			particles.setLogWeight(i, 0);
+			particles.setWeight(i, 1.0);
+		}
+	}
+}
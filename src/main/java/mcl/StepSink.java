@@ -0,0 +1,108 @@
+package mcl;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
+import map.Plot;
+
+/**
+ * A consumer of the filter steps at the end of the pipeline (see MonteCarloLocalization.runPipeline()): the trajectory
+ * recorder, the renderer, the printed metrics and the evaluator. Every sink runs on its own thread and asks for one
+ * step at a time; a sink which falls behind by more than the buffer of the pipeline makes the filter wait for it.
+ */
+public class StepSink implements Flow.Subscriber<FilterStep> {
+	private final String name;
+	private final Consumer<FilterStep> consumer;
+	private final CountDownLatch done = new CountDownLatch(1);
+	private Flow.Subscription subscription;
+
+	/**
+	 * @param name		the name of the sink, for error messages
+	 * @param consumer	handles every step, in order
+	 */
+	public StepSink(String name, Consumer<FilterStep> consumer) {
+		this.name = name;
+		this.consumer = consumer;
+	}
+
+	/**
+	 * Records {timestamp, x, y} of every estimate, as MonteCarloLocalization.trackedPosition does
+	 */
+	public static StepSink trajectoryRecorder(List<double[]> trace) {
+		return new StepSink("trajectory recorder", step ->
+				trace.add(new double[] {step.observation.timeStamp, step.estimate.x, step.estimate.y}));
+	}
+
+	/**
+	 * Plots the particles and the estimate of every step
+	 */
+	public static StepSink renderer(Plot plot) {
+		return new StepSink("renderer", step -> plot.updatePlot(step.observation, step.particles, step.estimate.getPose()));
+	}
+
+	/**
+	 * Prints the particle count, the ESS and the estimate of every step
+	 */
+	public static StepSink printer() {
+		return new StepSink("printer", step -> System.out.println(String.format("\t# of particles: %d, ESS=%.1f, timestamp=%.4f estimate=%s",
+				step.numParticles, step.ess, step.observation.timeStamp, step.estimate)));
+	}
+
+	/**
+	 * Passes every estimate to a trajectory evaluator, and calls onAbort once the evaluator gives up on the run
+	 * (closing the evaluator first)
+	 */
+	public static StepSink evaluator(TrajectoryEvaluator evaluator, Runnable onAbort) {
+		boolean[] aborted = {false};
+		return new StepSink("evaluator", step -> {
+			evaluator.add(step.observation.timeStamp, step.estimate.x, step.estimate.y);
+			if (!aborted[0] && evaluator.shouldAbort()) {
+				aborted[0] = true;
+				System.out.println(String.format("Aborted at timestamp=%.4f: %s", step.observation.timeStamp, evaluator));
+				try {
+					evaluator.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				onAbort.run();
+			}
+		});
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		this.subscription = subscription;
+		subscription.request(1);
+	}
+
+	@Override
+	public void onNext(FilterStep step) {
+		consumer.accept(step);
+		subscription.request(1);
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		System.out.println("The " + name + " failed: " + throwable);
+		done.countDown();
+	}
+
+	@Override
+	public void onComplete() {
+		done.countDown();
+	}
+
+	/**
+	 * Waits until the sink has handled the last step
+	 */
+	public void awaitCompletion() {
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
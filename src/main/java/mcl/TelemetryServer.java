@@ -0,0 +1,121 @@
+package mcl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP server (the JDK's HttpServer) which serves the snapshots of a FilterTelemetry:
+ * <ul>
+ * <li>GET /status returns the latest status as JSON (pose estimate, particle count, ESS, steps/sec and stage latency
+ * percentiles), e.g. {@code curl http://127.0.0.1:8080/status}</li>
+ * <li>GET /particles is a server-sent-events stream with one "particles" event per new snapshot, holding the
+ * downsampled particle cloud, e.g. {@code curl -N http://127.0.0.1:8080/particles}</li>
+ * </ul>
+ * The server only reads the published snapshots, so a slow client slows nobody but itself. Every client runs on its
+ * own daemon thread; a stream polls for a new snapshot every STREAM_POLL_MILLIS.
+ */
+public class TelemetryServer {
+	private static final long STREAM_POLL_MILLIS = 50;
+
+	private final FilterTelemetry telemetry;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private volatile boolean running = true;
+
+	/**
+	 * Binds the server; it only serves requests once started.
+	 *
+	 * @param telemetry	the telemetry whose snapshots are served
+	 * @param host		the address to listen on, e.g. "127.0.0.1" to only serve the local machine
+	 * @param port		the port to listen on (0 picks a free port, see getPort())
+	 */
+	public TelemetryServer(FilterTelemetry telemetry, String host, int port) throws IOException {
+		this.telemetry = telemetry;
+		this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+		this.executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "telemetry-server");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(executor);
+		server.createContext("/status", this::handleStatus);
+		server.createContext("/particles", this::handleParticles);
+	}
+
+	/**
+	 * Starts serving requests in the background
+	 */
+	public void start() {
+		server.start();
+		System.out.println(String.format("Telemetry at http://%s:%d/status and /particles",
+				server.getAddress().getHostString(), getPort()));
+	}
+
+	/**
+	 * Ends the streams and stops the server
+	 */
+	public void stop() {
+		running = false;
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Returns the port the server listens on
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	private void handleStatus(HttpExchange exchange) throws IOException {
+		FilterTelemetry.Snapshot snapshot = telemetry.getSnapshot();
+		if (snapshot == null) {
+			send(exchange, 503, "{\"error\":\"no step has been processed yet\"}");
+		} else {
+			send(exchange, 200, snapshot.statusJson());
+		}
+	}
+
+	private static void send(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] body = (json + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * Streams an event for every new snapshot until the client goes away or the server stops.
+	 */
+	private void handleParticles(HttpExchange exchange) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+		exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+		exchange.sendResponseHeaders(200, 0);
+		long lastSequence = 0;
+		try (OutputStream out = exchange.getResponseBody()) {
+			while (running) {
+				FilterTelemetry.Snapshot snapshot = telemetry.getSnapshot();
+				if (snapshot != null && snapshot.sequence != lastSequence) {
+					lastSequence = snapshot.sequence;
+					String event = "id: " + snapshot.sequence + "\nevent: particles\ndata: " + snapshot.cloudJson() + "\n\n";
+					out.write(event.getBytes(StandardCharsets.UTF_8));
+					out.flush();
+				} else {
+					Thread.sleep(STREAM_POLL_MILLIS);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			// The client went away
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package mcl;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+
+/**
+ * Publishes the observations of a text log such as "data/robotdata1.log", parsing every line on the source thread
+ * while the filter works on the previous ones.
+ */
+public class TextLogSource extends ObservationSource {
+	private final String filePath;
+
+	/**
+	 * @param filePath	the path to the log file
+	 */
+	public TextLogSource(String filePath) {
+		this.filePath = filePath;
+	}
+
+	@Override
+	protected void produce() throws Exception {
+		try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (!line.isEmpty()) {
+					emit(new Observation(line.split(" ")));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,196 @@
+package mcl;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Evaluates the estimated trajectory against a ground-truth log while the filter runs.
+ * <p>
+ * The ground truth is read one line at a time, and only the two samples around the current time are kept.
+ * Every estimate is compared with the ground-truth position linearly interpolated at its timestamp, so estimates
+ * and ground truth need not share timestamps. Estimates before the first or after the last ground-truth sample
+ * are not evaluated. The RMSE, the maximum error and the convergence time are updated in O(1) per estimate.
+ * <p>
+ * The filter is converged from the first timestamp after which the error has stayed below the convergence radius.
+ * With an abort bound, shouldAbort() turns true as soon as the error exceeds it after the grace period, so that
+ * a parameter sweep can stop a bad configuration early.
+ * <p>
+ * The ground-truth log is closed once it has been read to the end, or by close(), e.g. when the run is aborted.
+ */
+public class TrajectoryEvaluator implements Closeable {
+	private final BufferedReader groundTruth;
+	private double convergenceRadius = 100;				// cm
+	private double abortBound = Double.POSITIVE_INFINITY;	// cm
+	private double abortGracePeriod = 0;				// seconds after the first ground-truth sample
+
+	// The two ground-truth samples bracketing the latest estimate: {timestamp, x, y}
+	private double[] previous = null;
+	private double[] next = null;
+	private double firstTimeStamp = Double.NaN;
+	private boolean exhausted = false;
+
+	private int numSamples;
+	private double sumSquaredError;
+	private double maxError;
+	private double lastError = Double.NaN;
+	private double convergenceTime = Double.NaN;		// start of the current run of errors below the radius
+	private boolean abort = false;
+
+	/**
+	 * @param groundTruthFilePath	a log file in the format of Observation (e.g. "data/robotdata101.log")
+	 */
+	public TrajectoryEvaluator(String groundTruthFilePath) throws IOException {
+		this.groundTruth = new BufferedReader(new FileReader(groundTruthFilePath));
+		this.next = readSample();
+		if (next != null) {
+			firstTimeStamp = next[0];
+		}
+	}
+
+	/**
+	 * Sets the error below which the filter counts as converged (100 cm by default).
+	 */
+	public void setConvergenceRadius(double radius) {
+		this.convergenceRadius = radius;
+	}
+
+	/**
+	 * Makes shouldAbort() return true once the error exceeds the bound, gracePeriod seconds after the first
+	 * ground-truth sample or later (no bound by default).
+	 *
+	 * @param bound			the largest acceptable error in cm
+	 * @param gracePeriod	the time in seconds the filter is given to converge
+	 */
+	public void setAbortBound(double bound, double gracePeriod) {
+		this.abortBound = bound;
+		this.abortGracePeriod = gracePeriod;
+	}
+
+	/**
+	 * Reads the next ground-truth sample, or returns null at the end of the log.
+	 */
+	private double[] readSample() throws IOException {
+		String line;
+		while ((line = groundTruth.readLine()) != null) {
+			if (!line.isBlank()) {
+				Observation observation = new Observation(line.split(" "));
+				return new double[] {observation.timeStamp, observation.robotPose[0], observation.robotPose[1]};
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Adds the estimate of a time step. Estimates must come in increasing order of time.
+	 *
+	 * @param timeStamp		the timestamp of the observation the estimate belongs to
+	 * @param x				the estimated x in cm
+	 * @param y				the estimated y in cm
+	 * @return				the error in cm, or NaN if the estimate lies outside of the ground truth
+	 */
+	public double add(double timeStamp, double x, double y) {
+		try {
+			while (next != null && next[0] < timeStamp) {
+				previous = next;
+				next = readSample();
+			}
+			if (next == null && !exhausted) {
+				exhausted = true;
+				groundTruth.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			next = null;
+			exhausted = true;
+		}
+		if (previous == null && (next == null || timeStamp < next[0])) {
+			return Double.NaN;			// before the ground truth starts
+		}
+		if (next == null) {
+			return Double.NaN;			// after the ground truth ends
+		}
+
+		// Interpolate the ground truth at the timestamp
+		double trueX = next[1];
+		double trueY = next[2];
+		if (previous != null && next[0] > previous[0]) {
+			double s = (timeStamp - previous[0]) / (next[0] - previous[0]);
+			trueX = previous[1] + s * (next[1] - previous[1]);
+			trueY = previous[2] + s * (next[2] - previous[2]);
+		}
+
+		double error = Math.hypot(x - trueX, y - trueY);
+		numSamples++;
+		sumSquaredError += error * error;
+		maxError = Math.max(maxError, error);
+		lastError = error;
+
+		if (error > convergenceRadius) {
+			convergenceTime = Double.NaN;
+		} else if (Double.isNaN(convergenceTime)) {
+			convergenceTime = timeStamp;
+		}
+		if (error > abortBound && timeStamp - firstTimeStamp >= abortGracePeriod) {
+			abort = true;
+		}
+		return error;
+	}
+
+	/**
+	 * Closes the ground-truth log; the metrics so far stay available, and estimates added later are not evaluated.
+	 */
+	@Override
+	public void close() throws IOException {
+		next = null;
+		if (!exhausted) {
+			exhausted = true;
+			groundTruth.close();
+		}
+	}
+
+	/**
+	 * Returns true once the error has exceeded the abort bound after the grace period
+	 */
+	public boolean shouldAbort() {
+		return abort;
+	}
+
+	/**
+	 * Returns the root mean squared error of the positions so far, in cm
+	 */
+	public double getRmse() {
+		return numSamples > 0 ? Math.sqrt(sumSquaredError / numSamples) : Double.NaN;
+	}
+
+	public double getMaxError() {
+		return maxError;
+	}
+
+	public double getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * Returns the time since which the error has stayed below the convergence radius, or NaN if it is above it now
+	 */
+	public double getConvergenceTime() {
+		return convergenceTime;
+	}
+
+	/**
+	 * Returns the number of estimates which were compared with the ground truth
+	 */
+	public int getNumSamples() {
+		return numSamples;
+	}
+
+	/**
+	 * Defines the format of string to be printed out
+	 */
+	public String toString() {
+		return String.format("RMSE=%.1f cm, max=%.1f cm, last=%.1f cm, converged at t=%.2f over %d estimates%s",
+				getRmse(), maxError, lastError, convergenceTime, numSamples, abort ? " (aborted)" : "");
+	}
+}
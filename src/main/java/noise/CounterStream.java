@@ -0,0 +1,64 @@
+package noise;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * A counter-based source of random numbers: every draw is a pure function of (seed, step, domain, index, draw).
+ * <p>
+ * Positioning the stream with at(step, domain, index) hashes the key into a SplitMix64 starting point;
+ * the n-th draw after that is mix64(start + n * GOLDEN_GAMMA). Nothing depends on which thread draws or on what
+ * other particles have drawn, so a step processed by any number of threads in any order gives the same numbers
+ * as long as every particle draws from its own (step, domain, index) position.
+ * <p>
+ * A stream is not thread-safe, but it is cheap to re-position: every worker thread should own one instance.
+ */
+public final class CounterStream implements RandomGenerator {
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+	private static final long STEP_GAMMA = 0xd1b54a32d192ed03L;
+	private static final long DOMAIN_GAMMA = 0xaef17502108ef2d9L;
+	private static final long INDEX_GAMMA = 0xdb4f0b9175ae2165L;
+
+	private final long seed;
+	private long start;
+	private long counter;
+
+	/**
+	 * Creates a stream for a seed; it is positioned at (0, 0, 0) until at() is called.
+	 */
+	public CounterStream(long seed) {
+		this.seed = seed;
+		at(0, 0, 0);
+	}
+
+	/**
+	 * Positions the stream at the first draw for a key and returns it.
+	 *
+	 * @param step		the time step
+	 * @param domain	what the numbers are used for (e.g. motion noise or resampling), so that uses never overlap
+	 * @param index		the particle index (or any other index within the step and domain)
+	 */
+	public CounterStream at(long step, int domain, long index) {
+		long h = NoiseStream.mix64(seed + step * STEP_GAMMA);
+		h = NoiseStream.mix64(h + domain * DOMAIN_GAMMA);
+		start = NoiseStream.mix64(h + index * INDEX_GAMMA);
+		counter = 0;
+		return this;
+	}
+
+	@Override
+	public long nextLong() {
+		return NoiseStream.mix64(start + (++counter) * GOLDEN_GAMMA);
+	}
+
+	@Override
+	public double nextGaussian() {
+		return Ziggurat.nextGaussian(this);
+	}
+
+	/**
+	 * Returns the number of draws since the stream was positioned
+	 */
+	public long getCounter() {
+		return counter;
+	}
+}
@@ -0,0 +1,137 @@
+package noise;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * A fast, splittable stream of random numbers for the noise of the filter.
+ * <p>
+ * Uniform bits come from the SplitMix64 generator (the algorithm behind java.util.SplittableRandom) and normal 
+ * samples from the Ziggurat method. A stream is not thread-safe, but it is cheap to split: every worker thread
+ * should own one stream obtained by split(), which gives statistically independent sequences without any
+ * shared state (unlike MonteCarloLocalization.RANDOM which all callers have to go through).
+ * <p>
+ * Consumers that know how many samples they need should prefer the block methods (fillGaussian/fillUniform),
+ * which generate directly into a primitive buffer.
+ */
+public final class NoiseStream implements RandomGenerator {
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+	
+	private long seed;
+	private final long gamma;
+	
+	/**
+	 * Creates a stream from a seed; equal seeds give equal sequences.
+	 */
+	public NoiseStream(long seed) {
+		this(seed, GOLDEN_GAMMA);
+	}
+	
+	private NoiseStream(long seed, long gamma) {
+		this.seed = seed;
+		this.gamma = gamma;
+	}
+	
+	/**
+	 * Recreates a stream from the state returned by getSeed() and getGamma(), e.g. when restoring a checkpoint.
+	 */
+	public static NoiseStream fromState(long seed, long gamma) {
+		if ((gamma & 1) == 0) {
+			throw new IllegalArgumentException("The gamma of a NoiseStream must be odd");
+		}
+		return new NoiseStream(seed, gamma);
+	}
+	
+	/**
+	 * Returns the current seed, which advances with every draw
+	 */
+	public long getSeed() {
+		return seed;
+	}
+	
+	/**
+	 * Returns the increment of the seed, which is fixed for a stream
+	 */
+	public long getGamma() {
+		return gamma;
+	}
+	
+	@Override
+	public long nextLong() {
+		return mix64(seed += gamma);
+	}
+	
+	@Override
+	public double nextGaussian() {
+		return Ziggurat.nextGaussian(this);
+	}
+	
+	/**
+	 * Returns a new stream which shares no state with this one. This stream is advanced by two draws.
+	 */
+	public NoiseStream split() {
+		return new NoiseStream(mix64(nextLong()), mixGamma(nextLong()));
+	}
+	
+	/**
+	 * Splits this stream into the given number of independent streams, e.g. one per worker thread.
+	 */
+	public NoiseStream[] split(int numStreams) {
+		NoiseStream[] streams = new NoiseStream[numStreams];
+		for (int i = 0; i < numStreams; i++) {
+			streams[i] = split();
+		}
+		return streams;
+	}
+	
+	/**
+	 * Fills buffer[from, to) with standard normal samples.
+	 */
+	public void fillGaussian(double[] buffer, int from, int to) {
+		for (int i = from; i < to; i++) {
+			buffer[i] = Ziggurat.nextGaussian(this);
+		}
+	}
+	
+	/**
+	 * Fills buffer[from, to) with uniform samples in [0, 1).
+	 */
+	public void fillUniform(double[] buffer, int from, int to) {
+		for (int i = from; i < to; i++) {
+			buffer[i] = (mix64(seed += gamma) >>> 11) * 0x1.0p-53;
+		}
+	}
+	
+	/**
+	 * Fills buffer[from, to) with standard normal samples drawn from any generator. The samples are the same
+	 * as calling rng.nextGaussian() repeatedly, but a NoiseStream fills the buffer in one tight loop.
+	 */
+	public static void fillGaussian(RandomGenerator rng, double[] buffer, int from, int to) {
+		if (rng instanceof NoiseStream) {
+			((NoiseStream) rng).fillGaussian(buffer, from, to);
+		} else {
+			for (int i = from; i < to; i++) {
+				buffer[i] = rng.nextGaussian();
+			}
+		}
+	}
+	
+	/**
+	 * The output function of SplitMix64 (Stafford's variant 13 of the MurmurHash3 finalizer).
+	 */
+	static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+	
+	/**
+	 * Turns a random value into a valid increment: odd and with enough bit transitions.
+	 */
+	private static long mixGamma(long z) {
+		z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+		z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		z = (z ^ (z >>> 33)) | 1L;
+		int n = Long.bitCount(z ^ (z >>> 1));
+		return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+	}
+}
@@ -0,0 +1,82 @@
+package noise;
+
+import java.util.Random;
+
+/**
+ * A java.util.Random whose complete state can be read and restored, so that a run can be checkpointed and resumed.
+ * <p>
+ * java.util.Random keeps its seed and its cached second Gaussian private. This class re-implements the same
+ * 48-bit linear congruential generator and the same polar method on its own fields, so it produces exactly the
+ * sequence of a java.util.Random with the same seed, through every method (nextInt, nextDouble, nextGaussian, ...,
+ * and hence Collections.shuffle).
+ */
+public class RestorableRandom extends Random {
+	private static final long serialVersionUID = 1L;
+	private static final long MULTIPLIER = 0x5DEECE66DL;
+	private static final long ADDEND = 0xBL;
+	private static final long MASK = (1L << 48) - 1;
+
+	// Not initialized here: Random's constructor sets them through setSeed() before field initializers would run
+	private long state;
+	private double nextNextGaussian;
+	private boolean haveNextNextGaussian;
+
+	public RestorableRandom(long seed) {
+		super(seed);
+	}
+
+	@Override
+	public synchronized void setSeed(long seed) {
+		state = (seed ^ MULTIPLIER) & MASK;
+		haveNextNextGaussian = false;
+	}
+
+	@Override
+	protected int next(int bits) {
+		synchronized (this) {
+			state = (state * MULTIPLIER + ADDEND) & MASK;
+			return (int) (state >>> (48 - bits));
+		}
+	}
+
+	@Override
+	public synchronized double nextGaussian() {
+		if (haveNextNextGaussian) {
+			haveNextNextGaussian = false;
+			return nextNextGaussian;
+		}
+		double v1, v2, s;
+		do {
+			v1 = 2 * nextDouble() - 1;
+			v2 = 2 * nextDouble() - 1;
+			s = v1 * v1 + v2 * v2;
+		} while (s >= 1 || s == 0);
+		double multiplier = StrictMath.sqrt(-2 * StrictMath.log(s) / s);
+		nextNextGaussian = v2 * multiplier;
+		haveNextNextGaussian = true;
+		return v1 * multiplier;
+	}
+
+	/**
+	 * Returns the internal 48-bit state (not the seed it was created with)
+	 */
+	public synchronized long getState() {
+		return state;
+	}
+
+	/**
+	 * Returns the cached second sample of the last nextGaussian() call, or NaN if there is none
+	 */
+	public synchronized double getNextNextGaussian() {
+		return haveNextNextGaussian ? nextNextGaussian : Double.NaN;
+	}
+
+	/**
+	 * Restores a state obtained from getState() and getNextNextGaussian().
+	 */
+	public synchronized void restore(long state, double nextNextGaussian) {
+		this.state = state & MASK;
+		this.haveNextNextGaussian = !Double.isNaN(nextNextGaussian);
+		this.nextNextGaussian = nextNextGaussian;
+	}
+}
@@ -0,0 +1,81 @@
+package noise;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * The Ziggurat method for sampling standard normal variates (Marsaglia and Tsang, 2000), in the
+ * 128-block variant of Doornik (2005) which uses doubles for the uniforms.
+ * <p>
+ * About 99% of the samples only cost one 64-bit draw, a table lookup and a multiplication. 
+ * The low 7 bits of the draw select the block and the upper 53 bits give the signed uniform,
+ * so the two are independent. Only the wedges and the tail need exp() or log().
+ */
+public final class Ziggurat {
+	private static final int NUM_BLOCKS = 128;
+	private static final double R = 3.442619855899;				// Start of the right tail
+	private static final double V = 9.91256303526217e-3;			// Area of each block
+	
+	private static final double[] X = new double[NUM_BLOCKS + 1];	// Right edges of the blocks
+	private static final double[] RATIO = new double[NUM_BLOCKS];	// X[i + 1] / X[i]: fraction of block i inside the curve
+	
+	static {
+		double f = Math.exp(-0.5 * R * R);
+		X[0] = V / f;
+		X[1] = R;
+		X[NUM_BLOCKS] = 0;
+		for (int i = 2; i < NUM_BLOCKS; i++) {
+			X[i] = Math.sqrt(-2 * Math.log(V / X[i - 1] + f));
+			f = Math.exp(-0.5 * X[i] * X[i]);
+		}
+		for (int i = 0; i < NUM_BLOCKS; i++) {
+			RATIO[i] = X[i + 1] / X[i];
+		}
+	}
+	
+	private Ziggurat() {
+		System.out.println("A Ziggurat class cannot be instantiated!");
+	}
+	
+	/**
+	 * Returns a standard normal sample using the given source of random bits.
+	 * 
+	 * @param rng	the source of uniform random bits
+	 */
+	public static double nextGaussian(RandomGenerator rng) {
+		while (true) {
+			long bits = rng.nextLong();
+			int i = (int) (bits & (NUM_BLOCKS - 1));
+			double u = (bits >> 11) * 0x1.0p-52;						// Uniform in [-1, 1)
+			
+			// Inside the rectangular part of the block
+			if (Math.abs(u) < RATIO[i]) {
+				return u * X[i];
+			}
+			
+			// The bottom block: sample from the tail
+			if (i == 0) {
+				return tail(rng, u < 0);
+			}
+			
+			// Inside the wedge?
+			double x = u * X[i];
+			double f0 = Math.exp(-0.5 * (X[i] * X[i] - x * x));
+			double f1 = Math.exp(-0.5 * (X[i + 1] * X[i + 1] - x * x));
+			if (f1 + rng.nextDouble() * (f0 - f1) < 1.0) {
+				return x;
+			}
+		}
+	}
+	
+	/**
+	 * Samples from the normal tail beyond R (Marsaglia, 1964).
+	 */
+	private static double tail(RandomGenerator rng, boolean negative) {
+		double x, y;
+		do {
+			x = Math.log(1.0 - rng.nextDouble()) / R;
+			y = Math.log(1.0 - rng.nextDouble());
+		} while (-2 * y < x * x);
+		return negative ? x - R : R - x;
+	}
+}
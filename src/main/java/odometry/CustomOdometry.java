@@ -1,5 +1,10 @@
 package odometry;
+import java.util.List;
 import java.util.Random;
+import java.util.random.RandomGenerator;
+
+import mcl.ParticleColumns;
+import noise.NoiseStream;
 
 /**
  * A class that defines the movement of particles based on logged robot data.
@@ -11,9 +16,7 @@ public class CustomOdometry extends Odometry {
 	 * TODO: define any parameters you use as final constants here.  
 	 */
 	private static double weights[] = {0.001, 0.001, 0.001, 0.001};
-	double [] rot1 = new double[2];
-	double [] rot2 = new double[2];
-	double [] tran = new double[2];
+	private static final int NOISE_BLOCK = 256;					// Particles per block of generated noise
 	Random rand = new Random(0);
 	
 	public CustomOdometry() {};
@@ -29,20 +32,106 @@ public class CustomOdometry extends Odometry {
 		// TODO: implement the odometry model discussed during the lab
 		
 		double[] return_double = new double[3];
+		new Motion(prevPose, control).move(pose, return_double, rand.nextGaussian(), rand.nextGaussian(), rand.nextGaussian());
+		return return_double;
+	}
+	
+	/**
+	 * Decomposes the control into (rot1, tran, rot2) and computes the noise scales once for all particles.
+	 */
+	@Override
+	public MotionUpdate prepareMotion(double[] prevPose, double[] control) {
+		return new Motion(prevPose, control);
+	}
+	
+	/**
+	 * Composes the steps into one rot1-tran-rot2 motion from the first to the last logged pose. Since every step
+	 * draws its own noise, the noise scales of the steps add up in quadrature rather than being recomputed
+	 * from the composed motion.
+	 */
+	@Override
+	public MotionUpdate prepareMotion(List<double[]> loggedPoses) {
+		double[] first = loggedPoses.get(0);
+		double[] last = loggedPoses.get(loggedPoses.size() - 1);
+		Motion composed = new Motion(first, difference(last, first));
+		
+		double varianceRot1 = 0, varianceRot2 = 0, varianceTran = 0;
+		for (int k = 1; k < loggedPoses.size(); k++) {
+			Motion step = new Motion(loggedPoses.get(k - 1), difference(loggedPoses.get(k), loggedPoses.get(k - 1)));
+			varianceRot1 += step.sigmaRot1 * step.sigmaRot1;
+			varianceRot2 += step.sigmaRot2 * step.sigmaRot2;
+			varianceTran += step.sigmaTran * step.sigmaTran;
+		}
+		return new Motion(composed.rot1, composed.rot2, composed.tran, Math.sqrt(varianceRot1), Math.sqrt(varianceRot2), Math.sqrt(varianceTran));
+	}
+	
+	/**
+	 * The rot1-tran-rot2 motion of a single time step (or of several composed ones). The fields only depend on 
+	 * the control signal, so one instance can be shared by all particles (and all threads) of that step.
+	 */
+	private static final class Motion implements MotionUpdate {
+		private final double rot1;
+		private final double rot2;
+		private final double tran;
+		private final double sigmaRot1;
+		private final double sigmaRot2;
+		private final double sigmaTran;
 		
-		//using the formulas given
-		rot1[0] = Math.atan2(control[1],control[0]) - prevPose[2];
-		rot2[0] = Math.atan2(control[1],control[0]) - prevPose[2];
-		tran[0] = Math.sqrt(Math.pow(control[0], 2)+Math.pow(control[1], 2));
+		Motion(double[] prevPose, double[] control) {
+			//using the formulas given
+			rot1 = Math.atan2(control[1],control[0]) - prevPose[2];
+			rot2 = Math.atan2(control[1],control[0]) - prevPose[2];
+			tran = Math.sqrt(Math.pow(control[0], 2)+Math.pow(control[1], 2));
+			
+			sigmaRot1 = weights[0]*(Math.abs(rot1)) + weights[1]*(Math.abs(tran));
+			sigmaRot2 = weights[0]*(Math.abs(rot2)) + weights[1]*(Math.abs(tran));
+			sigmaTran = weights[2]*(Math.abs(tran)) + weights[3]*(Math.abs(rot1)+Math.abs(tran));
+		}
 		
-		rot1[1] = rot1[0] - rand.nextGaussian() * (weights[0]*(Math.abs(rot1[0])) + weights[1]*(Math.abs(tran[0])));
-		rot2[1] = rot2[0] - rand.nextGaussian() * (weights[0]*(Math.abs(rot2[0])) + weights[1]*(Math.abs(tran[0])));
-		tran[1] = tran[0]  - rand.nextGaussian() * (weights[2]*(Math.abs(tran[0])) + weights[3]*(Math.abs(rot1[0])+Math.abs(tran[0])));
+		Motion(double rot1, double rot2, double tran, double sigmaRot1, double sigmaRot2, double sigmaTran) {
+			this.rot1 = rot1;
+			this.rot2 = rot2;
+			this.tran = tran;
+			this.sigmaRot1 = sigmaRot1;
+			this.sigmaRot2 = sigmaRot2;
+			this.sigmaTran = sigmaTran;
+		}
 		
-		return_double[0] = pose[0] + tran[1] *Math.cos(pose[2] + rot1[1]);
-		return_double[1] = pose[1] + tran[1] *Math.sin(pose[2] + rot1[1]);
-		return_double[2] = pose[2] + rot1[1] + rot2[1];
+		/**
+		 * Moves a single pose given standard normal samples for the noise of rot1, rot2 and tran.
+		 */
+		void move(double[] pose, double[] newPose, double noiseRot1, double noiseRot2, double noiseTran) {
+			double noisyRot1 = rot1 - noiseRot1 * sigmaRot1;
+			double noisyRot2 = rot2 - noiseRot2 * sigmaRot2;
+			double noisyTran = tran - noiseTran * sigmaTran;
+			
+			newPose[0] = pose[0] + noisyTran * Math.cos(pose[2] + noisyRot1);
+			newPose[1] = pose[1] + noisyTran * Math.sin(pose[2] + noisyRot1);
+			newPose[2] = pose[2] + noisyRot1 + noisyRot2;
+		}
 		
-		return return_double;
+		/**
+		 * The noise is generated in blocks (three samples per particle, in the order rot1, rot2, tran) 
+		 * which gives the same samples as drawing them one at a time.
+		 */
+		@Override
+		public void apply(ParticleColumns particles, int from, int to, RandomGenerator rngStream) {
+			double[] pose = new double[3];
+			double[] newPose = new double[3];
+			double[] noise = new double[3 * Math.min(Math.max(to - from, 0), NOISE_BLOCK)];
+			
+			for (int start = from; start < to; start += NOISE_BLOCK) {
+				int end = Math.min(to, start + NOISE_BLOCK);
+				NoiseStream.fillGaussian(rngStream, noise, 0, 3 * (end - start));
+				
+				for (int i = start, k = 0; i < end; i++, k += 3) {
+					pose[0] = particles.getX(i);
+					pose[1] = particles.getY(i);
+					pose[2] = particles.getTheta(i);
+					move(pose, newPose, noise[k], noise[k + 1], noise[k + 2]);
+					particles.setPose(i, newPose[0], newPose[1], newPose[2]);
+				}
+			}
+		}
 	}
 }
@@ -31,4 +31,20 @@ public class DefaultOdometry extends Odometry {
 		
 		return updatedPose;
 	}
+	
+	/**
+	 * Adds the control signal to every particle in place; DefaultOdometry does not draw any noise.
+	 */
+	@Override
+	public MotionUpdate prepareMotion(double[] prevPose, double[] control) {
+		double deltaX = control[0];
+		double deltaY = control[1];
+		double deltaTheta = control[2];
+		
+		return (particles, from, to, rngStream) -> {
+			for (int i = from; i < to; i++) {
+				particles.setPose(i, particles.getX(i) + deltaX, particles.getY(i) + deltaY, particles.getTheta(i) + deltaTheta);
+			}
+		};
+	}
 }
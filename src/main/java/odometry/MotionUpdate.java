@@ -0,0 +1,25 @@
+package odometry;
+
+import java.util.random.RandomGenerator;
+
+import mcl.ParticleColumns;
+
+/**
+ * The motion of a single time step, prepared by an Odometry model for a specific control signal.
+ * <p>
+ * Anything that only depends on the control signal has already been computed, so applying the motion
+ * only involves per-particle work. Implementations must not keep mutable state: as long as every caller
+ * brings its own random number stream, disjoint ranges of particles can be moved from parallel workers.
+ */
+public interface MotionUpdate {
+
+	/**
+	 * Moves the particles in the index range [from, to) in place.
+	 *
+	 * @param particles		the particle columns whose poses are updated
+	 * @param from			the first index (inclusive)
+	 * @param to			the last index (exclusive)
+	 * @param rngStream		the random number stream used for the motion noise; not shared with other workers
+	 */
+	void apply(ParticleColumns particles, int from, int to, RandomGenerator rngStream);
+}
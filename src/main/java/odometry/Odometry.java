@@ -1,5 +1,10 @@
 package odometry;
 
+import java.util.List;
+import java.util.random.RandomGenerator;
+
+import mcl.ParticleColumns;
+
 /**
  * An abstract class defining an odometry model
  */
@@ -13,4 +18,68 @@ public abstract class Odometry {
 	 * @param	control		an action that consists of {deltaX, deltaY and deltaTheta}
 	 */	
 	public abstract double[] updatePose(double[] pose, double[] prevPose, double[] control);	
+
+
+	/**
+	 * Prepares the motion of one time step so that it can be applied to many particles.
+	 * <p>
+	 * The default implementation falls back on updatePose() for every particle and ignores the given random stream;
+	 * it is therefore only as thread-safe as updatePose(). Subclasses should override this method to compute the
+	 * control-only terms once and draw their noise from the stream passed to MotionUpdate.apply().
+	 *
+	 * @param 	prevPose	the previous pose recorded in a log file
+	 * @param	control		an action that consists of {deltaX, deltaY and deltaTheta}
+	 * @return				the motion which can be applied to particle columns
+	 */
+	public MotionUpdate prepareMotion(double[] prevPose, double[] control) {
+		return (particles, from, to, rngStream) -> {
+			double[] pose = new double[3];
+			for (int i = from; i < to; i++) {
+				pose[0] = particles.getX(i);
+				pose[1] = particles.getY(i);
+				pose[2] = particles.getTheta(i);
+				double[] newPose = updatePose(pose, prevPose, control);
+				particles.setPose(i, newPose[0], newPose[1], newPose[2]);
+			}
+		};
+	}
+
+
+	/**
+	 * Prepares the composed motion of several consecutive time steps, so that it can be applied to many particles at once.
+	 * <p>
+	 * The default implementation applies prepareMotion() to the whole displacement from the first to the last
+	 * logged pose, which is exact for models whose motion and noise only depend on that displacement (such as
+	 * DefaultOdometry). Models whose noise is drawn anew at every step should override it and accumulate the noise
+	 * of the steps instead.
+	 *
+	 * @param	loggedPoses	the logged poses at the start of the first step and at the end of every step
+	 * @return				the motion which can be applied to particle columns
+	 */
+	public MotionUpdate prepareMotion(List<double[]> loggedPoses) {
+		double[] first = loggedPoses.get(0);
+		double[] last = loggedPoses.get(loggedPoses.size() - 1);
+		return prepareMotion(first, difference(last, first));
+	}
+
+
+	/**
+	 * Returns the control signal {deltaX, deltaY, deltaTheta} which leads from one logged pose to another.
+	 */
+	protected static double[] difference(double[] pose, double[] prevPose) {
+		return new double[] {pose[0] - prevPose[0], pose[1] - prevPose[1], pose[2] - prevPose[2]};
+	}
+
+
+	/**
+	 * Updates the poses of all particles in place given the previous pose in data and the control signal.
+	 *
+	 * @param	particles	the particle columns whose poses are updated
+	 * @param 	prevPose	the previous pose recorded in a log file
+	 * @param	control		an action that consists of {deltaX, deltaY and deltaTheta}
+	 * @param	rngStream	the random number stream used for the motion noise
+	 */
+	public void updatePoses(ParticleColumns particles, double[] prevPose, double[] control, RandomGenerator rngStream) {
+		prepareMotion(prevPose, control).apply(particles, 0, particles.size(), rngStream);
+	}
 }
@@ -0,0 +1,128 @@
+package sensor;
+
+/**
+ * A resolution pyramid of the expected laser readings, used for coarse-to-fine global localization.
+ * <p>
+ * Level 0 is the full-resolution table (10 cm cells, Sensor.NUM_BINS bins). Every further level halves the
+ * resolution in both position and angle: level 1 has 20 cm cells and 60 bins, level 2 has 40 cm cells and 30 bins, ...
+ * The expected reading of a coarse (cell, bin) is the mean of the fine readings it covers, taken over the
+ * free fine cells only (occupied cells have an expected reading of 0). Coarse levels are stored as flat float arrays.
+ */
+public class ExpectedReadingPyramid {
+	private static final int FINE_CELL_SIZE = 10;				// cm per cell at level 0
+
+	private final ExpectedReadings fineReadings;
+	private final int fineWidth;
+	private final int fineHeight;
+	private final float[][] coarseReadings;						// [level - 1][(x * height + y) * numBins + bin]
+
+	/**
+	 * Builds the coarse levels from the full-resolution table.
+	 *
+	 * @param cachedLaserReading	the full-resolution expected readings [x][y][bin]
+	 * @param numLevels				the number of levels including the full-resolution one
+	 */
+	public ExpectedReadingPyramid(double[][][] cachedLaserReading, int numLevels) {
+		this((x, y, binId) -> cachedLaserReading[x][y][binId], cachedLaserReading.length, cachedLaserReading[0].length, numLevels);
+	}
+	
+	/**
+	 * Builds the coarse levels from any source of full-resolution readings (every reading is looked up once).
+	 *
+	 * @param fineReadings	the full-resolution expected readings
+	 * @param width			the number of cells along x at full resolution
+	 * @param height		the number of cells along y at full resolution
+	 * @param numLevels		the number of levels including the full-resolution one
+	 */
+	public ExpectedReadingPyramid(ExpectedReadings fineReadings, int width, int height, int numLevels) {
+		if (numLevels < 1 || Sensor.NUM_BINS % (1 << (numLevels - 1)) != 0) {
+			throw new IllegalArgumentException(String.format("Cannot build %d levels from %d bins", numLevels, Sensor.NUM_BINS));
+		}
+		this.fineReadings = fineReadings;
+		this.fineWidth = width;
+		this.fineHeight = height;
+		this.coarseReadings = new float[numLevels - 1][];
+
+		for (int level = 1; level < numLevels; level++) {
+			coarseReadings[level - 1] = buildLevel(level);
+		}
+	}
+
+	/**
+	 * Averages the fine readings over blocks of (2^level x 2^level) cells and 2^level bins.
+	 */
+	private float[] buildLevel(int level) {
+		int factor = 1 << level;
+		int width = getWidth(level);
+		int height = getHeight(level);
+		int numBins = getNumBins(level);
+		float[] readings = new float[width * height * numBins];
+
+		for (int cx = 0; cx < width; cx++) {
+			for (int cy = 0; cy < height; cy++) {
+				for (int bin = 0; bin < numBins; bin++) {
+					double sum = 0;
+					int count = 0;
+					for (int x = cx * factor; x < Math.min((cx + 1) * factor, fineWidth); x++) {
+						for (int y = cy * factor; y < Math.min((cy + 1) * factor, fineHeight); y++) {
+							for (int k = bin * factor; k < (bin + 1) * factor; k++) {
+								double reading = fineReadings.getExpectedObs(x, y, k);
+								if (reading > 0) {
+									sum += reading;
+									count++;
+								}
+							}
+						}
+					}
+					readings[(cx * height + cy) * numBins + bin] = count > 0 ? (float) (sum / count) : 0;
+				}
+			}
+		}
+		return readings;
+	}
+
+	/**
+	 * Returns the number of levels including the full-resolution one
+	 */
+	public int getNumLevels() {
+		return coarseReadings.length + 1;
+	}
+
+	/**
+	 * Returns the size of a cell at the given level in cm
+	 */
+	public int getCellSize(int level) {
+		return FINE_CELL_SIZE << level;
+	}
+
+	/**
+	 * Returns the number of angle bins covering [0, 2 * PI] at the given level
+	 */
+	public int getNumBins(int level) {
+		return Sensor.NUM_BINS >> level;
+	}
+
+	public int getWidth(int level) {
+		return (fineWidth + (1 << level) - 1) >> level;
+	}
+
+	public int getHeight(int level) {
+		return (fineHeight + (1 << level) - 1) >> level;
+	}
+
+	/**
+	 * Returns the expected laser reading at a cell and bin of the given level.
+	 *
+	 * @param level		the pyramid level
+	 * @param x			the cell index along x at that level
+	 * @param y			the cell index along y at that level
+	 * @param binId		the bin index at that level
+	 */
+	public double getExpectedObs(int level, int x, int y, int binId) {
+		if (level == 0) {
+			return fineReadings.getExpectedObs(x, y, binId);
+		}
+		int numBins = getNumBins(level);
+		return coarseReadings[level - 1][(x * getHeight(level) + y) * numBins + binId];
+	}
+}
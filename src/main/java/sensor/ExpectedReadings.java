@@ -0,0 +1,30 @@
+package sensor;
+
+/**
+ * A source of expected laser readings, looked up by map cell and angle bin (see Sensor.getExpectedObs).
+ * <p>
+ * The simplest source is the fully precomputed [x][y][bin] array loaded by RayTracing.loadRayTracing(). Other sources
+ * may store the readings more compactly or compute them on demand. All sources must be safe to read from several threads.
+ */
+public interface ExpectedReadings {
+	
+	/**
+	 * Returns the expected laser reading (in cm) at a cell of the map for a bin of directions.
+	 * 
+	 * @param x			the cell index along x (10 cm cells)
+	 * @param y			the cell index along y (10 cm cells)
+	 * @param binId		the index of the direction bin; [0, 2 * PI] is divided into Sensor.NUM_BINS bins
+	 */
+	double getExpectedObs(int x, int y, int binId);
+	
+	/**
+	 * Hints that lookups around a cell are coming up soon. Sources which compute readings on demand
+	 * may start computing them in the background; the default does nothing.
+	 * 
+	 * @param x				the cell index along x
+	 * @param y				the cell index along y
+	 * @param radiusCells	the radius of the region of interest in cells
+	 */
+	default void prefetch(int x, int y, int radiusCells) {
+	}
+}
@@ -0,0 +1,215 @@
+package sensor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import map.GlobalMap;
+
+/**
+ * Expected laser readings which are ray-cast on demand instead of being loaded from the precomputed cache file.
+ * <p>
+ * The map is divided into tiles of TILE_SIZE x TILE_SIZE cells. The first lookup into a tile ray-casts all of its
+ * cells and bins with the same Bresenham caster as RayTracing, so the readings are identical to the precomputed ones.
+ * Tiles are kept up to a configurable memory cap; beyond it, the least recently used tile is evicted.
+ * Hence memory use grows with the area the particles actually visit rather than with the size of the map.
+ * <p>
+ * prefetch() queues the tiles around a region (e.g. the particle cloud) for a background thread, so that the filter
+ * rarely has to wait for a ray cast. Lookups are lock-free once a tile is loaded.
+ */
+public class LazyRayCastReadings implements ExpectedReadings {
+	private static final int TILE_SIZE = 16;						// Cells per tile side
+	private static final int MAX_PREFETCH_RADIUS = 4 * TILE_SIZE;	// Prefetch at most this many cells around a region
+	private static final int PREFETCH_QUEUE_SIZE = 256;
+
+	private final boolean[][] occupied;
+	private final int width;
+	private final int height;
+	private final int numBins;
+	private final int tilesX;
+	private final int tilesY;
+	private final int maxTiles;
+
+	private final AtomicReferenceArray<double[]> tiles;			// [tileId] -> readings [(localX * TILE_SIZE + localY) * numBins + bin]
+	private final long[] lastUsed;									// Access stamps for LRU eviction (racy by design)
+	private final ConcurrentHashMap<Integer, FutureTask<double[]>> loading = new ConcurrentHashMap<>();
+	private final ThreadPoolExecutor prefetcher;
+	private long clock;
+	private int numLoaded;
+
+	private final AtomicLong numMisses = new AtomicLong();
+	private final AtomicLong numEvictions = new AtomicLong();
+
+	/**
+	 * @param map			the map to ray-cast on
+	 * @param maxBytes		the memory cap for the cached tiles
+	 */
+	public LazyRayCastReadings(GlobalMap map, long maxBytes) {
+		this.occupied = RayTracing.occupancyGrid(map);
+		this.width = occupied.length;
+		this.height = occupied[0].length;
+		this.numBins = Sensor.NUM_BINS;
+		this.tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+		this.tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+		this.maxTiles = (int) Math.max(1, Math.min(tilesX * tilesY, maxBytes / getTileBytes()));
+		this.tiles = new AtomicReferenceArray<>(tilesX * tilesY);
+		this.lastUsed = new long[tilesX * tilesY];
+
+		// A single daemon thread; when it falls behind, further prefetch requests are dropped
+		this.prefetcher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(PREFETCH_QUEUE_SIZE), runnable -> {
+					Thread thread = new Thread(runnable, "ray-cast-prefetch");
+					thread.setDaemon(true);
+					return thread;
+				}, new ThreadPoolExecutor.DiscardPolicy());
+	}
+
+	@Override
+	public double getExpectedObs(int x, int y, int binId) {
+		int tileId = (x / TILE_SIZE) * tilesY + (y / TILE_SIZE);
+		double[] tile = tiles.get(tileId);
+		if (tile == null) {
+			numMisses.incrementAndGet();
+			tile = loadTile(tileId);
+		}
+		lastUsed[tileId] = ++clock;
+		return tile[((x % TILE_SIZE) * TILE_SIZE + (y % TILE_SIZE)) * numBins + binId];
+	}
+
+	@Override
+	public void prefetch(int x, int y, int radiusCells) {
+		int radius = Math.min(radiusCells, MAX_PREFETCH_RADIUS);
+		int minTileX = Math.max(0, (x - radius) / TILE_SIZE);
+		int maxTileX = Math.min(tilesX - 1, (x + radius) / TILE_SIZE);
+		int minTileY = Math.max(0, (y - radius) / TILE_SIZE);
+		int maxTileY = Math.min(tilesY - 1, (y + radius) / TILE_SIZE);
+
+		for (int tx = minTileX; tx <= maxTileX; tx++) {
+			for (int ty = minTileY; ty <= maxTileY; ty++) {
+				int tileId = tx * tilesY + ty;
+				if (tiles.get(tileId) == null && !loading.containsKey(tileId)) {
+					prefetcher.execute(() -> loadTile(tileId));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the tile, ray-casting it unless another thread is already doing so (in which case we wait for it).
+	 * A failed ray casting is not kept: the next lookup of the tile tries again.
+	 */
+	private double[] loadTile(int tileId) {
+		double[] tile = tiles.get(tileId);
+		if (tile != null) {
+			return tile;
+		}
+
+		FutureTask<double[]> task = new FutureTask<>(() -> rayCastTile(tileId));
+		FutureTask<double[]> running = loading.putIfAbsent(tileId, task);
+		if (running == null) {
+			running = task;
+			task.run();
+		}
+		try {
+			tile = running.get();
+			if (running == task) {
+				insert(tileId, tile);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while ray-casting a tile", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Ray-casting a tile failed", e.getCause());
+		} finally {
+			// Also after a failure, so that a later lookup ray-casts the tile again
+			if (running == task) {
+				loading.remove(tileId, task);
+			}
+		}
+		return tile;
+	}
+
+	/**
+	 * Computes the expected readings of all cells and bins of a tile.
+	 */
+	private double[] rayCastTile(int tileId) {
+		int x0 = (tileId / tilesY) * TILE_SIZE;
+		int y0 = (tileId % tilesY) * TILE_SIZE;
+		double[] tile = new double[TILE_SIZE * TILE_SIZE * numBins];
+
+		for (int i = 0; i < TILE_SIZE && x0 + i < width; i++) {
+			for (int j = 0; j < TILE_SIZE && y0 + j < height; j++) {
+				int offset = (i * TILE_SIZE + j) * numBins;
+				for (int k = 0; k < numBins; k++) {
+					tile[offset + k] = RayTracing.rayTracingBresenham(occupied, x0 + i, y0 + j, RayTracing.binToTheta(k, numBins));
+				}
+			}
+		}
+		return tile;
+	}
+
+	/**
+	 * Publishes a loaded tile and evicts the least recently used ones while over the memory cap.
+	 */
+	private synchronized void insert(int tileId, double[] tile) {
+		if (tiles.get(tileId) != null) {
+			return;
+		}
+		lastUsed[tileId] = ++clock;
+		tiles.set(tileId, tile);
+		numLoaded++;
+
+		while (numLoaded > maxTiles) {
+			int victim = -1;
+			for (int id = 0; id < lastUsed.length; id++) {
+				if (id != tileId && tiles.get(id) != null && (victim < 0 || lastUsed[id] < lastUsed[victim])) {
+					victim = id;
+				}
+			}
+			tiles.set(victim, null);
+			numLoaded--;
+			numEvictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the memory taken by a single tile in bytes
+	 */
+	public long getTileBytes() {
+		return (long) TILE_SIZE * TILE_SIZE * Sensor.NUM_BINS * Double.BYTES;
+	}
+
+	/**
+	 * Returns the memory currently taken by the loaded tiles in bytes
+	 */
+	public synchronized long getMemoryBytes() {
+		return numLoaded * getTileBytes();
+	}
+
+	/**
+	 * Returns the number of lookups which found their tile missing (and had to ray-cast or wait for it)
+	 */
+	public long getNumMisses() {
+		return numMisses.get();
+	}
+
+	/**
+	 * Returns the number of tiles evicted because of the memory cap
+	 */
+	public long getNumEvictions() {
+		return numEvictions.get();
+	}
+
+	/**
+	 * Defines the format of string to be printed out
+	 */
+	public String toString() {
+		return String.format("%d/%d tiles (%.1f MB), %d misses, %d evictions", numLoaded, tilesX * tilesY,
+				getMemoryBytes() / 1e6, getNumMisses(), getNumEvictions());
+	}
+}
@@ -0,0 +1,84 @@
+package sensor;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Compact expected readings read directly from a memory-mapped file written by CompactExpectedReadings.save().
+ * <p>
+ * Nothing is copied onto the heap: lookups read the mapped pages, which the operating system loads on first use
+ * and shares between all processes mapping the same file. Several filter processes on one machine therefore need
+ * the memory of the readings only once. Lookups give the same values as the CompactExpectedReadings that was saved.
+ * <p>
+ * The file holds the ints MAGIC, width, height, numBins and the number of free cells, then the cell index
+ * (width * height ints) and the readings (numBins shorts per free cell), all big-endian.
+ */
+public class MappedExpectedReadings implements ExpectedReadings {
+	static final int MAGIC = 0x4D434552;					// "MCER"
+	static final int HEADER_BYTES = 5 * Integer.BYTES;
+
+	private final String filePath;
+	private final MappedByteBuffer buffer;
+	private final int width;
+	private final int height;
+	private final int numBins;
+	private final int numFreeCells;
+	private final int readingsOffset;
+
+	/**
+	 * Maps a file written by CompactExpectedReadings.save().
+	 *
+	 * @param filePath	the path of the file
+	 */
+	public MappedExpectedReadings(String filePath) throws IOException {
+		this.filePath = filePath;
+		try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(filePath + " is too large to be mapped at once");
+			}
+			this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+			throw new IOException(filePath + " does not hold compact expected readings");
+		}
+		this.width = buffer.getInt(4);
+		this.height = buffer.getInt(8);
+		this.numBins = buffer.getInt(12);
+		this.numFreeCells = buffer.getInt(16);
+		this.readingsOffset = HEADER_BYTES + width * height * Integer.BYTES;
+		long expectedBytes = readingsOffset + (long) numFreeCells * numBins * Short.BYTES;
+		if (buffer.capacity() != expectedBytes) {
+			throw new IOException(String.format("%s has %d bytes instead of %d", filePath, buffer.capacity(), expectedBytes));
+		}
+	}
+
+	@Override
+	public double getExpectedObs(int x, int y, int binId) {
+		int row = buffer.getInt(HEADER_BYTES + (x * height + y) * Integer.BYTES);
+		return row < 0 ? 0 : buffer.getShort(readingsOffset + (row * numBins + binId) * Short.BYTES);
+	}
+
+	/**
+	 * Returns the number of cells along x
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Returns the number of cells along y
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Defines the format of string to be printed out
+	 */
+	public String toString() {
+		return String.format("%s mapped (%d free cells, %.1f MB)", filePath, numFreeCells, buffer.capacity() / 1e6);
+	}
+}
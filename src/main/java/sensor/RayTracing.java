@@ -14,6 +14,7 @@ import map.GlobalMap;
  * This class is used for precomputing and loading expected laser readings given the map of Wean hall.
  */
 public class RayTracing {
+	private static final double MIN_VAL_FREE_SPACE = 0.7;
 	private static GlobalMap globalMap;
 	
 	public RayTracing() {
@@ -73,19 +74,15 @@ public class RayTracing {
 		int height = 800;
 		
 		
-		// Initialize the ray tracing array and theta values; [0, 2*PI] range of theta is divided into a few number of bins 
+		// Initialize the ray tracing array; [0, 2*PI] range of theta is divided into a few number of bins 
 		double[][][] rayTracingArray = new double[800][800][numBins];
-		double[] raycastDegrees = new double[120];
-		double inc = 2 * Math.PI / (numBins-1);
-		for (int i = 0; i < 120; i++) {
-			raycastDegrees[i] = inc * i;
-		}
+		boolean[][] occupied = occupancyGrid(globalMap);
 		
 		// Call rayTracingBresenham method to compute the expected reading and store in rayTracingArray
 		for (int i = 0; i < width; i++) {
 			for (int j = 0; j < height; j++) {
 				for (int k = 0; k < numBins; k++) {
-					expectedReading = rayTracingBresenham(i, j, raycastDegrees[k]);
+					expectedReading = rayTracingBresenham(occupied, i, j, binToTheta(k, numBins));
 					rayTracingArray[i][j][k] = expectedReading;
 				}
 			}
@@ -105,14 +102,36 @@ public class RayTracing {
 		}
 	}
 	
+	/**
+	 * Returns the direction (in radian) for which the expected readings of a bin are computed.
+	 */
+	static double binToTheta(int binId, int numBins) {
+		double inc = 2 * Math.PI / (numBins-1);
+		return inc * binId;
+	}
+	
+	/**
+	 * Returns an [x][y] grid which is true where a pixel counts as occupied for ray casting, 
+	 * i.e. where the value on the map is smaller than MIN_VAL_FREE_SPACE (this includes unknown pixels).
+	 */
+	static boolean[][] occupancyGrid(GlobalMap map) {
+		boolean[][] occupied = new boolean[map.globalMapValues.length][];
+		for (int i = 0; i < occupied.length; i++) {
+			occupied[i] = new boolean[map.globalMapValues[i].length];
+			for (int j = 0; j < occupied[i].length; j++) {
+				occupied[i][j] = map.globalMapValues[i][j] < MIN_VAL_FREE_SPACE;
+			}
+		}
+		return occupied;
+	}
+	
 	/*
 	 * The ray casting algorithm based on the Bresenham's line algorithm (check on Wikipedia).
 	 * Given a point (x, y) and a laser direction (theta), searches for the nearest object along the direction.
 	 * Note that the maximum laser reading is 8183, and we consider a pixel to be occupied
-	 * if the value on the pixel is smaller than 0.8.
+	 * if the value on the pixel is smaller than MIN_VAL_FREE_SPACE (see occupancyGrid()).
 	 */
-	private static double rayTracingBresenham(int x, int y, double theta) {
-		double minValFreeSpace = 0.7;
+	static double rayTracingBresenham(boolean[][] occupied, int x, int y, double theta) {
 		int maxDist = 8183;
 		double dist;
 		maxDist = maxDist / 10;
@@ -125,7 +144,7 @@ public class RayTracing {
 		int sx, sy;
 		
 		// If (x0, y0) is occupied, just return 0
-		if (Double.parseDouble(globalMap.globalMapValues[x][y]) < minValFreeSpace) {
+		if (occupied[x][y]) {
 			return 0;
 		}
 		
@@ -156,12 +175,12 @@ public class RayTracing {
 				
 				// If x and y have been swapped
 				if (steep) {
-					if (Double.parseDouble(globalMap.globalMapValues[y][x]) < minValFreeSpace) {
+					if (occupied[y][x]) {
 						dist = Math.sqrt(Math.pow(y - x0, 2) + Math.pow(x - y0, 2));
 						return Math.min(dist, maxDist) * 10;
 					} 
 				} else {
-					if (Double.parseDouble(globalMap.globalMapValues[x][y]) < minValFreeSpace) {
+					if (occupied[x][y]) {
 						dist = Math.sqrt(Math.pow(x - x0, 2) + Math.pow(y - y0, 2));
 						return Math.min(dist, maxDist) * 10;
 					}
@@ -0,0 +1,282 @@
+package sensor;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import map.ArtifactCache;
+import map.GlobalMap;
+
+/**
+ * A place-recognition index of the map for global localization: it returns the few places (and headings) from
+ * which a scan could have been taken, so that the particles can be seeded around them instead of over the whole map.
+ * <p>
+ * Every STRIDE-th free cell along x and y gets a signature: the histogram of its Sensor.NUM_BINS expected readings
+ * over range bins which grow geometrically (from SIGNATURE_FIRST_EDGE cm by SIGNATURE_EDGE_RATIO), so that it does
+ * not depend on the heading. A scan covers only half of the directions, so cells are ranked by how much of the
+ * histogram of the scan their signature contains, sum_k min(scan_k, cell_k). The NUM_VERIFIED best cells, and the
+ * cells which tie with the last of them (up to MAX_VERIFIED), are then matched against the scan at every heading bin
+ * (the mean of |reading - expected reading|, truncated at MATCH_TRUNCATION cm for people and clutter), and the best
+ * matches more than MIN_PLACE_DISTANCE apart are returned. A query thus costs one pass over small signatures plus a
+ * few hundred full matches, instead of weighting particles all over the map.
+ * <p>
+ * On the Wean hall map, the index holds about 12k signatures of 19 bytes, and a query verifies about 630 cells in
+ * about 20 ms.
+ */
+public class ScanSignatureIndex {
+	public static final String ARTIFACT_TYPE = "scan-signatures";
+	public static final int ARTIFACT_VERSION = 1;					// bump when the signatures change
+	public static final int STRIDE = 2;								// cells between two indexed cells along x and y
+	private static final int CELL_SIZE = 10;						// cm per cell of the expected readings
+	private static final double MIN_FREE_VALUE = 0.8;				// where particles may be (see Particle.isValidPosition())
+	private static final double SIGNATURE_FIRST_EDGE = 50;			// cm
+	private static final double SIGNATURE_EDGE_RATIO = 1.3;
+	private static final double SIGNATURE_MAX_EDGE = 5000;			// cm; longer readings share the last bin
+	private static final int NUM_VERIFIED = 500;					// cells matched at every heading per query, at least
+	private static final int MAX_VERIFIED = 1000;					// and at most, when many cells tie with the last of them
+	private static final double MATCH_TRUNCATION = 100;				// cm
+	private static final double MIN_PLACE_DISTANCE = 100;			// cm between two returned places
+
+	private static final double[] SIGNATURE_EDGES = signatureEdges();
+
+	/**
+	 * Writes and reads an index for an ArtifactCache.
+	 */
+	public static final ArtifactCache.Codec<ScanSignatureIndex> CODEC = new ArtifactCache.Codec<>() {
+		@Override
+		public void write(ScanSignatureIndex index, DataOutputStream out) throws IOException {
+			out.writeInt(index.height);
+			out.writeInt(index.numSignatureBins);
+			out.writeInt(index.cells.length);
+			ArtifactCache.writeInts(out, index.cells);
+			out.write(index.signatures);
+		}
+
+		@Override
+		public ScanSignatureIndex read(DataInputStream in) throws IOException {
+			int height = in.readInt();
+			int numSignatureBins = in.readInt();
+			if (numSignatureBins != SIGNATURE_EDGES.length + 1) {
+				throw new IOException("Signatures of " + numSignatureBins + " bins");
+			}
+			int[] cells = new int[in.readInt()];
+			byte[] signatures = new byte[cells.length * numSignatureBins];
+			ArtifactCache.readInts(in, cells);
+			in.readFully(signatures);
+			return new ScanSignatureIndex(height, numSignatureBins, cells, signatures);
+		}
+	};
+
+	/**
+	 * A place from which a scan could have been taken
+	 */
+	public static class Candidate {
+		public final double laserX;			// position of the laser (the center of an indexed cell) in cm
+		public final double laserY;
+		public final double theta;			// heading of the robot
+		public final double matchDistance;	// mean truncated difference between the scan and the expected readings in cm
+
+		Candidate(double laserX, double laserY, double theta, double matchDistance) {
+			this.laserX = laserX;
+			this.laserY = laserY;
+			this.theta = theta;
+			this.matchDistance = matchDistance;
+		}
+
+		/**
+		 * Defines the format of string to be printed out
+		 */
+		public String toString() {
+			return String.format("(%.0f, %.0f, %.2f) %.1f cm", laserX, laserY, theta, matchDistance);
+		}
+	}
+
+	private final int height;
+	private final int numSignatureBins;
+	private final int[] cells;							// [i] -> x * height + y of the ith indexed cell
+	private final byte[] signatures;					// [i * numSignatureBins + k] -> expected readings in range bin k
+
+	/**
+	 * Computes the signatures of the free cells of a map (every STRIDE-th cell along x and y).
+	 * The readings are read from several threads at once.
+	 *
+	 * @param map		the map whose free cells are indexed
+	 * @param readings	the expected readings of the map, e.g. CompactExpectedReadings
+	 */
+	public ScanSignatureIndex(GlobalMap map, ExpectedReadings readings) {
+		int width = map.globalMapValues.length;
+		this.height = map.globalMapValues[0].length;
+		this.numSignatureBins = SIGNATURE_EDGES.length + 1;
+
+		List<Integer> freeCells = new ArrayList<>();
+		for (int x = 0; x < width; x += STRIDE) {
+			for (int y = 0; y < height; y += STRIDE) {
+				if (map.globalMapValues[x][y] > MIN_FREE_VALUE) {
+					freeCells.add(x * height + y);
+				}
+			}
+		}
+		this.cells = freeCells.stream().mapToInt(Integer::intValue).toArray();
+		this.signatures = new byte[cells.length * numSignatureBins];
+
+		IntStream.range(0, cells.length).parallel().forEach(i -> {
+			int x = cells[i] / height;
+			int y = cells[i] % height;
+			for (int k = 0; k < Sensor.NUM_BINS; k++) {
+				signatures[i * numSignatureBins + signatureBin(readings.getExpectedObs(x, y, k))]++;
+			}
+		});
+	}
+
+	private ScanSignatureIndex(int height, int numSignatureBins, int[] cells, byte[] signatures) {
+		this.height = height;
+		this.numSignatureBins = numSignatureBins;
+		this.cells = cells;
+		this.signatures = signatures;
+	}
+
+	/**
+	 * Returns the index of a map from the artifact cache, computing and caching it on a miss.
+	 */
+	public static ScanSignatureIndex fromCache(ArtifactCache cache, GlobalMap map, ExpectedReadings readings) {
+		String parameters = String.format("bins=%d,stride=%d,edges=%s-%s-%s", Sensor.NUM_BINS, STRIDE,
+				SIGNATURE_FIRST_EDGE, SIGNATURE_EDGE_RATIO, SIGNATURE_MAX_EDGE);
+		return cache.get(map, ARTIFACT_TYPE, ARTIFACT_VERSION, parameters, CODEC, () -> new ScanSignatureIndex(map, readings));
+	}
+
+	private static double[] signatureEdges() {
+		List<Double> edges = new ArrayList<>();
+		for (double edge = SIGNATURE_FIRST_EDGE; edge < SIGNATURE_MAX_EDGE; edge *= SIGNATURE_EDGE_RATIO) {
+			edges.add(edge);
+		}
+		return edges.stream().mapToDouble(Double::doubleValue).toArray();
+	}
+
+	private static int signatureBin(double reading) {
+		int k = Arrays.binarySearch(SIGNATURE_EDGES, reading);
+		return k >= 0 ? k + 1 : -k - 1;
+	}
+
+	/**
+	 * Returns the places which match a scan best, best first.
+	 *
+	 * @param laserReadings		the 180 readings of a scan, one per degree counter-clockwise from the right of the robot
+	 * @param numCandidates		the number of places to return
+	 * @param readings			the expected readings of the map, as used by the sensor model
+	 * @return					at most numCandidates places more than MIN_PLACE_DISTANCE apart, with the heading which
+	 * 							matches best at each of them
+	 */
+	public List<Candidate> query(double[] laserReadings, int numCandidates, ExpectedReadings readings) {
+		// The sensor model compares every third reading with a bin of the expected readings
+		int numBinsConsidered = Sensor.NUM_BINS / 2;
+		int iInc = laserReadings.length / numBinsConsidered;
+		double[] scan = new double[numBinsConsidered];
+		int[] histogram = new int[numSignatureBins];
+		for (int i = 0; i < numBinsConsidered; i++) {
+			scan[i] = laserReadings[iInc * i];
+			histogram[signatureBin(scan[i])]++;
+		}
+
+		// Rank the cells by how much of the scan their signature contains; a count per score picks the best ones
+		int[] scores = new int[cells.length];
+		int[] numWithScore = new int[numBinsConsidered + 1];
+		for (int i = 0; i < cells.length; i++) {
+			int base = i * numSignatureBins;
+			int score = 0;
+			for (int k = 0; k < numSignatureBins; k++) {
+				score += Math.min(histogram[k], signatures[base + k]);
+			}
+			scores[i] = score;
+			numWithScore[score]++;
+		}
+		int minScore = numBinsConsidered;
+		for (int count = numWithScore[minScore]; minScore > 0 && count < NUM_VERIFIED; count += numWithScore[minScore]) {
+			minScore--;
+		}
+
+		// Fewer than NUM_VERIFIED cells score above minScore, and all of them are verified. So are the cells which tie
+		// at minScore, up to MAX_VERIFIED cells in all; beyond that, evenly spaced ties are, so that no part of the map
+		// is preferred
+		int numAbove = 0;
+		for (int score = minScore + 1; score <= numBinsConsidered; score++) {
+			numAbove += numWithScore[score];
+		}
+		int numTied = numWithScore[minScore];
+		int numTiesVerified = Math.min(numTied, MAX_VERIFIED - numAbove);
+		int[] verified = new int[numAbove + numTiesVerified];
+		int numVerified = 0;
+		int tie = 0;
+		for (int i = 0; i < cells.length; i++) {
+			if (scores[i] > minScore) {
+				verified[numVerified++] = i;
+			} else if (scores[i] == minScore) {
+				if ((long) (tie + 1) * numTiesVerified / numTied > (long) tie * numTiesVerified / numTied) {
+					verified[numVerified++] = i;
+				}
+				tie++;
+			}
+		}
+
+		// Match the scan with the best cells at every heading
+		List<Candidate> candidates = new ArrayList<>();
+		double[] ring = new double[Sensor.NUM_BINS];
+		for (int v = 0; v < numVerified; v++) {
+			int i = verified[v];
+			int x = cells[i] / height;
+			int y = cells[i] % height;
+			for (int k = 0; k < Sensor.NUM_BINS; k++) {
+				ring[k] = readings.getExpectedObs(x, y, k);
+			}
+			double bestDistance = Double.POSITIVE_INFINITY;
+			int bestBin = 0;
+			for (int firstBin = 0; firstBin < Sensor.NUM_BINS; firstBin++) {
+				double distance = 0;
+				for (int j = 0; j < numBinsConsidered && distance < bestDistance; j++) {
+					distance += Math.min(Math.abs(scan[j] - ring[(firstBin + j) % Sensor.NUM_BINS]), MATCH_TRUNCATION);
+				}
+				if (distance < bestDistance) {
+					bestDistance = distance;
+					bestBin = firstBin;
+				}
+			}
+			// The first reading is taken at theta - PI/2, which falls into the middle of bestBin
+			double theta = (bestBin + 0.5) * 2 * Math.PI / Sensor.NUM_BINS + Math.PI / 2;
+			candidates.add(new Candidate((x + 0.5) * CELL_SIZE, (y + 0.5) * CELL_SIZE, theta, bestDistance / numBinsConsidered));
+		}
+		candidates.sort(Comparator.comparingDouble(candidate -> candidate.matchDistance));
+
+		// Neighbouring cells match alike; keep only the best of every place
+		List<Candidate> places = new ArrayList<>(numCandidates);
+		for (int i = 0; i < candidates.size() && places.size() < numCandidates; i++) {
+			Candidate candidate = candidates.get(i);
+			boolean distinct = true;
+			for (Candidate place : places) {
+				distinct &= Math.hypot(candidate.laserX - place.laserX, candidate.laserY - place.laserY) > MIN_PLACE_DISTANCE;
+			}
+			if (distinct) {
+				places.add(candidate);
+			}
+		}
+		return places;
+	}
+
+	/**
+	 * Returns the number of indexed cells
+	 */
+	public int getNumSignatures() {
+		return cells.length;
+	}
+
+	/**
+	 * Defines the format of string to be printed out
+	 */
+	public String toString() {
+		return String.format("%d signatures of %d range bins (every %d cm), %.1f MB", cells.length, numSignatureBins,
+				STRIDE * CELL_SIZE, (cells.length * (long) Integer.BYTES + signatures.length) / 1e6);
+	}
+}
@@ -7,11 +7,11 @@ package sensor;
  * <p>
  * Essentially, a sensor model is specified by probabilistic models (density functions) that you will define.   
  */
-public abstract class Sensor {
+public abstract class Sensor implements Cloneable {
 	public static final double MAX_LASER_RANGE = 2000;	// You may change this if you like
 	public static final int NUM_BINS = 120;				// How many bins to use for laser readings
 	
-	private double[][][] cachedLaserReading;			// Precomputed expected laser readings are saved 
+	private ExpectedReadings expectedReadings;			// Precomputed (or lazily computed) expected laser readings
 	protected boolean init = true;
 	protected double[] actualObservations;
 	protected double[] expectedObservations;
@@ -48,7 +48,25 @@ public abstract class Sensor {
 	 * @param cachedLaserReading	a cached array object containing expected laser reading values computed via Bresenham algorithm
 	 */
 	public void setExpectedSensorReadingFromCache(double[][][] cachedLaserReading) {
-		this.cachedLaserReading = cachedLaserReading;
+		this.expectedReadings = (x, y, binId) -> cachedLaserReading[x][y][binId];
+	}
+	
+	
+	/**
+	 * Sets the source of expected laser readings, e.g. one which computes them on demand.
+	 * 
+	 * @param expectedReadings	the source of expected laser readings
+	 */
+	public void setExpectedReadings(ExpectedReadings expectedReadings) {
+		this.expectedReadings = expectedReadings;
+	}
+	
+	
+	/**
+	 * Returns the source of expected laser readings
+	 */
+	public ExpectedReadings getExpectedReadings() {
+		return expectedReadings;
 	}
 	
 	
@@ -72,10 +90,26 @@ public abstract class Sensor {
 	}
 	
 	
+	/**
+	 * Returns a copy of this sensor model which shares the expected readings but has its own observation arrays,
+	 * so that each thread can weight particles with its own copy.
+	 */
+	public Sensor fork() {
+		try {
+			Sensor copy = (Sensor) super.clone();
+			copy.actualObservations = null;
+			copy.expectedObservations = null;
+			return copy;
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+	}
+	
+	
 	/**
 	 * Returns the expected laser reading from the cached array given a pose on the map
 	 */
 	public double getExpectedObs(int[] pose) {
-		return cachedLaserReading[pose[0]][pose[1]][pose[2]];
+		return expectedReadings.getExpectedObs(pose[0], pose[1], pose[2]);
 	}
 }
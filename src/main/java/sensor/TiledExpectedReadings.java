@@ -0,0 +1,58 @@
+package sensor;
+
+import java.util.stream.IntStream;
+
+/**
+ * The expected laser readings in a single flat array laid out in tiled Z-order (see TiledZOrder).
+ * <p>
+ * The precomputed [x][y][bin] table consists of 640k separately allocated bin arrays, and cells which are close
+ * on the map may be far apart in memory. Here, the NUM_BINS readings of a cell are contiguous, and the cells of
+ * an 8 x 8 tile (as well as neighbouring tiles) follow each other, so that particles which are close on the map
+ * look up readings from nearby memory. The readings are copied as they are, so lookups are identical to the table.
+ */
+public class TiledExpectedReadings implements ExpectedReadings {
+	private final int width;
+	private final int height;
+	private final int numBins;
+	private final TiledZOrder order;
+	private final double[] readings;					// [ordinal * numBins + bin]
+
+	/**
+	 * Copies the readings of another source into the tiled layout. The source is read from several threads at once.
+	 *
+	 * @param source	the full-resolution expected readings, e.g. the precomputed table
+	 * @param width		the number of cells along x
+	 * @param height	the number of cells along y
+	 */
+	public TiledExpectedReadings(ExpectedReadings source, int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.numBins = Sensor.NUM_BINS;
+		this.order = new TiledZOrder(width, height);
+		this.readings = new double[order.getNumOrdinals() * numBins];
+
+		IntStream.range(0, width).parallel().forEach(x -> {
+			for (int y = 0; y < height; y++) {
+				int offset = order.ordinal(x, y) * numBins;
+				for (int k = 0; k < numBins; k++) {
+					readings[offset + k] = source.getExpectedObs(x, y, k);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Copies the precomputed [x][y][bin] table into the tiled layout.
+	 */
+	public TiledExpectedReadings(double[][][] cachedLaserReading) {
+		this((x, y, binId) -> cachedLaserReading[x][y][binId], cachedLaserReading.length, cachedLaserReading[0].length);
+	}
+
+	@Override
+	public double getExpectedObs(int x, int y, int binId) {
+		if (x >= width || y >= height) {
+			throw new ArrayIndexOutOfBoundsException(String.format("Cell (%d, %d) is outside of the map", x, y));
+		}
+		return readings[order.ordinal(x, y) * numBins + binId];
+	}
+}
@@ -0,0 +1,56 @@
+package sensor;
+
+import java.util.Arrays;
+
+import util.Util;
+
+/**
+ * Maps the cells of a width x height grid to dense ordinals in a tiled Z-order.
+ * <p>
+ * The grid is cut into TILE_SIZE x TILE_SIZE tiles. Tiles are ranked by the Morton code of their tile coordinates,
+ * and the cells inside a tile by the Morton code of their local coordinates. Hence cells which are close on the map
+ * get close ordinals, and data laid out by ordinal keeps neighbouring cells in neighbouring memory. Ranking the tiles
+ * (instead of using their raw Morton codes) keeps the ordinals dense when the grid is not a power of two wide.
+ */
+final class TiledZOrder {
+	static final int TILE_SIZE = 8;						// Cells per tile side (a power of two)
+	private static final int TILE_SHIFT = 3;
+	private static final int CELLS_PER_TILE = TILE_SIZE * TILE_SIZE;
+
+	private final int tilesY;
+	private final int[] tileRanks;						// [tx * tilesY + ty] -> rank of the tile in Z-order
+
+	TiledZOrder(int width, int height) {
+		int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+		this.tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+
+		// Sort the tiles by Morton code; the low 32 bits carry the tile id along
+		long[] keys = new long[tilesX * tilesY];
+		for (int tx = 0; tx < tilesX; tx++) {
+			for (int ty = 0; ty < tilesY; ty++) {
+				keys[tx * tilesY + ty] = ((long) Util.mortonCode(tx, ty) << 32) | (tx * tilesY + ty);
+			}
+		}
+		Arrays.sort(keys);
+
+		this.tileRanks = new int[keys.length];
+		for (int rank = 0; rank < keys.length; rank++) {
+			tileRanks[(int) keys[rank]] = rank;
+		}
+	}
+
+	/**
+	 * Returns the ordinal of a cell, in [0, getNumOrdinals())
+	 */
+	int ordinal(int x, int y) {
+		int tileRank = tileRanks[(x >> TILE_SHIFT) * tilesY + (y >> TILE_SHIFT)];
+		return tileRank * CELLS_PER_TILE + Util.mortonCode(x & (TILE_SIZE - 1), y & (TILE_SIZE - 1));
+	}
+
+	/**
+	 * Returns the number of ordinals, i.e. the number of cells padded to whole tiles
+	 */
+	int getNumOrdinals() {
+		return tileRanks.length * CELLS_PER_TILE;
+	}
+}
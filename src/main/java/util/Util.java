@@ -32,4 +32,36 @@ public final class Util {
 		if (binId < 0) return binId + numBins;
 		else return binId;
 	}
+	
+	/**
+	 * Wraps an angle into the range [-PI, PI).
+	 * 
+	 * @param theta		the angle in radian
+	 */
+	public static double normalizeAngle(double theta) {
+		return theta - 2 * Math.PI * Math.floor((theta + Math.PI) / (2 * Math.PI));
+	}
+	
+	/**
+	 * Returns the Z-order (Morton) code of a pair of non-negative 16-bit coordinates, i.e. their bits interleaved
+	 * (x in the even bits, y in the odd bits). Cells with close codes are close on the map.
+	 * 
+	 * @param x		the coordinate along x, in [0, 65535]
+	 * @param y		the coordinate along y, in [0, 65535]
+	 */
+	public static int mortonCode(int x, int y) {
+		return spreadBits(x) | (spreadBits(y) << 1);
+	}
+	
+	/**
+	 * Spreads the lower 16 bits of v over the even bits of an int.
+	 */
+	private static int spreadBits(int v) {
+		v &= 0xFFFF;
+		v = (v | (v << 8)) & 0x00FF00FF;
+		v = (v | (v << 4)) & 0x0F0F0F0F;
+		v = (v | (v << 2)) & 0x33333333;
+		v = (v | (v << 1)) & 0x55555555;
+		return v;
+	}
 }
@@ -2,13 +2,19 @@ import static org.junit.Assert.*;
 
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import map.GlobalMap;
+import map.LikelihoodGrid;
 import map.Plot;
 import odometry.*;
 import sensor.*;
 import mcl.*;
+import noise.*;
 
 public class Tests {
 	
@@ -114,6 +120,28 @@ public class Tests {
 	}
 	
 	
+	/**
+	 * Tests whether the effective sample size is N for equal weights and close to 1 when a single particle dominates.
+	 */
+	@Test
+	public void testEffectiveSampleSize() {
+		for (int i = 0; i < numParticle; i++) {
+			particles.get(i).setLogWeight(-3.5);
+		}
+		assertEquals(numParticle, mcl.normalizeLogWeights(particles), 1e-9);
+		
+		particles.get(0).setLogWeight(100);
+		assertEquals(1.0, mcl.normalizeLogWeights(particles), 1e-9);
+		assertEquals(1.0, particles.get(0).getWeight(), 1e-9);
+		
+		// No particle fits at all
+		for (int i = 0; i < numParticle; i++) {
+			particles.get(i).setLogWeight(Double.NEGATIVE_INFINITY);
+		}
+		assertEquals(0, mcl.normalizeLogWeights(particles), 0);
+		assertEquals(1.0, particles.get(0).getWeight(), 1e-9);
+	}	
+	
 	/**
 	 * Tests whether you have correctly implemented the multinomial sampling method. 
 	 * Although it's *very unlikely* that you fail this test with a correct implementation, it is not impossible. 
@@ -155,4 +183,276 @@ public class Tests {
 			assertEquals(expected[i], sampledCounts[i], 500);
 		}
 	}
+	
+	
+	/**
+	 * Tests whether the Ziggurat sampler of NoiseStream produces standard normal samples, 
+	 * and whether block generation gives the same samples as drawing them one at a time.
+	 */
+	@Test
+	public void testNoiseStreamGaussian() {
+		NoiseStream stream = new NoiseStream(0);
+		int numSamples = 1000000;
+		double sum = 0, sumSq = 0, sumFourth = 0;
+		for (int i = 0; i < numSamples; i++) {
+			double g = stream.nextGaussian();
+			sum += g;
+			sumSq += g * g;
+			sumFourth += g * g * g * g;
+		}
+		assertEquals(0.0, sum / numSamples, 0.01);
+		assertEquals(1.0, sumSq / numSamples, 0.01);
+		assertEquals(3.0, sumFourth / numSamples, 0.05);
+		
+		double[] block = new double[100];
+		new NoiseStream(1).fillGaussian(block, 0, block.length);
+		NoiseStream sequential = new NoiseStream(1);
+		for (int i = 0; i < block.length; i++) {
+			assertEquals(sequential.nextGaussian(), block[i], 0);
+		}
+	}
+	
+	
+	/**
+	 * Tests whether RestorableRandom (behind MonteCarloLocalization.RANDOM) gives exactly the sequence of 
+	 * java.util.Random, also after its state has been saved and restored into another instance.
+	 */
+	@Test
+	public void testRestorableRandom() {
+		Random expected = new Random(0);
+		RestorableRandom random = new RestorableRandom(0);
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(expected.nextDouble(), random.nextDouble(), 0);
+			assertEquals(expected.nextGaussian(), random.nextGaussian(), 0);
+			assertEquals(expected.nextInt(100), random.nextInt(100));
+		}
+		
+		RestorableRandom restored = new RestorableRandom(42);
+		restored.restore(random.getState(), random.getNextNextGaussian());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(expected.nextGaussian(), restored.nextGaussian(), 0);
+		}
+	}
+	
+	
+	/**
+	 * Tests whether CounterStream draws only depend on their key, not on the order in which keys are visited.
+	 */
+	@Test
+	public void testCounterStreamKeys() {
+		CounterStream stream = new CounterStream(7);
+		double[] forward = new double[100];
+		for (int i = 0; i < forward.length; i++) {
+			forward[i] = stream.at(3, 1, i).nextGaussian() + stream.nextDouble();
+		}
+		for (int i = forward.length - 1; i >= 0; i--) {
+			assertEquals(forward[i], stream.at(3, 1, i).nextGaussian() + stream.nextDouble(), 0);
+		}
+		assertNotEquals(stream.at(3, 1, 0).nextLong(), stream.at(3, 2, 0).nextLong());
+		assertNotEquals(stream.at(3, 1, 0).nextLong(), stream.at(4, 1, 0).nextLong());
+	}
+	
+	/**
+	 * Tests whether prefix-sum systematic resampling keeps every offspring count within one of N w_i / sum(w),
+	 * spanning several chunks, and gives the same ancestors for any number of threads.
+	 */
+	@Test
+	public void testParallelSystematicResampling() {
+		int n = 3 * ParallelResampler.CHUNK_SIZE + 17;
+		Random random = new Random(0);
+		double[] weights = new double[n];
+		double total = 0;
+		for (int i = 0; i < n; i++) {
+			weights[i] = i % 7 == 0 ? 0 : Math.exp(2 * random.nextGaussian());
+			total += weights[i];
+		}
+		
+		ParallelResampler oneThread = new ParallelResampler(1);
+		ParallelResampler fourThreads = new ParallelResampler(4);
+		int[] ancestors = new int[n];
+		int[] ancestorsFourThreads = new int[n];
+		oneThread.systematic(weights, n, 0.3, ancestors);
+		fourThreads.systematic(weights, n, 0.3, ancestorsFourThreads);
+		oneThread.shutdown();
+		fourThreads.shutdown();
+		assertArrayEquals(ancestors, ancestorsFourThreads);
+		
+		int[] counts = new int[n];
+		for (int a : ancestors) {
+			counts[a]++;
+		}
+		for (int i = 0; i < n; i++) {
+			assertEquals(n * weights[i] / total, counts[i], 1.0);
+		}
+	}
+
+	/**
+	 * Tests whether dropping a particle with an invalid position keeps every remaining particle with its own weight,
+	 * so that the estimate of an odometry-only step (which does not renormalize) is that of the valid particles.
+	 */
+	@Test
+	public void testRemoveInvalidPositions() {
+		ParticleColumns columns = new ParticleColumns(6);
+		ParticleColumns valid = new ParticleColumns(5);
+		columns.setSize(6);
+		valid.setSize(5);
+		double[] weights = {0.4, 0.05, 0.3, 0.15, 0.1};
+		for (int i = 0, j = 0; i < 6; i++) {
+			if (i == 1) {
+				columns.setPose(i, 5, 5, 0);
+				columns.setWeight(i, 0.5);
+				continue;
+			}
+			double[] pose = particles.get(i).getPose();
+			columns.setPose(i, pose[0], pose[1], pose[2]);
+			columns.setLogWeight(i, Math.log(weights[j]));
+			columns.setWeight(i, weights[j]);
+			valid.setPose(j, pose[0], pose[1], pose[2]);
+			valid.setWeight(j, weights[j]);
+			j++;
+		}
+
+		assertEquals(5, columns.removeInvalidPositions());
+		for (int i = 0; i < 5; i++) {
+			assertEquals(weights[i], columns.getWeight(i), 0);
+			assertEquals(Math.log(weights[i]), columns.getLogWeight(i), 0);
+		}
+		PoseEstimator estimator = new PoseEstimator();
+		assertArrayEquals(estimator.estimate(valid).getPose(), estimator.estimate(columns).getPose(), 0);
+	}
+
+	/**
+	 * Tests whether the parallel mode ends the first steps of the log (motion, weighting, normalization, resampling
+	 * and recovery) with bit-identical particles, weights and counters on 1, 4 and 8 threads.
+	 */
+	@Test
+	public void testParallelStepsIndependentOfThreads() throws IOException {
+		int numSteps = 40;
+		byte[] oneThread = runParallelSteps(1, numSteps);
+		assertArrayEquals(oneThread, runParallelSteps(4, numSteps));
+		assertArrayEquals(oneThread, runParallelSteps(8, numSteps));
+	}
+
+	/**
+	 * Runs the first numSteps observations through a fresh filter in the parallel mode and returns its checkpoint.
+	 * The expected readings are an arbitrary function of the cell, so that no ray-casting table is needed.
+	 */
+	private static byte[] runParallelSteps(int numThreads, int numSteps) throws IOException {
+		MonteCarloLocalization.RANDOM.setSeed(0);
+		MonteCarloLocalization parallel = new MonteCarloLocalization(plot, globalMap, 500);
+		Sensor sensor = new DefaultSensor();
+		sensor.setExpectedReadings((x, y, binId) -> 100 + (x * 7 + y * 13 + binId * 31) % 1500);
+		parallel.setSensorModel(sensor);
+		parallel.setOdometryModel(new DefaultOdometry());
+		parallel.setParallelism(numThreads, 42);
+		List<Observation> observations = new ArrayList<>(Observation.obsList.subList(0, numSteps));
+		parallel.runPipeline(new ObservationSource() {
+			@Override
+			protected void produce() {
+				for (Observation observation : observations) {
+					emit(observation);
+				}
+			}
+		}, List.of());
+		parallel.setParallelism(0, 0);
+		assertTrue(parallel.getNumResamplings() > 0);
+
+		FilterCheckpoint checkpoint = parallel.checkpoint();
+		assertEquals(numSteps, checkpoint.getTimeIndex());
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		checkpoint.write(new DataOutputStream(bytes));
+		return bytes.toByteArray();
+	}
+
+
+	/**
+	 * Tests that augmented MCL only injects particles once the short-term likelihood falls below the long-term one.
+	 */
+	@Test
+	public void testAugmentedMclInjection() {
+		AugmentedMcl augmented = new AugmentedMcl(0.01, 0.5);
+		for (int i = 0; i < 100; i++) {
+			augmented.update(-2);
+		}
+		assertEquals(0, augmented.getInjectionProbability(), 1e-9);
+		
+		augmented.update(-1);
+		assertEquals(0, augmented.getInjectionProbability(), 1e-9);
+		
+		for (int i = 0; i < 5; i++) {
+			augmented.update(-10);
+		}
+		assertTrue(augmented.getInjectionProbability() > 0.9);
+		assertTrue(augmented.getInjectionProbability() <= 1);
+	}
+	
+	/**
+	 * Tests whether the signature index verifies the best-scoring cell even when it comes after NUM_VERIFIED
+	 * lower-scoring cells in the index.
+	 */
+	@Test
+	public void testSignatureIndexVerifiesBestCell() {
+		// The last indexed cell sees 300 cm in every direction, every other cell 100 cm
+		int cellX = -1;
+		int cellY = -1;
+		for (int x = 0; x < 800; x += ScanSignatureIndex.STRIDE) {
+			for (int y = 0; y < 800; y += ScanSignatureIndex.STRIDE) {
+				if (globalMap.globalMapValues[x][y] > 0.8) {
+					cellX = x;
+					cellY = y;
+				}
+			}
+		}
+		int lastX = cellX;
+		int lastY = cellY;
+		ExpectedReadings readings = (x, y, binId) -> x == lastX && y == lastY ? 300 : 100;
+		ScanSignatureIndex index = new ScanSignatureIndex(globalMap, readings);
+		assertTrue(index.getNumSignatures() > 500);
+		
+		double[] scan = new double[180];
+		Arrays.fill(scan, 300);
+		List<ScanSignatureIndex.Candidate> candidates = index.query(scan, 1, readings);
+		assertEquals(1, candidates.size());
+		assertEquals((lastX + 0.5) * 10, candidates.get(0).laserX, 1e-9);
+		assertEquals((lastY + 0.5) * 10, candidates.get(0).laserY, 1e-9);
+		assertEquals(0, candidates.get(0).matchDistance, 1e-9);
+	}
+	
+	/**
+	 * Tests whether every coarse level of the likelihood grid bounds level 0 over its block of cells,
+	 * which the branch and bound of the scan matcher relies on.
+	 */
+	@Test
+	public void testLikelihoodGridBounds() {
+		LikelihoodGrid grid = new LikelihoodGrid(globalMap, 20, 4);
+		Random random = new Random(0);
+		for (int i = 0; i < 10000; i++) {
+			int x = random.nextInt(800);
+			int y = random.nextInt(800);
+			for (int level = 1; level < grid.getNumLevels(); level++) {
+				float max = 0;
+				for (int dx = 0; dx < (1 << level); dx++) {
+					for (int dy = 0; dy < (1 << level); dy++) {
+						max = Math.max(max, grid.getValue(0, x + dx, y + dy));
+					}
+				}
+				assertEquals(max, grid.getValue(level, x, y), 0);
+			}
+		}
+	}
+	
+	/**
+	 * Tests whether the map parser returns exactly what Double.parseDouble() does, both for the plain decimals
+	 * it parses itself and for the numbers it leaves to the JDK (more than 15 digits, exponents).
+	 */
+	@Test
+	public void testMapNumberParsing() throws IOException {
+		String[] tokens = {"-1", "0.000", "1.000", "0.123456789012345", "98765.4321098765", "0.1234567890123456", "-0", "1.5e-3"};
+		String text = "global_map[0]: 1 " + tokens.length + "\n" + String.join(" ", tokens) + "\n";
+		double[][] values = GlobalMap.parse(text.getBytes(StandardCharsets.US_ASCII));
+		assertEquals(tokens.length, values[0].length);
+		for (int i = 0; i < tokens.length; i++) {
+			assertEquals(tokens[i], Double.doubleToRawLongBits(Double.parseDouble(tokens[i])), Double.doubleToRawLongBits(values[0][i]));
+		}
+	}
 }